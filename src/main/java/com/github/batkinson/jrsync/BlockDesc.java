@@ -26,4 +26,22 @@ public class BlockDesc {
     public byte[] getCryptoHash() {
         return cryptoHash;
     }
+
+    /**
+     * The offset of the described content in its file.
+     *
+     * @param blockSize the block size of the file's metadata
+     */
+    public long getOffset(int blockSize) {
+        return blockIndex * blockSize;
+    }
+
+    /**
+     * The length of the described content.
+     *
+     * @param blockSize the block size of the file's metadata
+     */
+    public int getLength(int blockSize) {
+        return blockSize;
+    }
 }
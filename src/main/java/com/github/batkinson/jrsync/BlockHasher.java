@@ -0,0 +1,113 @@
+package com.github.batkinson.jrsync;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the strong hashes that identify blocks. A block hash only needs to
+ * tell apart blocks that already share a weak checksum, so besides the
+ * message digests available through {@link MessageDigest}, which remain
+ * available for compatibility, much faster non-cryptographic hashes can be
+ * used. The algorithm name is recorded as the metadata's block hash type.
+ */
+public abstract class BlockHasher {
+
+    /**
+     * The 64-bit xxHash algorithm, with a seed of 0, hashes stored big-endian.
+     */
+    public static final String XXH64 = "XXH64";
+
+    /**
+     * Two 64-bit xxHash lanes, with seeds of 0 and 1, for 128-bit hashes
+     * where 64 bits aren't enough, such as for very large files or when
+     * hashes are truncated. The first lane is the {@link #XXH64} hash.
+     */
+    public static final String XXH64X2 = "XXH64X2";
+
+    private final String algorithm;
+    private final int length;
+
+    protected BlockHasher(String algorithm, int length) {
+        this.algorithm = algorithm;
+        this.length = length;
+    }
+
+    /**
+     * Returns a hasher for the specified algorithm, either one of the names
+     * defined by this class or the name of a {@link MessageDigest}.
+     */
+    public static BlockHasher getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if (XXH64.equals(algorithm)) {
+            return new XXH64Hasher(XXH64, 0);
+        }
+        if (XXH64X2.equals(algorithm)) {
+            return new XXH64Hasher(XXH64X2, 0, 1);
+        }
+        return new DigestHasher(MessageDigest.getInstance(algorithm));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * The length of hashes in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Hashes the specified range, writing {@link #getLength()} bytes to the
+     * output buffer.
+     */
+    public abstract void hash(byte[] buf, int offset, int length, byte[] out, int outOffset);
+
+    public byte[] hash(byte[] buf, int offset, int length) {
+        byte[] result = new byte[this.length];
+        hash(buf, offset, length, result, 0);
+        return result;
+    }
+
+    private static final class DigestHasher extends BlockHasher {
+
+        private final MessageDigest digest;
+
+        DigestHasher(MessageDigest digest) {
+            super(digest.getAlgorithm(), digest.getDigestLength());
+            this.digest = digest;
+        }
+
+        @Override
+        public void hash(byte[] buf, int offset, int length, byte[] out, int outOffset) {
+            digest.update(buf, offset, length);
+            try {
+                digest.digest(out, outOffset, getLength());
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    private static final class XXH64Hasher extends BlockHasher {
+
+        private final long[] seeds;
+
+        XXH64Hasher(String algorithm, long... seeds) {
+            super(algorithm, seeds.length * 8);
+            this.seeds = seeds;
+        }
+
+        @Override
+        public void hash(byte[] buf, int offset, int length, byte[] out, int outOffset) {
+            for (long seed : seeds) {
+                long h = XXHash64.hash(buf, offset, length, seed);
+                for (int i = 7; i >= 0; i--, h >>>= 8) {
+                    out[outOffset + i] = (byte) h;
+                }
+                outOffset += 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.batkinson.jrsync;
+
+/**
+ * The checksums and hashes of a file's blocks, as {@link MatchTable} uses
+ * them, however they happen to be stored.
+ */
+interface BlockRecords {
+
+    int size();
+
+    long checksum(int index);
+
+    int hashLength();
+
+    /**
+     * Tests whether the block at the specified index has the packed hash, see
+     * {@link MatchTable#pack(byte[], int, long[], int)}.
+     */
+    boolean hashEquals(int index, long[] packed);
+
+    /**
+     * The length of the specified block, which is the block size unless
+     * these are chunks.
+     */
+    int length(int index, int blockSize);
+
+    BlockDesc get(int index);
+}
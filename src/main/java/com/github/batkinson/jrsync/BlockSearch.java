@@ -1,17 +1,19 @@
 package com.github.batkinson.jrsync;
 
-import java.io.*;
-import java.security.MessageDigest;
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import static java.util.Collections.EMPTY_LIST;
+import static com.github.batkinson.jrsync.SearchWindow.source;
 
 /**
  * Searches a file for blocks that match blocks described by the specified {@link BlockDesc}s for
@@ -21,63 +23,47 @@ public class BlockSearch {
 
     private int blockSize;
     private List<BlockDesc> blockSummary;
+    private long checksumMask;
+    private int seqMatches = 1;
 
     public BlockSearch(List<BlockDesc> basisDesc, int blockSize) {
-        this.blockSize = blockSize;
-        this.blockSummary = basisDesc;
+        this(basisDesc, blockSize, 4);
     }
 
     /**
-     * A flyweight used to avoid memory allocations due to auto-boxing. The match table {@link Map} requires boxed
-     * {@link Long} keys for finding matches and though {@link Long} does provide a cache it is only used for small
-     * values. Since the worst case can require a lookup for every byte in the file if no matching blocks are found,
-     * at least one new object would be allocated for every byte in the basis file. For large files, this can make a
-     * huge difference in search performance.
+     * Creates a search for blocks described with truncated weak checksums,
+     * such as those read from {@link Metadata}. Truncated block hashes are
+     * handled regardless, by comparing only the bytes present.
      *
-     * <strong>
-     *     Never share or modify a flyweight instance while it is used as a key in the match table, since this violates
-     *     the contract for the collections and will result in undefined semantics.
-     * </strong>
+     * @param checksumLength the number of bytes kept of each weak checksum
      */
-    private static final class FlyweightLong {
-
-        long value;
-
-        FlyweightLong() { }
-
-        FlyweightLong(long v) {
-            value = v;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            return o != null && o instanceof FlyweightLong && value == ((FlyweightLong) o).value;
-        }
-
-        @Override
-        public int hashCode() {
-            return (int) (value ^ (value >>> 32));
-        }
+    public BlockSearch(List<BlockDesc> basisDesc, int blockSize, int checksumLength) {
+        this.blockSize = blockSize;
+        this.blockSummary = basisDesc;
+        this.checksumMask = RollingChecksum.mask(checksumLength);
     }
 
-    private Map<FlyweightLong, Collection<BlockDesc>> buildMatchTable(List<BlockDesc> blocks) {
-        Map<FlyweightLong, Collection<BlockDesc>> result = new HashMap<>();
-        if (blocks != null) {
-            for (BlockDesc desc : blocks) {
-                FlyweightLong blockSum = new FlyweightLong(desc.weakChecksum);
-                Collection<BlockDesc> checksumHits = result.get(blockSum);
-                if (checksumHits == null) {
-                    checksumHits = new LinkedHashSet<>();
-                    result.put(blockSum, checksumHits);
-                }
-                checksumHits.add(desc);
-            }
+    /**
+     * Sets the number of consecutive blocks that must match before a match is
+     * accepted, as advertised by {@link Metadata#getSeqMatches()}. With 2, a
+     * block only matches if the block following it in the summary also
+     * matches at the following offset, or if the block preceding it was just
+     * matched. This keeps truncated hashes from causing false matches.
+     *
+     * @param seqMatches 1, the default, or 2
+     */
+    public void setSeqMatches(int seqMatches) {
+        if (seqMatches < 1 || seqMatches > 2) {
+            throw new IllegalArgumentException("sequential matches must be 1 or 2: " + seqMatches);
         }
-        return result;
+        this.seqMatches = seqMatches;
     }
 
-    private Collection<BlockDesc> checksumMatches(Map<FlyweightLong, Collection<BlockDesc>> blockDescs, FlyweightLong checksum) {
-        return blockDescs.containsKey(checksum) ? blockDescs.get(checksum) : EMPTY_LIST;
+    /**
+     * The bytes a search must be able to read past the last block it tests.
+     */
+    private int lookahead() {
+        return seqMatches > 1 ? blockSize : 0;
     }
 
     private void unmatched(SearchHandler handler, long start, long end) throws IOException {
@@ -103,20 +89,15 @@ public class BlockSearch {
     public void rsyncSearch(DataInput target, long targetLength, String digestAlgorithm, SearchHandler handler)
             throws IOException, NoSuchAlgorithmException, InterruptedException {
 
-        Map<FlyweightLong, Collection<BlockDesc>> blockTable = buildMatchTable(blockSummary);
-        FlyweightLong checksum = new FlyweightLong();
+        MatchTable blockTable = new MatchTable(blockSummary, checksumMask);
         long interimStart = 0;
-        SearchBuffer sb = new SearchBuffer(blockSize);
-        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        SearchWindow window = new SearchWindow(source(target), targetLength, blockSize);
+        Verifier verifier = new Verifier(blockTable, digestAlgorithm);
 
         handler.searched(0);
 
         // Load a block from file
-        byte[] blockBuf = new byte[blockSize];
-        try {
-            target.readFully(blockBuf);
-            sb.add(blockBuf);
-        } catch (EOFException eof) {
+        if (!window.load()) {
             unmatched(handler, interimStart, targetLength);
             return;
         }
@@ -127,45 +108,353 @@ public class BlockSearch {
                 throw new InterruptedException();
             }
 
-            BlockDesc match = null;
-            checksum.value = sb.checksum();
-            Collection<BlockDesc> candidates = checksumMatches(blockTable, checksum);
-            if (!candidates.isEmpty()) {
-                byte[] contentHash = digest.digest(sb.getBlock(blockBuf));
-                for (BlockDesc candidate : candidates) {
-                    if (Arrays.equals(contentHash, candidate.cryptoHash)) {
-                        match = candidate;
-                        break;
-                    }
+            int status = window.seek(blockTable);
+            if (status == SearchWindow.REFILLED) {
+                searched(handler, window.position() + blockSize, targetLength);
+                continue;
+            } else if (status == SearchWindow.END) {
+                break;
+            }
+
+            int match = rsyncMatch(verifier, window, window.position());
+
+            searched(handler, window.position() + blockSize, targetLength);
+
+            if (match >= 0) {
+                long matchStart = window.position();
+                unmatched(handler, interimStart, matchStart);
+                // matching block in dest file, communicate match
+                handler.matched(matchStart, blockTable.block(match));
+                interimStart = matchStart + blockSize;
+                verifier.matched(match, interimStart);
+                // advance window to be at block's end
+                if (!window.skip()) {
+                    break;
                 }
+            } else if (!window.next()) {
+                // advance window one byte
+                break;
             }
+        }
 
-            searched(handler, sb.position() + sb.length(), targetLength);
+        searched(handler, targetLength, targetLength);
+        unmatched(handler, interimStart, targetLength);
+    }
 
-            try {
-                if (match != null) {
-                    long nextStart = sb.position() + blockSize;
-                    if (interimStart != sb.position()) {
-                        unmatched(handler, interimStart, sb.position());
-                    }
-                    // matching block in dest file, communicate match
-                    handler.matched(sb.position(), match);
-                    interimStart = nextStart;
-                    // advance buffer to be at block's end
-                    if (nextStart <= targetLength) {
-                        target.readFully(blockBuf);
-                        sb.add(blockBuf);
+    /**
+     * Performs an rsync block search like
+     * {@link #rsyncSearch(DataInput, long, String, SearchHandler)}, but
+     * splits the target into segments and searches them concurrently using
+     * the specified executor. Each segment is searched as though the search
+     * started at its first byte, so the calling thread stitches results
+     * together in order: where a match from one segment runs into the next,
+     * the serial search would have resumed inside that segment, so it is
+     * rescanned from there until it rejoins the segment's own search. The
+     * results are identical to the serial search and handler methods are
+     * only called from the calling thread, in target byte order.
+     *
+     * @param target          channel for the file to generate using bytes from basis summary
+     * @param digestAlgorithm hash algorithm to use for block equality
+     * @param handler         the object that handles search output
+     * @param executor        executes the segment searches
+     * @param segments        number of segments to split the target into
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InterruptedException
+     */
+    public void rsyncSearch(FileChannel target, String digestAlgorithm, SearchHandler handler,
+                            ExecutorService executor, int segments)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+        MatchTable blockTable = new MatchTable(blockSummary, checksumMask);
+        Verifier verifier = new Verifier(blockTable, digestAlgorithm);
+
+        long targetLength = target.size();
+        int segmentCount = Math.max(segments, 1);
+        long segmentLength = Math.max(blockSize, (targetLength + segmentCount - 1) / segmentCount);
+
+        handler.searched(0);
+
+        RsyncOutput output = new RsyncOutput(handler, blockTable);
+        long next = 0; // Where the serial search would test next
+        List<Future<RsyncSegment>> results = new ArrayList<>();
+        try {
+            for (long start = 0; start < targetLength; start += segmentLength) {
+                long end = Math.min(start + segmentLength, targetLength);
+                results.add(executor.submit(new RsyncSegment(target, start, end, blockTable, digestAlgorithm)));
+            }
+            for (Future<RsyncSegment> result : results) {
+                RsyncSegment segment = result.get();
+                MatchList matches = segment.matches;
+                int first = matches.size(); // Unless the serial search reaches the segment
+                if (next < segment.end) {
+                    next = rescan(target, next, segment, verifier, output);
+                    first = 0;
+                    while (first < matches.size() && matches.offset(first) < next) {
+                        first++;
                     }
+                }
+                for (int i = first; i < matches.size(); i++) {
+                    output.matched(matches.offset(i), matches.index(i));
+                    next = matches.offset(i) + blockSize;
+                }
+                next = Math.max(next, segment.end);
+                searched(handler, segment.end, targetLength);
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            for (Future<RsyncSegment> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        searched(handler, targetLength, targetLength);
+        unmatched(handler, output.interimStart, targetLength);
+    }
+
+    /**
+     * Continues the serial search from the specified offset until it reaches
+     * an offset the segment's search also tested in the same state: not
+     * inside one of the segment's matches and, when sequential matches are
+     * required, just after the same match, if any. From there on both would
+     * find the same matches.
+     *
+     * @return the offset where the searches converged, or where the serial
+     * search left the segment
+     */
+    private long rescan(FileChannel target, long from, RsyncSegment segment, Verifier verifier, RsyncOutput output)
+            throws IOException {
+        MatchList matches = segment.matches;
+        SearchWindow window = null;
+        long offset = from;
+        int i = 0;
+        while (offset < segment.end) {
+            while (i < matches.size() && matches.offset(i) + blockSize <= offset) {
+                i++;
+            }
+            if ((i == matches.size() || matches.offset(i) >= offset) && samePrevious(matches, i, offset, output)) {
+                return offset;
+            }
+            if (window == null) {
+                long length = Math.min(segment.end + blockSize - 1 + lookahead(), target.size()) - from;
+                window = new SearchWindow(source(target, from), length, blockSize);
+                if (!window.load()) {
+                    return segment.end;
+                }
+            }
+            int match = -1;
+            if (output.blockTable.mightContain(window.checksum())) {
+                verifier.matched(output.lastIndex, output.interimStart);
+                match = rsyncMatch(verifier, window, offset);
+            }
+            if (match >= 0) {
+                output.matched(offset, match);
+                if (!window.skip()) {
+                    return offset + blockSize;
+                }
+            } else if (!window.next()) {
+                return offset + 1;
+            }
+            offset = from + window.position();
+        }
+        return offset;
+    }
+
+    /**
+     * Tests whether the serial search and a segment's search reach the
+     * specified offset just after the same match, or both after none, which
+     * only matters when sequential matches are required.
+     *
+     * @param next the index of the segment's first match ending after the offset
+     */
+    private boolean samePrevious(MatchList matches, int next, long offset, RsyncOutput output) {
+        if (seqMatches < 2) {
+            return true;
+        }
+        int segmentPrevious = next > 0 && matches.offset(next - 1) + blockSize == offset ? matches.index(next - 1) : -1;
+        int serialPrevious = output.lastIndex >= 0 && output.interimStart == offset ? output.lastIndex : -1;
+        return segmentPrevious == serialPrevious;
+    }
+
+    /**
+     * Reports matches to a handler in target order, filling the gaps
+     * between them with unmatched ranges.
+     */
+    private final class RsyncOutput {
+
+        private final SearchHandler handler;
+        private final MatchTable blockTable;
+        private long interimStart;
+        private int lastIndex = -1;
+
+        RsyncOutput(SearchHandler handler, MatchTable blockTable) {
+            this.handler = handler;
+            this.blockTable = blockTable;
+        }
+
+        void matched(long offset, int index) throws IOException {
+            unmatched(handler, interimStart, offset);
+            handler.matched(offset, blockTable.block(index));
+            interimStart = offset + blockSize;
+            lastIndex = index;
+        }
+    }
+
+    /**
+     * Searches one segment of a target for a parallel rsync search, as though
+     * the search began at the segment's start.
+     */
+    private final class RsyncSegment implements Callable<RsyncSegment> {
+
+        private final FileChannel target;
+        private final long start, end;
+        private final MatchTable blockTable;
+        private final String digestAlgorithm;
+        private final MatchList matches = new MatchList();
+
+        RsyncSegment(FileChannel target, long start, long end, MatchTable blockTable, String digestAlgorithm) {
+            this.target = target;
+            this.start = start;
+            this.end = end;
+            this.blockTable = blockTable;
+            this.digestAlgorithm = digestAlgorithm;
+        }
+
+        @Override
+        public RsyncSegment call() throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+            Verifier verifier = new Verifier(blockTable, digestAlgorithm);
+
+            // Overlap the next segment so blocks starting in this one are whole
+            long length = Math.min(end - start + blockSize - 1 + lookahead(), target.size() - start);
+            SearchWindow window = new SearchWindow(source(target, start), length, blockSize);
+
+            boolean more = window.load();
+            while (more) {
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                int status = window.seek(blockTable);
+                if (status == SearchWindow.REFILLED) {
+                    continue;
+                } else if (status == SearchWindow.END || start + window.position() >= end) {
+                    break;
+                }
+
+                long offset = start + window.position();
+                int match = rsyncMatch(verifier, window, offset);
+                if (match >= 0) {
+                    matches.add(offset, match);
+                    verifier.matched(match, offset + blockSize);
+                    more = window.skip();
                 } else {
-                    // advance buffer one byte
-                    byte next = target.readByte();
-                    sb.add(next);
+                    more = window.next();
+                }
+            }
+
+            return this;
+        }
+    }
+
+    /**
+     * Returns the index of the first block, in summary order, matching the
+     * window's current block, or -1 if there is none.
+     *
+     * @param offset the offset of the window's current block in the file
+     */
+    private int rsyncMatch(Verifier verifier, SearchWindow window, long offset) throws IOException {
+        MatchTable blockTable = verifier.table;
+        int slot = blockTable.find(window.checksum());
+        if (slot >= 0) {
+            verifier.reset(window, offset);
+            for (int pos = blockTable.start(slot), end = blockTable.end(slot); pos < end; pos++) {
+                int index = blockTable.entry(pos);
+                if (verifier.matches(index)) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Verifies weak checksum hits at a window's current block, hashing it
+     * and, when sequential matches are required, the block following it, at
+     * most once each.
+     */
+    private final class Verifier {
+
+        private static final int UNKNOWN = 0, PRESENT = 1, ABSENT = 2;
+
+        private final MatchTable table;
+        private final HashProbe probe, followingProbe;
+        private final long[] matchEnds; // Where each block's last accepted match ended
+        private SearchWindow window;
+        private long offset;
+        private boolean hashed;
+        private int following;
+        private long followingChecksum;
+
+        Verifier(MatchTable table, String digestAlgorithm) throws NoSuchAlgorithmException {
+            this.table = table;
+            this.probe = new HashProbe(BlockHasher.getInstance(digestAlgorithm), table);
+            this.followingProbe = seqMatches > 1 ? new HashProbe(BlockHasher.getInstance(digestAlgorithm), table) : null;
+            this.matchEnds = seqMatches > 1 ? new long[table.size()] : null;
+            if (matchEnds != null) {
+                Arrays.fill(matchEnds, -1);
+            }
+        }
+
+        /**
+         * Prepares to verify the window's current block, at the specified
+         * offset in the file.
+         */
+        void reset(SearchWindow window, long offset) {
+            this.window = window;
+            this.offset = offset;
+            hashed = false;
+            following = UNKNOWN;
+        }
+
+        /**
+         * Records a match accepted, which confirms a match of the block
+         * following it in the summary at its end.
+         */
+        void matched(int index, long end) {
+            if (matchEnds != null && index >= 0) {
+                matchEnds[index] = end;
+            }
+        }
+
+        boolean matches(int index) throws IOException {
+            if (!hashed) {
+                probe.hash(window.buffer(), window.offset(), blockSize);
+                hashed = true;
+            }
+            if (!probe.matches(table, index)) {
+                return false;
+            }
+            if (seqMatches < 2 || table.size() < 2
+                    || (index > 0 && matchEnds[index - 1] == offset)) {
+                return true;
+            }
+            return index + 1 < table.size() && followingMatches(index + 1);
+        }
+
+        private boolean followingMatches(int index) throws IOException {
+            if (following == UNKNOWN) {
+                following = ABSENT;
+                if (window.peek()) {
+                    followingChecksum = window.followingChecksum();
+                    followingProbe.hash(window.buffer(), window.offset() + blockSize, blockSize);
+                    following = PRESENT;
                 }
-            } catch (EOFException eof) {
-                searched(handler, targetLength, targetLength);
-                unmatched(handler, interimStart, targetLength);
-                return;
             }
+            return following == PRESENT && table.checksumEquals(index, followingChecksum)
+                    && followingProbe.matches(table, index);
         }
     }
 
@@ -189,76 +478,295 @@ public class BlockSearch {
      * @throws InterruptedException
      */
     public void zsyncSearch(DataInput basis, long basisLength, long targetLength, String digestAlgorithm, SearchHandler handler) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        zsyncSearch(source(basis), basisLength, targetLength, digestAlgorithm, handler);
+    }
+
+    /**
+     * Performs a zsync block search, exactly like
+     * {@link #zsyncSearch(DataInput, long, long, String, SearchHandler)}, on a
+     * basis file accessed through a {@link FileChannel}. The file is memory
+     * mapped in segments rather than read through streams, which is
+     * considerably cheaper for large local files. The channel's position is
+     * neither used nor modified.
+     *
+     * @param basis           channel for the local file used to build remote target
+     * @param targetLength    size of the file to construct in bytes, used to handle trailing content
+     * @param digestAlgorithm hash algorithm to use for block equality
+     * @param handler         the object that handles search output
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InterruptedException
+     */
+    public void zsyncSearch(FileChannel basis, long targetLength, String digestAlgorithm, SearchHandler handler)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        zsyncSearch(source(basis, 0), basis.size(), targetLength, digestAlgorithm, handler);
+    }
+
+    private void zsyncSearch(SearchWindow.Source basis, long basisLength, long targetLength, String digestAlgorithm, SearchHandler handler)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
 
         // Modifiable so we can eliminate matched blocks as we go
-        Map<FlyweightLong, Collection<BlockDesc>> blockTable = buildMatchTable(blockSummary);
-        FlyweightLong checksum = new FlyweightLong();
+        MatchTable blockTable = new MatchTable(blockSummary, checksumMask);
+        BitSet matched = new BitSet(blockTable.size());
 
-        SearchBuffer sb = new SearchBuffer(blockSize);
-        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        SearchWindow window = new SearchWindow(basis, basisLength, blockSize);
+        Verifier verifier = new Verifier(blockTable, digestAlgorithm);
 
         long matchedBlocks = 0;
 
         handler.searched(0);
 
+        // Test all block offsets, starting with first block
+        boolean more = window.load();
+        while (more && matchedBlocks < blockTable.size()) {
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            int status = window.seek(blockTable);
+            if (status == SearchWindow.REFILLED) {
+                searched(handler, window.position() + blockSize, basisLength);
+                continue;
+            } else if (status == SearchWindow.END) {
+                break;
+            }
+
+            boolean blockMatched = false;
+            int slot = blockTable.find(window.checksum());
+            if (slot >= 0) {
+                verifier.reset(window, window.position());
+                for (int pos = blockTable.start(slot); pos < blockTable.end(slot); ) {
+                    int index = blockTable.entry(pos);
+                    if (verifier.matches(index)) {
+                        handler.matched(window.position(), blockTable.block(index));
+                        blockTable.remove(slot, pos); // Match once and only once
+                        matched.set(index);
+                        matchedBlocks++; // So we can halt early, if possible
+                        verifier.matched(index, window.position() + blockSize);
+                        blockMatched = true;
+                    } else {
+                        pos++;
+                    }
+                }
+            }
+
+            searched(handler, window.position() + blockSize, basisLength);
+
+            // Advance through next block or to next offset, false at end-of-file
+            more = blockMatched ? window.skip() : window.next();
+        }
+
+        searched(handler, basisLength, basisLength);
+
+        // Scan block summary of target and notify handler of unmatched
+        for (int i = matched.nextClearBit(0); i < blockTable.size(); i = matched.nextClearBit(i + 1)) {
+            long blockOffset = blockTable.block(i).blockIndex * blockSize;
+            unmatched(handler, blockOffset, blockOffset + blockSize);
+        }
+
+        // Notify handler it needs target's trailing bytes, if any
+        unmatched(handler, blockTable.size() * (long) blockSize, targetLength);
+    }
+
+    /**
+     * Performs a zsync block search like
+     * {@link #zsyncSearch(FileChannel, long, String, SearchHandler)}, but
+     * splits the basis into segments and searches them concurrently using the
+     * specified executor. Segments overlap by one byte less than a block, so
+     * every offset is tested. Segment searches share a read-only index and
+     * claim blocks atomically, so each target block is still matched only
+     * once. When sequential matches are required, a segment's search can't
+     * know of a match ending where it starts, so the calling thread follows
+     * each segment's last match into the next segment itself. Handler
+     * methods are only called from the calling thread: matches are reported
+     * in basis byte order as segments complete, then unmatched content in
+     * order.
+     *
+     * @param basis           channel for the local file used to build remote target
+     * @param targetLength    size of the file to construct in bytes, used to handle trailing content
+     * @param digestAlgorithm hash algorithm to use for block equality
+     * @param handler         the object that handles search output
+     * @param executor        executes the segment searches
+     * @param segments        number of segments to split the basis into
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InterruptedException
+     */
+    public void zsyncSearch(FileChannel basis, long targetLength, String digestAlgorithm, SearchHandler handler,
+                            ExecutorService executor, int segments)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+        MatchTable blockTable = new MatchTable(blockSummary, checksumMask);
+        MatchClaims claims = new MatchClaims(blockTable);
+        BlockHasher.getInstance(digestAlgorithm); // Fail before submitting anything
+
+        long basisLength = basis.size();
+        int segmentCount = Math.max(segments, 1);
+        long segmentLength = Math.max(blockSize, (basisLength + segmentCount - 1) / segmentCount);
+
+        handler.searched(0);
+
+        Verifier verifier = seqMatches > 1 ? new Verifier(blockTable, digestAlgorithm) : null;
+        MatchList followed = new MatchList(); // Found by following matches across segments, in basis order
+        int nextFollowed = 0;
+        List<Future<ZsyncSegment>> results = new ArrayList<>();
         try {
-            // Load first block
-            byte[] blockBuf = new byte[blockSize];
-            basis.readFully(blockBuf);
-            sb.add(blockBuf);
+            for (long start = 0; start < basisLength; start += segmentLength) {
+                long end = Math.min(start + segmentLength, basisLength);
+                results.add(executor.submit(new ZsyncSegment(basis, start, end, blockTable, claims, digestAlgorithm)));
+            }
+            for (Future<ZsyncSegment> result : results) {
+                ZsyncSegment segment = result.get();
+                MatchList matches = segment.matches;
+                for (int i = 0; i < matches.size() || (nextFollowed < followed.size() && followed.offset(nextFollowed) < segment.end); ) {
+                    if (i < matches.size() && (nextFollowed == followed.size() || matches.offset(i) < followed.offset(nextFollowed))) {
+                        handler.matched(matches.offset(i), blockTable.block(matches.index(i)));
+                        i++;
+                    } else {
+                        handler.matched(followed.offset(nextFollowed), blockTable.block(followed.index(nextFollowed)));
+                        nextFollowed++;
+                    }
+                }
+                int last = matches.size() - 1;
+                if (verifier != null && last >= 0 && matches.offset(last) + blockSize >= segment.end) {
+                    follow(basis, matches.offset(last) + blockSize, matches.index(last), verifier, claims, followed);
+                }
+                searched(handler, segment.end, basisLength);
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            for (Future<ZsyncSegment> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        searched(handler, basisLength, basisLength);
+
+        // Scan block summary of target and notify handler of unmatched
+        for (int i = claims.nextUnclaimed(0); i < blockTable.size(); i = claims.nextUnclaimed(i + 1)) {
+            long blockOffset = blockTable.block(i).blockIndex * blockSize;
+            unmatched(handler, blockOffset, blockOffset + blockSize);
+        }
+
+        // Notify handler it needs target's trailing bytes, if any
+        unmatched(handler, blockTable.size() * (long) blockSize, targetLength);
+    }
+
+    /**
+     * Tests the blocks following a match in the summary at the offsets
+     * following it in the basis, as the serial search would after the match,
+     * for as long as they continue to match.
+     *
+     * @param offset where the match ended
+     * @param index  the index of the matched block
+     */
+    private void follow(FileChannel basis, long offset, int index, Verifier verifier, MatchClaims claims,
+                        MatchList followed) throws IOException {
+        MatchTable blockTable = verifier.table;
+        for (int next = index + 1; next < blockTable.size() && !claims.isClaimed(next); next++, offset += blockSize) {
+            long length = Math.min(blockSize + lookahead(), basis.size() - offset);
+            SearchWindow window = new SearchWindow(source(basis, offset), length, blockSize);
+            if (length < blockSize || !window.load() || !blockTable.checksumEquals(next, window.checksum())) {
+                return;
+            }
+            verifier.reset(window, offset);
+            verifier.matched(next - 1, offset);
+            if (!verifier.matches(next) || !claims.claim(blockTable.find(window.checksum()), next)) {
+                return;
+            }
+            followed.add(offset, next);
+        }
+    }
+
+    /**
+     * Searches the block offsets of one segment of a basis for a parallel
+     * zsync search, recording matches as (offset, block index) pairs.
+     */
+    private final class ZsyncSegment implements Callable<ZsyncSegment> {
+
+        private final FileChannel basis;
+        private final long start, end;
+        private final MatchTable blockTable;
+        private final MatchClaims claims;
+        private final String digestAlgorithm;
+        private final MatchList matches = new MatchList();
+
+        ZsyncSegment(FileChannel basis, long start, long end, MatchTable blockTable, MatchClaims claims,
+                      String digestAlgorithm) {
+            this.basis = basis;
+            this.start = start;
+            this.end = end;
+            this.blockTable = blockTable;
+            this.claims = claims;
+            this.digestAlgorithm = digestAlgorithm;
+        }
+
+        @Override
+        public ZsyncSegment call() throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+            Verifier verifier = new Verifier(blockTable, digestAlgorithm);
+
+            // Overlap the next segment so blocks starting in this one are whole
+            long length = Math.min(end - start + blockSize - 1 + lookahead(), basis.size() - start);
+            SearchWindow window = new SearchWindow(source(basis, start), length, blockSize);
 
-            // Test all block offsets, starting with first block
-            while (matchedBlocks < blockSummary.size()) {
+            boolean more = window.load();
+            while (more && !claims.complete()) {
 
                 if (Thread.interrupted()) {
                     throw new InterruptedException();
                 }
 
+                int status = window.seek(blockTable);
+                if (status == SearchWindow.REFILLED) {
+                    continue;
+                } else if (status == SearchWindow.END || start + window.position() >= end) {
+                    break;
+                }
+
+                long offset = start + window.position();
                 boolean blockMatched = false;
-                checksum.value = sb.checksum();
-                Collection<BlockDesc> candidates = checksumMatches(blockTable, checksum);
-                if (!candidates.isEmpty()) {
-                    byte[] contentHash = digest.digest(sb.getBlock(blockBuf));
-                    Iterator<BlockDesc> candidatesIter = candidates.iterator();
-                    while (candidatesIter.hasNext()) {
-                        BlockDesc candidate = candidatesIter.next();
-                        if (Arrays.equals(contentHash, candidate.cryptoHash)) {
-                            handler.matched(sb.position(), candidate);
-                            candidatesIter.remove(); // Match once and only once
-                            matchedBlocks++; // So we can halt early, if possible
+                int slot = blockTable.find(window.checksum());
+                if (slot >= 0 && !claims.exhausted(slot)) {
+                    verifier.reset(window, offset);
+                    for (int pos = blockTable.start(slot), runEnd = blockTable.end(slot); pos < runEnd; pos++) {
+                        int index = blockTable.entry(pos);
+                        if (!claims.isClaimed(index)
+                                && verifier.matches(index)
+                                && claims.claim(slot, index)) {
+                            matches.add(offset, index);
+                            verifier.matched(index, offset + blockSize);
                             blockMatched = true;
                         }
                     }
                 }
 
-                searched(handler, sb.position() + sb.length(), basisLength);
-
-                if (blockMatched) {
-                    // Advance through next block, throws at end-of-file
-                    basis.readFully(blockBuf);
-                    sb.add(blockBuf);
-                } else {
-                    // Advance to next offset, throws at end-of-file
-                    sb.add(basis.readByte());
-                }
+                more = blockMatched ? window.skip() : window.next();
             }
 
-        } catch (EOFException eof) {
-            searched(handler, basisLength, basisLength);
+            return this;
         }
+    }
 
-        // Scan block summary of target and notify handler of unmatched
-        // Avoids O(n) when every block has same content by using sets
-        for (BlockDesc d : blockSummary) {
-            checksum.value = d.weakChecksum;
-            if (checksumMatches(blockTable, checksum).contains(d)) {
-                long blockOffset = d.blockIndex * blockSize;
-                unmatched(handler, blockOffset, blockOffset + blockSize);
-            }
+    /**
+     * Rethrows the cause of a failed segment search as thrown by the search.
+     */
+    private static IOException rethrow(ExecutionException e)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
         }
-
-        // Notify handler it needs target's trailing bytes, if any
-        unmatched(handler, blockSummary.size() * blockSize, targetLength);
+        throw new RuntimeException(cause);
     }
 }
-
@@ -0,0 +1,219 @@
+package com.github.batkinson.jrsync;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact list of block descriptors. Rather than an object and a hash array
+ * per block, checksums are stored in a single int array and hashes are packed
+ * back-to-back into a single long array, laid out as {@link MatchTable}
+ * compares them, so searches use them in place. Descriptors are only created
+ * when elements are accessed, as views of the packed data.
+ *
+ * Chunked metadata also keeps each chunk's offset and length, and its
+ * descriptors are {@link ChunkDesc}s.
+ */
+public final class BlockSums extends AbstractList<BlockDesc> implements RandomAccess, BlockRecords {
+
+    private final int hashLength;
+    private final int hashWords;
+    private final boolean chunked;
+    private int size;
+    private int[] checksums;
+    private long[] hashes;
+    private long[] offsets;
+    private int[] lengths;
+
+    private BlockSums(int hashLength, int capacity, boolean chunked) {
+        this.hashLength = hashLength;
+        this.hashWords = MatchTable.words(hashLength);
+        this.chunked = chunked;
+        capacity = Math.max(capacity, 1);
+        checksums = new int[capacity];
+        hashes = new long[capacity * hashWords];
+        if (chunked) {
+            offsets = new long[capacity];
+            lengths = new int[capacity];
+        }
+    }
+
+    /**
+     * Creates an empty list of blocks.
+     *
+     * @param hashLength the length of every block's hash
+     * @param capacity   the number of blocks expected
+     */
+    public static BlockSums blocks(int hashLength, int capacity) {
+        return new BlockSums(hashLength, capacity, false);
+    }
+
+    /**
+     * Creates an empty list of chunks, see {@link ChunkDesc}.
+     *
+     * @param hashLength the length of every chunk's hash
+     * @param capacity   the number of chunks expected
+     */
+    public static BlockSums chunks(int hashLength, int capacity) {
+        return new BlockSums(hashLength, capacity, true);
+    }
+
+    /**
+     * Returns the records of the specified descriptors, packing them in
+     * compact form unless they already are. Hashes must all be the same
+     * length.
+     */
+    static BlockRecords of(List<BlockDesc> blocks) {
+        return of(blocks, null);
+    }
+
+    /**
+     * Returns the records of the specified descriptors like
+     * {@link #of(List)}, but tolerates hashes that differ in length from the
+     * first one. Those blocks are recorded with an empty hash and their
+     * indices set in the specified set, since they can never match.
+     */
+    static BlockRecords of(List<BlockDesc> blocks, BitSet mismatched) {
+        if (blocks instanceof BlockRecords) {
+            return (BlockRecords) blocks;
+        }
+        int hashLength = blocks.isEmpty() ? 0 : blocks.get(0).cryptoHash.length;
+        boolean chunked = !blocks.isEmpty() && blocks.get(0) instanceof ChunkDesc;
+        BlockSums result = new BlockSums(hashLength, blocks.size(), chunked);
+        for (BlockDesc block : blocks) {
+            byte[] hash = block.cryptoHash;
+            if (mismatched != null && hash.length != hashLength) {
+                mismatched.set(result.size);
+                hash = new byte[hashLength];
+            }
+            if (chunked) {
+                ChunkDesc chunk = (ChunkDesc) block;
+                result.addChunk(chunk.offset, chunk.length, hash);
+            } else {
+                result.add(block.weakChecksum, hash);
+            }
+        }
+        return result;
+    }
+
+    private void grow() {
+        if (size == checksums.length) {
+            int capacity = size * 2;
+            checksums = Arrays.copyOf(checksums, capacity);
+            hashes = Arrays.copyOf(hashes, capacity * hashWords);
+            if (chunked) {
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+        }
+    }
+
+    private void addHash(byte[] hash) {
+        if (hash.length != hashLength) {
+            throw new IllegalArgumentException("block hashes differ in length");
+        }
+        MatchTable.pack(hash, hashLength, hashes, size * hashWords);
+    }
+
+    /**
+     * Adds the next block.
+     */
+    public void add(long checksum, byte[] hash) {
+        if (chunked) {
+            throw new IllegalStateException("chunks must be added with their lengths");
+        }
+        grow();
+        addHash(hash);
+        checksums[size++] = (int) checksum;
+    }
+
+    /**
+     * Adds the next chunk, which directly follows the previous one.
+     */
+    public void addChunk(int length, byte[] hash) {
+        if (!chunked) {
+            throw new IllegalStateException("blocks have no lengths");
+        }
+        addChunk(size == 0 ? 0 : offsets[size - 1] + lengths[size - 1], length, hash);
+    }
+
+    private void addChunk(long offset, int length, byte[] hash) {
+        grow();
+        addHash(hash);
+        checksums[size] = (int) ChunkDesc.checksum(hash, hash.length);
+        offsets[size] = offset;
+        lengths[size++] = length;
+    }
+
+    /**
+     * Releases capacity beyond the current size.
+     */
+    public void trimToSize() {
+        if (size == checksums.length) {
+            return;
+        }
+        checksums = Arrays.copyOf(checksums, size);
+        hashes = Arrays.copyOf(hashes, size * hashWords);
+        if (chunked) {
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public BlockDesc get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return chunked
+                ? new ChunkDesc(index, offsets[index], lengths[index], hash(index))
+                : new BlockDesc(index, checksum(index), hash(index));
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    @Override
+    public long checksum(int index) {
+        return checksums[index] & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public int length(int index, int blockSize) {
+        return chunked ? lengths[index] : blockSize;
+    }
+
+    /**
+     * Unpacks the hash of the specified block.
+     */
+    public byte[] hash(int index) {
+        byte[] hash = new byte[hashLength];
+        for (int i = 0, offset = index * hashWords; i < hashLength; i++) {
+            hash[i] = (byte) (hashes[offset + (i >>> 3)] >>> (56 - ((i & 7) << 3)));
+        }
+        return hash;
+    }
+
+    @Override
+    public int hashLength() {
+        return hashLength;
+    }
+
+    @Override
+    public boolean hashEquals(int index, long[] packed) {
+        for (int w = 0, offset = index * hashWords; w < hashWords; w++) {
+            if (hashes[offset + w] != packed[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.batkinson.jrsync;
+
+/**
+ * Describes a content-defined chunk of a file, see {@link ChunkSearch}.
+ * Chunks have no rolling checksum. Instead, the leading bytes of the hash
+ * stand in for it, so chunks can be indexed like blocks.
+ */
+public class ChunkDesc extends BlockDesc {
+
+    final long offset;
+    final int length;
+
+    public ChunkDesc(long chunkIndex, long offset, int length, byte[] cryptoHash) {
+        super(chunkIndex, checksum(cryptoHash, cryptoHash.length), cryptoHash);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * The leading 4 bytes of the specified hash, zero padded if shorter.
+     */
+    static long checksum(byte[] hash, int length) {
+        long checksum = 0;
+        for (int i = 0; i < 4; i++) {
+            checksum = (checksum << 8) | (i < length ? hash[i] & 0xFF : 0);
+        }
+        return checksum;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public long getOffset(int blockSize) {
+        return offset;
+    }
+
+    @Override
+    public int getLength(int blockSize) {
+        return length;
+    }
+}
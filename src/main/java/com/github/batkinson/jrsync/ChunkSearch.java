@@ -0,0 +1,128 @@
+package com.github.batkinson.jrsync;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.github.batkinson.jrsync.SearchWindow.source;
+
+/**
+ * Searches a basis file for the content-defined chunks of a target file, as
+ * described by chunked {@link Metadata}. Unlike {@link BlockSearch}, there is
+ * no rolling search: the basis is cut into chunks the same way the target
+ * was, which only depends on content, and each chunk is hashed once and
+ * looked up. Content shifted by insertions or deletions still chunks the same
+ * way, apart from the chunks around the edit.
+ */
+public class ChunkSearch {
+
+    private final List<BlockDesc> chunks;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+
+    /**
+     * Creates a search for the specified target chunks, which must have been
+     * chunked using the specified sizes.
+     */
+    public ChunkSearch(List<BlockDesc> chunks, int minSize, int avgSize, int maxSize) {
+        new Chunker(minSize, avgSize, maxSize); // Validates sizes
+        this.chunks = chunks;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Performs the search. Like a zsync search, each target chunk is matched
+     * at most once, matches are reported in basis byte order and unmatched
+     * chunks are reported afterwards, in target byte order.
+     */
+    public void search(FileChannel basis, String digestAlgorithm, SearchHandler handler)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+        // Modifiable so we can eliminate matched chunks as we go
+        MatchTable chunkTable = new MatchTable(chunks);
+        BitSet matched = new BitSet(chunkTable.size());
+        HashProbe probe = new HashProbe(BlockHasher.getInstance(digestAlgorithm), chunkTable);
+        Chunker chunker = new Chunker(minSize, avgSize, maxSize);
+
+        SearchWindow.Source source = source(basis, 0);
+        long basisLength = basis.size(), base = 0;
+        byte[] buf = new byte[maxSize + SearchWindow.CHUNK_SIZE];
+        int start = 0, scanned = 0, limit = 0, read;
+
+        handler.searched(0);
+
+        while (true) {
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (scanned == limit) {
+                // Keep the current chunk, which always fits, and read more after it
+                System.arraycopy(buf, start, buf, 0, limit - start);
+                base += start;
+                scanned -= start;
+                limit -= start;
+                start = 0;
+                if ((read = source.read(buf, limit, buf.length - limit)) < 0) {
+                    break;
+                }
+                limit += read;
+                searched(handler, base, basisLength);
+                continue;
+            }
+
+            int length = chunker.scan(buf, scanned, limit - scanned);
+            if (length < 0) {
+                scanned = limit;
+                continue;
+            }
+            scanned += length;
+            match(chunkTable, matched, probe, handler, base + start, buf, start, scanned - start);
+            start = scanned;
+        }
+
+        // The last chunk ends with the basis
+        if (scanned > start) {
+            match(chunkTable, matched, probe, handler, base + start, buf, start, scanned - start);
+        }
+
+        searched(handler, basisLength, basisLength);
+
+        for (int i = matched.nextClearBit(0); i < chunkTable.size(); i = matched.nextClearBit(i + 1)) {
+            BlockDesc chunk = chunkTable.block(i);
+            long offset = chunk.getOffset(avgSize);
+            handler.unmatched(offset, offset + chunk.getLength(avgSize));
+        }
+    }
+
+    /**
+     * Matches all unmatched target chunks with the content of a basis chunk.
+     */
+    private void match(MatchTable chunkTable, BitSet matched, HashProbe probe, SearchHandler handler,
+                       long offset, byte[] buf, int start, int length) throws IOException {
+        probe.hash(buf, start, length);
+        int slot = chunkTable.find(probe.chunkChecksum());
+        if (slot >= 0) {
+            for (int pos = chunkTable.start(slot); pos < chunkTable.end(slot); ) {
+                int index = chunkTable.entry(pos);
+                if (chunkTable.length(index, avgSize) == length && probe.matches(chunkTable, index)) {
+                    handler.matched(offset, chunkTable.block(index));
+                    chunkTable.remove(slot, pos); // Match once and only once
+                    matched.set(index);
+                } else {
+                    pos++;
+                }
+            }
+        }
+    }
+
+    private void searched(SearchHandler handler, long filePos, long fileLength) throws IOException {
+        handler.searched((int) ((double) filePos / (fileLength == 0 ? 1 : fileLength) * 100));
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.batkinson.jrsync;
+
+/**
+ * Finds content-defined chunk boundaries using FastCDC's gear hash. A chunk
+ * ends where the hash of the bytes preceding it has its top bits clear, so
+ * boundaries move with the content rather than staying at fixed offsets: an
+ * insertion only changes the chunks around it.
+ *
+ * As with FastCDC, the first minimum size bytes of each chunk are skipped
+ * rather than hashed, and chunking is normalized by requiring more clear bits
+ * before the average size than after it, which narrows the spread of chunk
+ * sizes. Chunks never exceed the maximum size.
+ */
+final class Chunker {
+
+    /**
+     * Chunking follows the description in METADATA.md, so this table must
+     * never change: it is 256 successive outputs of SplitMix64 seeded with 0.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+    private long hash;
+    private int length;
+
+    Chunker(int minSize, int avgSize, int maxSize) {
+        if (minSize < 0 || minSize > avgSize || avgSize > maxSize || minSize >= maxSize) {
+            throw new IllegalArgumentException(
+                    "chunk sizes must satisfy 0 <= min <= average <= max, min < max: " + minSize + ", " + avgSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        this.smallMask = topBits(bits + 2);
+        this.largeMask = topBits(Math.max(bits - 2, 0));
+    }
+
+    /**
+     * A mask of the specified number of high bits. Since each byte shifts the
+     * gear hash left, only the high bits depend on a useful window of bytes.
+     */
+    private static long topBits(int count) {
+        return count == 0 ? 0 : -1L << (64 - count);
+    }
+
+    /**
+     * Scans the next bytes of the content for the end of the current chunk.
+     *
+     * @return the number of bytes scanned, up to and including the last byte
+     * of the chunk, or -1 if the chunk continues past the specified bytes
+     */
+    int scan(byte[] buf, int offset, int count) {
+        long hash = this.hash;
+        int length = this.length, i = offset, end = offset + count;
+        while (i < end) {
+            if (length < minSize) {
+                int skipped = Math.min(end - i, minSize - length);
+                i += skipped;
+                length += skipped;
+                continue;
+            }
+            hash = (hash << 1) + GEAR[buf[i++] & 0xFF];
+            length++;
+            if ((hash & (length <= avgSize ? smallMask : largeMask)) == 0 || length >= maxSize) {
+                reset();
+                return i - offset;
+            }
+        }
+        this.hash = hash;
+        this.length = length;
+        return -1;
+    }
+
+    /**
+     * Adds the next byte of the content.
+     *
+     * @return true if the byte ends the current chunk
+     */
+    boolean update(byte b) {
+        length++;
+        if (length > minSize) {
+            hash = (hash << 1) + GEAR[b & 0xFF];
+            if ((hash & (length <= avgSize ? smallMask : largeMask)) == 0 || length >= maxSize) {
+                reset();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of bytes of the current chunk scanned so far.
+     */
+    int length() {
+        return length;
+    }
+
+    void reset() {
+        hash = 0;
+        length = 0;
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.batkinson.jrsync;
+
+/**
+ * Computes the strong hash of candidate blocks for comparison against a
+ * {@link MatchTable}. The hash is written into a reusable buffer and packed
+ * into reusable words, so verifying a weak checksum hit allocates nothing,
+ * however often the weak checksum collides.
+ */
+final class HashProbe {
+
+    private final BlockHasher hasher;
+    private final byte[] hash;
+    private final int hashLength;
+    private final long[] packed;
+
+    /**
+     * Creates a probe for the specified table, comparing as many bytes of
+     * each hash as the table holds, since its hashes may be truncated.
+     */
+    HashProbe(BlockHasher hasher, MatchTable table) {
+        this.hasher = hasher;
+        this.hash = new byte[hasher.getLength()];
+        this.hashLength = Math.min(table.hashLength(), hash.length);
+        this.packed = new long[MatchTable.words(hashLength)];
+    }
+
+    /**
+     * Hashes the specified range, replacing the previously probed hash.
+     */
+    void hash(byte[] buf, int offset, int length) {
+        hasher.hash(buf, offset, length, hash, 0);
+        MatchTable.pack(hash, hashLength, packed, 0);
+    }
+
+    /**
+     * The leading bytes of the last probed hash, which stand in for the
+     * checksum of chunks, see {@link ChunkDesc}.
+     */
+    long chunkChecksum() {
+        return ChunkDesc.checksum(hash, hashLength);
+    }
+
+    /**
+     * Tests whether the last probed hash matches the specified block's.
+     */
+    boolean matches(MatchTable table, int index) {
+        return hashLength == table.hashLength() && table.hashEquals(index, packed);
+    }
+}
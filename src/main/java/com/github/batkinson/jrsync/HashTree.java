@@ -0,0 +1,281 @@
+package com.github.batkinson.jrsync;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A hash tree over the full-length hashes of a file's blocks, or chunks. Each
+ * leaf hashes the concatenated hashes of a span of consecutive blocks,
+ * including the final partial block, and each node above hashes the
+ * concatenation of its two children. A node without a sibling, at the end of
+ * a level, is carried up unchanged. All nodes are hashed with the block hash
+ * algorithm and kept at its full length.
+ *
+ * Since a node's hash depends on every block below it, two trees can be
+ * compared from their roots down, descending only into nodes that differ, to
+ * find the regions of two versions that differ without searching them. Each
+ * leaf also verifies its span of content on its own, see
+ * {@link #verifyLeaf(int, byte[])}.
+ */
+public final class HashTree {
+
+    private final int hashLength;
+    private final int leafSpan;
+    private final int[] levelStart;
+    private final byte[] nodes;
+
+    private HashTree(int hashLength, int leafSpan, int leafCount) {
+        if (leafCount <= 0) {
+            throw new IllegalArgumentException("hash trees need at least one leaf: " + leafCount);
+        }
+        this.hashLength = hashLength;
+        this.leafSpan = leafSpan;
+        int levels = 1;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        levelStart = new int[levels + 1];
+        for (int level = 0, size = leafCount; level < levels; level++, size = (size + 1) / 2) {
+            levelStart[level + 1] = levelStart[level] + size;
+        }
+        nodes = new byte[levelStart[levels] * hashLength];
+    }
+
+    /**
+     * The number of nodes in a tree with the specified number of leaves.
+     */
+    static long nodeCount(long leafCount) {
+        long count = leafCount;
+        for (long size = leafCount; size > 1; size = (size + 1) / 2) {
+            count += (size + 1) / 2;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a tree stored as {@link #nodes()}.
+     */
+    static HashTree read(DataInput in, int hashLength, int leafSpan, int leafCount) throws IOException {
+        HashTree tree = new HashTree(hashLength, leafSpan, leafCount);
+        in.readFully(tree.nodes);
+        return tree;
+    }
+
+    /**
+     * Every node, from the leaves up, as the tree is stored.
+     */
+    ByteBuffer nodes() {
+        return ByteBuffer.wrap(nodes).asReadOnlyBuffer();
+    }
+
+    /**
+     * The number of blocks, or chunks, each leaf covers.
+     */
+    public int getLeafSpan() {
+        return leafSpan;
+    }
+
+    public int getLeafCount() {
+        return levelStart[1];
+    }
+
+    /**
+     * The number of levels, including the leaves and the root.
+     */
+    public int getLevels() {
+        return levelStart.length - 1;
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    /**
+     * The number of nodes on the specified level, 0 being the leaves.
+     */
+    public int getLevelSize(int level) {
+        return levelStart[level + 1] - levelStart[level];
+    }
+
+    public byte[] getNode(int level, int index) {
+        if (index < 0 || index >= getLevelSize(level)) {
+            throw new IndexOutOfBoundsException("level " + level + ", index " + index);
+        }
+        int offset = (levelStart[level] + index) * hashLength;
+        return Arrays.copyOfRange(nodes, offset, offset + hashLength);
+    }
+
+    public byte[] getLeaf(int index) {
+        return getNode(0, index);
+    }
+
+    public byte[] getRoot() {
+        return getNode(getLevels() - 1, 0);
+    }
+
+    /**
+     * Tests whether two trees describe the same content, by their roots.
+     */
+    public boolean rootEquals(HashTree other) {
+        return hashLength == other.hashLength && leafSpan == other.leafSpan
+                && nodeEquals(getLevels() - 1, 0, other, other.getLevels() - 1);
+    }
+
+    private boolean nodeEquals(int level, int index, HashTree other, int otherLevel) {
+        int offset = (levelStart[level] + index) * hashLength;
+        int otherOffset = (other.levelStart[otherLevel] + index) * hashLength;
+        for (int i = 0; i < hashLength; i++) {
+            if (nodes[offset + i] != other.nodes[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a span of content as a leaf of block metadata would, from the
+     * full-length hashes of its blocks.
+     *
+     * @param blockSize the length of every block but the last, which ends
+     *                  with the span
+     */
+    public static byte[] leafHash(BlockHasher hasher, byte[] content, int offset, int length, int blockSize) {
+        int blocks = (length + blockSize - 1) / blockSize;
+        byte[] hashes = new byte[blocks * hasher.getLength()];
+        for (int i = 0; i < blocks; i++) {
+            int start = offset + i * blockSize;
+            hasher.hash(content, start, Math.min(blockSize, offset + length - start), hashes, i * hasher.getLength());
+        }
+        return hasher.hash(hashes, 0, hashes.length);
+    }
+
+    /**
+     * Tests whether the hash of a leaf's span of content, such as computed
+     * by {@link #leafHash(BlockHasher, byte[], int, int, int)}, matches the
+     * tree.
+     */
+    public boolean verifyLeaf(int index, byte[] hash) {
+        return Arrays.equals(getLeaf(index), hash);
+    }
+
+    /**
+     * Finds the leaves whose content differs from another tree's leaf at the
+     * same index, or that the other tree lacks. Nodes that cover the same
+     * leaves in both trees and have the same hash are skipped along with
+     * everything below them, so a few differences are found in time
+     * proportional to the depth of the tree rather than its size.
+     *
+     * @return the indices of the differing leaves of this tree
+     * @throws IllegalArgumentException if the trees have different leaf
+     *                                  spans or hash lengths
+     */
+    public BitSet diff(HashTree other) {
+        if (hashLength != other.hashLength || leafSpan != other.leafSpan) {
+            throw new IllegalArgumentException("trees with different leaf spans or hash lengths can't be compared");
+        }
+        BitSet result = new BitSet(getLeafCount());
+        diff(Math.max(getLevels(), other.getLevels()) - 1, 0, other, result);
+        return result;
+    }
+
+    private void diff(int level, int index, HashTree other, BitSet result) {
+        long first = (long) index << level, end = (long) (index + 1) << level;
+        int leaves = getLeafCount(), otherLeaves = other.getLeafCount();
+        if (first >= leaves) {
+            return;
+        }
+        if (first >= otherLeaves) {
+            result.set((int) first, (int) Math.min(end, leaves)); // Beyond the other tree's content
+            return;
+        }
+        // Nodes only describe the same leaves when neither tree ends within them differently
+        boolean comparable = Math.min(end, leaves) == Math.min(end, otherLeaves)
+                && level < getLevels() && level < other.getLevels();
+        if (comparable && nodeEquals(level, index, other, level)) {
+            return;
+        }
+        if (level == 0) {
+            result.set(index);
+            return;
+        }
+        diff(level - 1, index * 2, other, result);
+        diff(level - 1, index * 2 + 1, other, result);
+    }
+
+    /**
+     * Builds a tree from block hashes, in order.
+     */
+    static final class Builder {
+
+        private final BlockHasher hasher;
+        private final int leafSpan;
+        private final int hashLength;
+        private final byte[] span;
+        private int spanCount;
+        private byte[] leaves;
+        private int leafCount;
+
+        Builder(BlockHasher hasher, int leafSpan) {
+            if (leafSpan < 1) {
+                throw new IllegalArgumentException("leaves must span at least one block: " + leafSpan);
+            }
+            this.hasher = hasher;
+            this.leafSpan = leafSpan;
+            this.hashLength = hasher.getLength();
+            span = new byte[leafSpan * hashLength];
+            leaves = new byte[16 * hashLength];
+        }
+
+        /**
+         * Adds the full-length hash of the next block.
+         */
+        void add(byte[] hash) {
+            System.arraycopy(hash, 0, span, spanCount++ * hashLength, hashLength);
+            if (spanCount == leafSpan) {
+                addLeaf();
+            }
+        }
+
+        private void addLeaf() {
+            if ((leafCount + 1) * hashLength > leaves.length) {
+                leaves = Arrays.copyOf(leaves, leaves.length * 2);
+            }
+            hasher.hash(span, 0, spanCount * hashLength, leaves, leafCount++ * hashLength);
+            spanCount = 0;
+        }
+
+        /**
+         * Completes the tree, the last leaf ending with the last block added.
+         *
+         * @return the tree, or null if no blocks were added
+         */
+        HashTree build() {
+            if (spanCount > 0) {
+                addLeaf();
+            }
+            if (leafCount == 0) {
+                return null;
+            }
+            HashTree tree = new HashTree(hashLength, leafSpan, leafCount);
+            System.arraycopy(leaves, 0, tree.nodes, 0, leafCount * hashLength);
+            byte[] pair = new byte[hashLength * 2];
+            for (int level = 1; level < tree.getLevels(); level++) {
+                int below = tree.levelStart[level - 1], belowSize = tree.getLevelSize(level - 1);
+                for (int i = 0; i < tree.getLevelSize(level); i++) {
+                    int left = (below + i * 2) * hashLength, target = (tree.levelStart[level] + i) * hashLength;
+                    if (i * 2 + 1 < belowSize) {
+                        System.arraycopy(tree.nodes, left, pair, 0, hashLength * 2);
+                        hasher.hash(pair, 0, pair.length, tree.nodes, target);
+                    } else {
+                        System.arraycopy(tree.nodes, left, tree.nodes, target, hashLength);
+                    }
+                }
+            }
+            leafCount = 0;
+            return tree;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.batkinson.jrsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * The block records of a metadata file, decoded from a memory mapping of the
+ * file only as they are accessed. Records have a fixed length, so any one of
+ * them can be found directly from its index. Mappings are limited to 2GB, so
+ * large files are mapped in several segments, each a whole number of records.
+ *
+ * As a list, this is limited to 2^31 - 1 blocks, but {@link #count()} and
+ * {@link #get(long)} reach every block.
+ */
+final class MappedBlocks extends AbstractList<BlockDesc> implements RandomAccess, BlockRecords {
+
+    private final ByteBuffer[] segments;
+    private final long segmentRecords;
+    private final int checksumLength;
+    private final int hashLength;
+    private final int stride;
+    private final long count;
+
+    /**
+     * Maps the records of a file.
+     *
+     * @param channel        the metadata file
+     * @param position       the position of the first record
+     * @param count          the number of records
+     * @param checksumLength the length of each record's checksum
+     * @param hashLength     the length of each record's hash
+     */
+    MappedBlocks(FileChannel channel, long position, long count, int checksumLength, int hashLength) throws IOException {
+        this(channel, position, count, checksumLength, hashLength, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As above, but with a limit on the size of each mapping, so segments can
+     * be tested without huge files.
+     */
+    MappedBlocks(FileChannel channel, long position, long count, int checksumLength, int hashLength, int maxSegment)
+            throws IOException {
+        this.checksumLength = checksumLength;
+        this.hashLength = hashLength;
+        this.stride = checksumLength + hashLength;
+        this.count = count;
+        segmentRecords = Math.max(maxSegment / stride, 1);
+        segments = new ByteBuffer[(int) ((count + segmentRecords - 1) / segmentRecords)];
+        for (int i = 0; i < segments.length; i++) {
+            long records = Math.min(segmentRecords, count - i * segmentRecords);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + i * segmentRecords * stride, records * stride);
+        }
+    }
+
+    /**
+     * The number of blocks.
+     */
+    long count() {
+        return count;
+    }
+
+    @Override
+    public int size() {
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many blocks for a list: " + count);
+        }
+        return (int) count;
+    }
+
+    private ByteBuffer segment(long index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + count);
+        }
+        return segments[(int) (index / segmentRecords)];
+    }
+
+    private int position(long index) {
+        return (int) (index % segmentRecords) * stride;
+    }
+
+    long checksum(long index) {
+        ByteBuffer segment = segment(index);
+        int pos = position(index);
+        if (checksumLength == 4) {
+            return segment.getInt(pos) & 0xFFFFFFFFL;
+        }
+        long checksum = (long) (segment.getShort(pos) & 0xFFFF) << 16;
+        if (checksumLength == 3) {
+            checksum |= segment.get(pos + 2) & 0xFF;
+        }
+        return checksum;
+    }
+
+    byte[] hash(long index) {
+        ByteBuffer segment = segment(index);
+        byte[] hash = new byte[hashLength];
+        for (int i = 0, pos = position(index) + checksumLength; i < hashLength; i++) {
+            hash[i] = segment.get(pos + i);
+        }
+        return hash;
+    }
+
+    BlockDesc get(long index) {
+        return new BlockDesc(index, checksum(index), hash(index));
+    }
+
+    @Override
+    public BlockDesc get(int index) {
+        return get((long) index);
+    }
+
+    @Override
+    public long checksum(int index) {
+        return checksum((long) index);
+    }
+
+    @Override
+    public int hashLength() {
+        return hashLength;
+    }
+
+    @Override
+    public boolean hashEquals(int index, long[] packed) {
+        ByteBuffer segment = segment(index);
+        int pos = position(index) + checksumLength;
+        for (int w = 0; w * 8 < hashLength; w++) {
+            long word = 0;
+            for (int i = w * 8; i < w * 8 + 8; i++) {
+                word = (word << 8) | (i < hashLength ? segment.get(pos + i) & 0xFF : 0);
+            }
+            if (word != packed[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length(int index, int blockSize) {
+        return blockSize;
+    }
+}
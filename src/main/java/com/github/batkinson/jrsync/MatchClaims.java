@@ -0,0 +1,81 @@
+package com.github.batkinson.jrsync;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which blocks of a {@link MatchTable} have been matched, so that
+ * concurrent searches can share a single read-only table and still match
+ * each block only once. It also counts claims per checksum run, standing in
+ * for {@link MatchTable#remove(int, int)}, so runs of repeated content can be
+ * skipped once all of their blocks are claimed.
+ */
+class MatchClaims {
+
+    private final MatchTable table;
+    private final AtomicLongArray claimed;
+    private final AtomicIntegerArray runClaims;
+    private final AtomicInteger count = new AtomicInteger();
+
+    MatchClaims(MatchTable table) {
+        this.table = table;
+        claimed = new AtomicLongArray((table.size() + 63) >>> 6);
+        runClaims = new AtomicIntegerArray(table.size());
+    }
+
+    /**
+     * Returns whether every block in the slot's run has been claimed.
+     */
+    boolean exhausted(int slot) {
+        int start = table.start(slot);
+        return runClaims.get(start) >= table.end(slot) - start;
+    }
+
+    boolean isClaimed(int index) {
+        return (claimed.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Atomically claims the block at the specified index, which must belong
+     * to the specified slot's run.
+     *
+     * @return true if the block was claimed by this call, false if it was
+     * already claimed
+     */
+    boolean claim(int slot, int index) {
+        int word = index >>> 6;
+        long bit = 1L << index, bits;
+        do {
+            bits = claimed.get(word);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(word, bits, bits | bit));
+        runClaims.incrementAndGet(table.start(slot));
+        count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns whether every block in the table has been claimed.
+     */
+    boolean complete() {
+        return count.get() >= table.size();
+    }
+
+    /**
+     * Returns the index of the first unclaimed block at or after the
+     * specified index, or the table size if there is none.
+     */
+    int nextUnclaimed(int from) {
+        for (int i = from; i < table.size(); i++) {
+            if ((i & 63) == 0 && claimed.get(i >>> 6) == -1L) {
+                i += 63;
+            } else if (!isClaimed(i)) {
+                return i;
+            }
+        }
+        return table.size();
+    }
+}
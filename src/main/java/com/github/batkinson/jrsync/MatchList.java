@@ -0,0 +1,37 @@
+package com.github.batkinson.jrsync;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of matches, recorded as (offset, block index) pairs in
+ * primitive arrays, used to pass the results of segment searches back to
+ * the thread that reports them.
+ */
+final class MatchList {
+
+    private long[] offsets = new long[16];
+    private int[] indices = new int[16];
+    private int size;
+
+    void add(long offset, int index) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            indices = Arrays.copyOf(indices, size * 2);
+        }
+        offsets[size] = offset;
+        indices[size] = index;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long offset(int i) {
+        return offsets[i];
+    }
+
+    int index(int i) {
+        return indices[i];
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.batkinson.jrsync;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index of block descriptors keyed by weak checksum. Rather than a map of
+ * boxed keys to collections, descriptors sharing a checksum are stored in
+ * contiguous runs of a single array and located using an open-addressed table
+ * of primitives. Lookups allocate nothing and typically touch a single cache
+ * line, which matters since the worst case performs a lookup for every byte of
+ * the searched file.
+ *
+ * Since most offsets of a searched file usually match nothing, the table also
+ * keeps a bitmap of checksum tags, like rsync's 16-bit tag table. It is small
+ * enough to stay cache-resident, so {@link #mightContain(long)} rejects most
+ * misses without touching the table itself.
+ *
+ * Strong hashes are also packed into a single array of longs, so verifying a
+ * candidate with a {@link HashProbe} compares a few words in place rather
+ * than chasing a descriptor and its hash array. Blocks already in the compact
+ * form of {@link BlockSums}, or mapped from metadata, are used as they are.
+ * Other lists are packed into that form, but their descriptors are still the
+ * ones handed out, so their indices, and any subclass, are preserved. Blocks
+ * whose hashes differ in length from the first never match, as before.
+ */
+class MatchTable {
+
+    private static final int EMPTY = -1;
+
+    // Slots are stored inline as (checksum, run start, run length) triples
+    private static final int STRIDE = 3;
+    private static final int KEY = 0, START = 1, COUNT = 2;
+
+    // Tag bitmap sized to keep it sparse, between 64K bits (8KB) and 8M bits (1MB)
+    private static final int MIN_TAG_BITS = 16, MAX_TAG_BITS = 23, TAG_DENSITY = 8;
+
+    private final long checksumMask;
+    private final BlockRecords sums;
+    private final List<BlockDesc> blocks; // Unless the sums are the blocks
+    private final BitSet mismatched; // Blocks with hashes of another length
+    private final int[] entries;
+    private final int[] slots;
+    private final int mask;
+    private final long[] tags;
+    private final int tagShift;
+
+    MatchTable(List<BlockDesc> blockList) {
+        this(blockList, 0xFFFFFFFFL);
+    }
+
+    /**
+     * Creates a table for blocks whose checksums were truncated. Checksums are
+     * masked before they are stored or looked up, so searches can pass full
+     * checksums.
+     *
+     * @param checksumMask the mask for the kept bits, see {@link RollingChecksum#mask(int)}
+     */
+    MatchTable(List<BlockDesc> blockList, long checksumMask) {
+
+        this.checksumMask = checksumMask;
+        if (blockList == null) {
+            blockList = Collections.emptyList();
+        }
+        if (blockList instanceof BlockRecords) {
+            sums = (BlockRecords) blockList;
+            blocks = null;
+            mismatched = null;
+        } else {
+            mismatched = new BitSet();
+            sums = BlockSums.of(blockList, mismatched);
+            blocks = blockList;
+        }
+        int size = sums.size();
+        entries = new int[size];
+
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        slots = new int[capacity * STRIDE];
+        for (int s = 0; s < capacity; s++) {
+            slots[s * STRIDE + START] = EMPTY;
+        }
+
+        int tagBits = MIN_TAG_BITS;
+        while (tagBits < MAX_TAG_BITS && (1L << tagBits) < (long) size * TAG_DENSITY) {
+            tagBits++;
+        }
+        tags = new long[1 << (tagBits - 6)];
+        tagShift = 32 - tagBits;
+
+        // Count the blocks for each checksum, remembering the slot of each
+        int[] blockSlots = new int[size];
+        for (int i = 0; i < size; i++) {
+            int key = key(sums.checksum(i)), tag = tag(key);
+            tags[tag >>> 6] |= 1L << tag;
+            int slot = probe(key);
+            if (slots[slot + START] == EMPTY) {
+                slots[slot + KEY] = key;
+                slots[slot + START] = 0;
+            }
+            slots[slot + COUNT]++;
+            blockSlots[i] = slot;
+        }
+
+        // Lay out runs back-to-back, then fill them in block order
+        int runStart = 0;
+        for (int slot = 0; slot < slots.length; slot += STRIDE) {
+            if (slots[slot + START] != EMPTY) {
+                slots[slot + START] = runStart;
+                runStart += slots[slot + COUNT];
+                slots[slot + COUNT] = 0;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = blockSlots[i];
+            entries[slots[slot + START] + slots[slot + COUNT]++] = i;
+        }
+    }
+
+    /**
+     * The number of longs needed to pack a hash of the specified length.
+     */
+    static int words(int hashLength) {
+        return (hashLength + 7) >>> 3;
+    }
+
+    /**
+     * Packs the first bytes of a hash into longs, big-endian and zero padded.
+     */
+    static void pack(byte[] hash, int length, long[] dest, int offset) {
+        for (int w = 0; w < words(length); w++) {
+            long word = 0;
+            for (int i = w << 3, end = Math.min(i + 8, length); i < end; i++) {
+                word |= (hash[i] & 0xFFL) << (56 - ((i & 7) << 3));
+            }
+            dest[offset + w] = word;
+        }
+    }
+
+    private int key(long checksum) {
+        return (int) (checksum & checksumMask);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int tag(int key) {
+        return (key * 0x9E3779B9) >>> tagShift;
+    }
+
+    /**
+     * Returns the offset of the slot holding the specified key or the empty
+     * slot where it belongs.
+     */
+    private int probe(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int slot = i * STRIDE;
+            if (slots[slot + START] == EMPTY || slots[slot + KEY] == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Quickly tests whether the table may contain blocks with the specified
+     * checksum. A false result is definitive, so callers can skip calling
+     * {@link #find(long)}.
+     */
+    boolean mightContain(long checksum) {
+        int tag = tag(key(checksum));
+        return (tags[tag >>> 6] & (1L << tag)) != 0;
+    }
+
+    /**
+     * Tests whether the block's weak checksum equals the specified checksum,
+     * to the length the table compares checksums.
+     */
+    boolean checksumEquals(int index, long checksum) {
+        return key(sums.checksum(index)) == key(checksum);
+    }
+
+    /**
+     * Locates the run of blocks with the specified weak checksum.
+     *
+     * @param checksum weak checksum to find
+     * @return a slot identifier for use with {@link #start(int)} and
+     * {@link #end(int)}, or a negative value if there are no such blocks
+     */
+    int find(long checksum) {
+        int key = key(checksum), slot = probe(key);
+        return slots[slot + START] == EMPTY || slots[slot + COUNT] == 0 ? EMPTY : slot;
+    }
+
+    /**
+     * The position of the first entry in the slot's run.
+     */
+    int start(int slot) {
+        return slots[slot + START];
+    }
+
+    /**
+     * The position just past the last entry in the slot's run.
+     */
+    int end(int slot) {
+        return slots[slot + START] + slots[slot + COUNT];
+    }
+
+    /**
+     * The index, in the original block list, of the block at the specified
+     * run position.
+     */
+    int entry(int pos) {
+        return entries[pos];
+    }
+
+    BlockDesc block(int index) {
+        return blocks != null ? blocks.get(index) : sums.get(index);
+    }
+
+    int size() {
+        return sums.size();
+    }
+
+    /**
+     * The length of the block at the specified index, without creating a
+     * descriptor for it.
+     */
+    int length(int index, int blockSize) {
+        return sums.length(index, blockSize);
+    }
+
+    /**
+     * The length in bytes of the blocks' strong hashes.
+     */
+    int hashLength() {
+        return sums.hashLength();
+    }
+
+    /**
+     * Tests whether the block at the specified index has the packed hash.
+     */
+    boolean hashEquals(int index, long[] packed) {
+        return sums.hashEquals(index, packed) && (mismatched == null || !mismatched.get(index));
+    }
+
+    /**
+     * Removes the entry at the specified position from the slot's run. The
+     * last entry of the run takes its place, so callers iterating the run
+     * should re-examine the same position after a removal.
+     */
+    void remove(int slot, int pos) {
+        int last = end(slot) - 1;
+        entries[pos] = entries[last];
+        entries[last] = EMPTY;
+        slots[slot + COUNT]--;
+    }
+}
@@ -1,13 +1,23 @@
 package com.github.batkinson.jrsync;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Writes a metadata description of a file to a stream.
@@ -17,13 +27,77 @@ public class Metadata {
     public static final String FILE_EXT = "jrsmd";
     public static final String MIME_TYPE = "application/vnd.jrsync+" + FILE_EXT;
 
+    /**
+     * Marks metadata with options, see METADATA.md. Plain metadata starts
+     * with the length of the file hash type instead, which is never this long.
+     */
+    static final int MAGIC = 0x4A52;
+    static final int VERSION = 2;
+
+    /**
+     * The option specifying the number of bytes stored for each weak checksum.
+     */
+    public static final String CHECKSUM_LENGTH = "Checksum-Length";
+
+    /**
+     * The option specifying the number of consecutive blocks that must match
+     * for a match to be accepted, see {@link BlockSearch#setSeqMatches(int)}.
+     */
+    public static final String SEQ_MATCHES = "Seq-Matches";
+
+    /**
+     * The option specifying that the file is described by content-defined
+     * chunks rather than blocks, and how they were chunked.
+     */
+    public static final String CHUNKING = "Chunking";
+
+    /**
+     * The {@link #CHUNKING} value for FastCDC chunking, see {@link ChunkSearch}.
+     */
+    public static final int FASTCDC = 1;
+
+    /**
+     * The options specifying the minimum and maximum chunk sizes. The average
+     * chunk size is the block size.
+     */
+    public static final String MIN_CHUNK_SIZE = "Min-Chunk-Size", MAX_CHUNK_SIZE = "Max-Chunk-Size";
+
+    /**
+     * The option specifying that a {@link HashTree} follows the records, and
+     * the number of blocks, or chunks, each of its leaves covers.
+     */
+    public static final String HASH_TREE = "Hash-Tree";
+
+    /**
+     * The most descriptors allocated up front when reading, so a corrupt
+     * header can't exhaust memory before the records run out.
+     */
+    private static final int MAX_PRESIZE = 1 << 20;
+
+    /**
+     * The size of reads when generating metadata, which is digested in bulk.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private String contentSource = "";
     private String fileHashAlg = "SHA1";
     private String blockHashAlg = "MD5";
     private int blockSize;
+    private int checksumLength = 4;
+    private int seqMatches = 1;
+    private boolean chunked;
+    private int minChunkSize;
+    private int maxChunkSize;
+    private int hashTreeSpan;
+    private HashTree hashTree;
     private long fileSize;
     private byte[] fileHash;
-    private final List<BlockDesc> blockDescs = new ArrayList<>();
+    private int blockHashLength;
+    private long blockCount;
+    private List<BlockDesc> blockDescs;
+    private MappedBlocks mappedBlocks;
+    private long fileHashPos = -1;
+    private long recordsPos = -1;
 
     private Metadata() {
     }
@@ -44,6 +118,78 @@ public class Metadata {
         return blockSize;
     }
 
+    /**
+     * The number of bytes of each weak checksum that were kept, see
+     * {@link RollingChecksum#mask(int)}.
+     */
+    public int getChecksumLength() {
+        return checksumLength;
+    }
+
+    /**
+     * The number of consecutive blocks that must match for the truncated
+     * hashes to be trusted.
+     */
+    public int getSeqMatches() {
+        return seqMatches;
+    }
+
+    /**
+     * Whether the file is described by content-defined chunks, in which case
+     * the block descriptors are {@link ChunkDesc}s and the block size is the
+     * average chunk size.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * The hash tree over the file's blocks, or null if the metadata has none.
+     */
+    public HashTree getHashTree() {
+        return hashTree;
+    }
+
+    /**
+     * Finds the content that differs from a previous version using both
+     * versions' hash trees, without reading or searching the content. Only
+     * the leaves on paths to differences are compared.
+     *
+     * @return the ranges of this version's content that differ from the
+     * previous version at the same offsets, or that it lacks, as pairs of
+     * start (inclusive) and end (exclusive) offsets
+     * @throws IllegalArgumentException unless both versions describe blocks
+     *                                  of the same size with comparable trees
+     */
+    public long[] diff(Metadata previous) {
+        if (hashTree == null || previous.hashTree == null || chunked || previous.chunked
+                || blockSize != previous.blockSize || !blockHashAlg.equals(previous.blockHashAlg)) {
+            throw new IllegalArgumentException("only block metadata with comparable hash trees can be compared");
+        }
+        BitSet leaves = hashTree.diff(previous.hashTree);
+        long leafLength = (long) hashTreeSpan * blockSize;
+        long[] ranges = new long[leaves.cardinality() * 2];
+        int count = 0;
+        for (int leaf = leaves.nextSetBit(0); leaf >= 0; leaf = leaves.nextSetBit(leaf + 1)) {
+            long start = leaf * leafLength, end = Math.min(start + leafLength, fileSize);
+            if (count > 0 && ranges[count - 1] == start) {
+                ranges[count - 1] = end;
+            } else {
+                ranges[count++] = start;
+                ranges[count++] = end;
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
     public long getFileSize() {
         return fileSize;
     }
@@ -52,48 +198,396 @@ public class Metadata {
         return fileHash;
     }
 
+    public int getBlockHashLength() {
+        return blockHashLength;
+    }
+
+    /**
+     * The position of the file hash in the metadata file, followed by the
+     * file size, or -1 unless the metadata was mapped.
+     */
+    long getFileHashPosition() {
+        return fileHashPos;
+    }
+
+    /**
+     * The position of the first block record in the metadata file, or -1
+     * unless the metadata was mapped.
+     */
+    long getRecordsPosition() {
+        return recordsPos;
+    }
+
+    /**
+     * The descriptors of the blocks, or chunks, of the file.
+     *
+     * @throws IllegalStateException if there are too many blocks for a list,
+     *                               use {@link #getBlockDesc(long)} instead
+     */
     public List<BlockDesc> getBlockDescs() {
+        if (blockCount > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many blocks for a list: " + blockCount);
+        }
         return blockDescs;
     }
 
+    /**
+     * The number of block descriptors.
+     */
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * The descriptor of the specified block.
+     */
+    public BlockDesc getBlockDesc(long index) {
+        if (mappedBlocks != null) {
+            return mappedBlocks.get(index);
+        }
+        if (index < 0 || index >= blockCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + blockCount);
+        }
+        return blockDescs.get((int) index);
+    }
+
     /**
      * Utility for generating a metadata file for an input stream.
      */
     public static void generate(String contentSource, int blockSize, String fileHashAlg, String blockHashAlg, InputStream source, File metadata)
             throws IOException, NoSuchAlgorithmException {
-        InputStream in = new BufferedInputStream(source);
         File generatedFile, metadataDir = metadata.getParentFile();
-        try (MetadataInputWrapper out = new MetadataInputWrapper(in, contentSource, blockSize, fileHashAlg, blockHashAlg, metadataDir)) {
-            while (out.read() >= 0) ;
+        try (MetadataInputWrapper out = new MetadataInputWrapper(source, contentSource, blockSize, fileHashAlg, blockHashAlg, metadataDir)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (out.read(buf) >= 0) ;
             generatedFile = out.getMetadataFile();
         }
         generatedFile.renameTo(metadata);
     }
 
     /**
-     * Utility for loading metadata from a file.
+     * Utility for generating a metadata file for a local file.
+     */
+    public static void generate(String contentSource, int blockSize, String fileHashAlg, String blockHashAlg, File content, File metadata)
+            throws IOException, NoSuchAlgorithmException {
+        generate(new MetadataGenerator(contentSource, blockSize, fileHashAlg, blockHashAlg), content, metadata);
+    }
+
+    /**
+     * Utility for generating a smaller metadata file for a local file. Since
+     * the size is known up front, weak checksums and block hashes are
+     * truncated as far as is safe for the file, see
+     * {@link MetadataGenerator#setHashLengths(long)}. The metadata then
+     * carries options, which older readers can't parse.
+     */
+    public static void generateTruncated(String contentSource, int blockSize, String fileHashAlg, String blockHashAlg, File content,
+                                         File metadata) throws IOException, NoSuchAlgorithmException {
+        MetadataGenerator generator = new MetadataGenerator(contentSource, blockSize, fileHashAlg, blockHashAlg);
+        generator.setHashLengths(content.length());
+        generate(generator, content, metadata);
+    }
+
+    /**
+     * Utility for generating metadata files for several block sizes of a
+     * local file while reading it only once, see {@link MultiMetadataGenerator}.
+     *
+     * @param blockSizes the block size of each metadata file
+     * @param metadata   the metadata file for each block size
+     */
+    public static void generate(String contentSource, int[] blockSizes, String fileHashAlg, String blockHashAlg, File content,
+                                File[] metadata) throws IOException, NoSuchAlgorithmException {
+        if (blockSizes.length != metadata.length) {
+            throw new IllegalArgumentException("a metadata file is required for each block size");
+        }
+        MetadataGenerator[] generators = new MetadataGenerator[blockSizes.length];
+        RandomAccessFile[] outputs = new RandomAccessFile[blockSizes.length];
+        try (InputStream in = new FileInputStream(content)) {
+            for (int i = 0; i < blockSizes.length; i++) {
+                generators[i] = new MetadataGenerator(contentSource, blockSizes[i], fileHashAlg, blockHashAlg);
+                outputs[i] = new RandomAccessFile(metadata[i], "rw");
+                outputs[i].setLength(0);
+                generators[i].setHandler(new MetadataWriter(outputs[i]));
+            }
+            MultiMetadataGenerator generator = new MultiMetadataGenerator(generators);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                generator.add(buf, 0, read);
+            }
+            generator.finish();
+        } finally {
+            for (RandomAccessFile output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * As {@link #generate(String, int, String, String, File, File)}, but
+     * hashing blocks in parallel, see
+     * {@link MetadataGenerator#generate(FileChannel, ExecutorService, int)}.
+     */
+    public static void generate(String contentSource, int blockSize, String fileHashAlg, String blockHashAlg, File content, File metadata,
+                                ExecutorService executor, int threads)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        MetadataGenerator generator = new MetadataGenerator(contentSource, blockSize, fileHashAlg, blockHashAlg);
+        try (FileInputStream in = new FileInputStream(content);
+             RandomAccessFile out = new RandomAccessFile(metadata, "rw")) {
+            out.setLength(0);
+            generator.setHandler(new MetadataWriter(out));
+            generator.generate(in.getChannel(), executor, threads);
+        }
+    }
+
+    /**
+     * Utility for generating a chunked metadata file for a local file, with
+     * chunks of a quarter to eight times the average size, as with FastCDC.
+     */
+    public static void generateChunked(String contentSource, int averageSize, String fileHashAlg, String blockHashAlg, File content,
+                                       File metadata) throws IOException, NoSuchAlgorithmException {
+        MetadataGenerator generator = new MetadataGenerator(contentSource, averageSize, fileHashAlg, blockHashAlg);
+        generator.setChunking(averageSize / 4, averageSize * 8);
+        generate(generator, content, metadata);
+    }
+
+    /**
+     * Generates a metadata file for a local file using a configured generator.
+     */
+    static void generate(MetadataGenerator generator, File content, File metadata) throws IOException {
+        try (InputStream in = new FileInputStream(content);
+             RandomAccessFile out = new RandomAccessFile(metadata, "rw")) {
+            out.setLength(0);
+            generator.setHandler(new MetadataWriter(out));
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                generator.add(buf, 0, read);
+            }
+            generator.finish();
+        }
+    }
+
+    /**
+     * Utility for loading metadata from a file. Every record is read and
+     * decoded, which limits it to 2^31 - 1 blocks, see {@link #map(File)}.
      */
     public static Metadata read(DataInput in) throws IOException, NoSuchAlgorithmException {
+        Metadata result = readHeader(in, null);
+        result.readRecords(in);
+        result.readTree(in);
+        return result;
+    }
+
+    /**
+     * Utility for loading metadata from a local file. Only the header is read
+     * up front: the file is memory-mapped and block records are decoded only
+     * as they are accessed, so this takes the same time for any size of file
+     * and supports any number of blocks. Chunk offsets depend on every chunk
+     * before them, so chunked metadata is read in full, as with
+     * {@link #read(DataInput)}.
+     */
+    public static Metadata map(File file) throws IOException, NoSuchAlgorithmException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(in));
+            DataInputStream data = new DataInputStream(counter);
+            Metadata result = readHeader(data, counter);
+            if (result.chunked) {
+                result.readRecords(data);
+                result.readTree(data);
+                return result;
+            }
+            long position = result.recordsPos = counter.count, expected = result.fileSize / result.blockSize;
+            FileChannel channel = in.getChannel();
+            long available = (channel.size() - position) / (result.checksumLength + result.blockHashLength);
+            if (available < expected) {
+                throw new EOFException("metadata has " + available + " of " + expected + " block records");
+            }
+            result.mappedBlocks = new MappedBlocks(channel, position, expected, result.checksumLength, result.blockHashLength);
+            result.blockDescs = result.mappedBlocks;
+            result.blockCount = expected;
+            if (result.hashTreeSpan > 0) {
+                channel.position(position + expected * (result.checksumLength + result.blockHashLength));
+                result.readTree(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Reads the header of a metadata file, up to its first record.
+     *
+     * @param counter counts the bytes read so far, if positions are needed
+     */
+    private static Metadata readHeader(DataInput in, CountingInputStream counter) throws IOException {
 
         Metadata result = new Metadata();
 
-        result.fileHashAlg = in.readUTF();
+        int first = in.readUnsignedShort();
+        boolean hasOptions = first == MAGIC;
+        if (hasOptions) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("unsupported metadata version: " + version);
+            }
+            result.fileHashAlg = in.readUTF();
+        } else {
+            result.fileHashAlg = readUTF(first, in);
+        }
         result.fileHash = new byte[in.readByte()];
+        if (counter != null) {
+            result.fileHashPos = counter.count;
+        }
         in.readFully(result.fileHash);
         result.fileSize = in.readLong();
         result.contentSource = in.readUTF();
         result.blockHashAlg = in.readUTF();
-        int blockHashSize = in.readByte();
+        result.blockHashLength = in.readByte();
         result.blockSize = in.readInt();
 
-        int completeBlocks = (int) (result.fileSize / result.blockSize);
-        for (int i = 0; i < completeBlocks; i++) {
-            long checksum = in.readInt() & 0xFFFFFFFFL; // prevent sign extension (we're compressing)
-            byte[] hash = new byte[blockHashSize];
-            in.readFully(hash);
-            result.blockDescs.add(new BlockDesc(i, checksum, hash));
+        if (hasOptions) {
+            for (int i = in.readUnsignedByte(); i > 0; i--) {
+                String name = in.readUTF();
+                long value = in.readLong();
+                if (CHECKSUM_LENGTH.equals(name)) {
+                    RollingChecksum.mask((int) value); // Validates length
+                    result.checksumLength = (int) value;
+                } else if (SEQ_MATCHES.equals(name)) {
+                    if (value < 1 || value > 2) {
+                        throw new IOException("unsupported sequential matches: " + value);
+                    }
+                    result.seqMatches = (int) value;
+                } else if (CHUNKING.equals(name)) {
+                    if (value != FASTCDC) {
+                        throw new IOException("unsupported chunking: " + value);
+                    }
+                    result.chunked = true;
+                } else if (MIN_CHUNK_SIZE.equals(name)) {
+                    result.minChunkSize = (int) value;
+                } else if (MAX_CHUNK_SIZE.equals(name)) {
+                    result.maxChunkSize = (int) value;
+                } else if (HASH_TREE.equals(name)) {
+                    if (value < 1 || value > Integer.MAX_VALUE) {
+                        throw new IOException("invalid hash tree leaf span: " + value);
+                    }
+                    result.hashTreeSpan = (int) value;
+                }
+            }
         }
 
         return result;
     }
+
+    /**
+     * Reads and decodes every record, storing them compactly.
+     */
+    private void readRecords(DataInput in) throws IOException {
+
+        byte[] hash = new byte[blockHashLength];
+        BlockSums sums;
+
+        if (chunked) {
+            int expected = (int) Math.min(fileSize / Math.max(blockSize, 1) + 1, MAX_PRESIZE);
+            sums = BlockSums.chunks(blockHashLength, expected);
+            long offset = 0;
+            while (offset < fileSize) {
+                int length = in.readInt();
+                if (length <= 0 || length > fileSize - offset) {
+                    throw new IOException("invalid chunk length: " + length);
+                }
+                if (sums.size() == Integer.MAX_VALUE) {
+                    throw new IOException("too many chunks to read");
+                }
+                in.readFully(hash);
+                sums.addChunk(length, hash);
+                offset += length;
+            }
+        } else {
+            long completeBlocks = fileSize / blockSize;
+            if (completeBlocks > Integer.MAX_VALUE) {
+                throw new IOException("too many blocks to read, map the file instead: " + completeBlocks);
+            }
+            sums = BlockSums.blocks(blockHashLength, (int) Math.min(completeBlocks, MAX_PRESIZE));
+            for (long i = 0; i < completeBlocks; i++) {
+                long checksum = readChecksum(in, checksumLength);
+                in.readFully(hash);
+                sums.add(checksum, hash);
+            }
+        }
+
+        sums.trimToSize();
+        blockDescs = sums;
+        blockCount = sums.size();
+    }
+
+    /**
+     * Reads the hash tree following the records, if there is one. Its leaves
+     * cover every record, along with the final partial block.
+     */
+    private void readTree(DataInput in) throws IOException, NoSuchAlgorithmException {
+        if (hashTreeSpan == 0 || fileSize == 0) {
+            return;
+        }
+        long units = chunked ? blockCount : (fileSize + blockSize - 1) / blockSize;
+        long leaves = (units + hashTreeSpan - 1) / hashTreeSpan;
+        int hashLength = BlockHasher.getInstance(blockHashAlg).getLength();
+        if (HashTree.nodeCount(leaves) * hashLength > Integer.MAX_VALUE) {
+            throw new IOException("hash tree is too large to read: " + leaves + " leaves");
+        }
+        hashTree = HashTree.read(in, hashLength, hashTreeSpan, (int) leaves);
+    }
+
+    /**
+     * Counts the bytes read through it, to find where the header ends.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Reads the remainder of a string written with
+     * {@link java.io.DataOutput#writeUTF(String)}, once its length is known.
+     */
+    private static String readUTF(int length, DataInput in) throws IOException {
+        byte[] encoded = new byte[length + 2];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        in.readFully(encoded, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    private static long readChecksum(DataInput in, int length) throws IOException {
+        if (length == 4) {
+            return in.readInt() & 0xFFFFFFFFL; // prevent sign extension (we're compressing)
+        }
+        long checksum = (long) in.readUnsignedShort() << 16;
+        if (length == 3) {
+            checksum |= in.readUnsignedByte();
+        }
+        return checksum;
+    }
 }
@@ -1,8 +1,20 @@
 package com.github.batkinson.jrsync;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class MetadataGenerator {
 
@@ -10,12 +22,23 @@ public class MetadataGenerator {
     private final String contentSource;
     private final int blockSize;
     private final String fileHashAlg;
-    private final RollingChecksum checksum;
     private final MessageDigest fileDigest;
-    private final MessageDigest blockDigest;
+    private final BlockHasher blockHasher;
+    private byte[] block;
     private final String blockHashAlg;
+    private final Map<String, Long> options = new LinkedHashMap<>();
+    private int checksumLength = 4;
+    private int blockHashLength;
+    private Chunker chunker;
+    private int treeSpan;
+    private HashTree.Builder tree;
 
-    private Handler handler;
+    private ExtendedHandler handler;
+
+    /**
+     * The content read for each batch of blocks hashed in parallel.
+     */
+    private static final int BATCH_SIZE = 1 << 20;
 
     public interface Handler {
         void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize) throws IOException;
@@ -25,58 +48,496 @@ public class MetadataGenerator {
         void complete(long fileSize, byte[] digest) throws IOException;
     }
 
-    private static final class NoOpHandler implements Handler {
+    /**
+     * A {@link Handler} for metadata with options, such as truncated hashes,
+     * chunks or a hash tree. Generating such metadata with a plain handler
+     * fails, since it couldn't be read back.
+     */
+    public interface ExtendedHandler extends Handler {
+        /**
+         * Called before the first block, instead of
+         * {@link #header(String, int, String, String, int, int)}. Options
+         * are only present for metadata that needs a reader to understand
+         * them, see {@link Metadata}, otherwise the map is empty.
+         */
+        void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize,
+                    Map<String, Long> options) throws IOException;
+
+        /**
+         * Called for each chunk instead of {@link #block(long, byte[])} when
+         * generating chunked metadata.
+         */
+        void chunk(int length, byte[] digest) throws IOException;
+
+        /**
+         * Called after the last block or chunk, before
+         * {@link #complete(long, byte[])}, when generating a hash tree.
+         */
+        void tree(HashTree tree) throws IOException;
+    }
+
+    private static final class NoOpHandler implements ExtendedHandler {
         @Override
         public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize) {
         }
 
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize,
+                           Map<String, Long> options) {
+        }
+
         @Override
         public void block(long checksum, byte[] digest) {
         }
 
+        @Override
+        public void chunk(int length, byte[] digest) {
+        }
+
+        @Override
+        public void tree(HashTree tree) {
+        }
+
         @Override
         public void complete(long fileSize, byte[] digest) {
         }
     }
 
+    /**
+     * Passes metadata without options on to a plain {@link Handler}.
+     */
+    private static final class PlainHandler implements ExtendedHandler {
+
+        private final Handler handler;
+
+        PlainHandler(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize)
+                throws IOException {
+            handler.header(fileHashAlg, fileHashLength, source, blockHashAlg, blockHashLength, blockSize);
+        }
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize,
+                           Map<String, Long> options) throws IOException {
+            if (!options.isEmpty()) {
+                throw new IllegalStateException("metadata options require an extended handler: " + options.keySet());
+            }
+            handler.header(fileHashAlg, fileHashLength, source, blockHashAlg, blockHashLength, blockSize);
+        }
+
+        @Override
+        public void block(long checksum, byte[] digest) throws IOException {
+            handler.block(checksum, digest);
+        }
+
+        @Override
+        public void chunk(int length, byte[] digest) {
+            throw new IllegalStateException("chunks require an extended handler");
+        }
+
+        @Override
+        public void tree(HashTree tree) {
+            throw new IllegalStateException("hash trees require an extended handler");
+        }
+
+        @Override
+        public void complete(long fileSize, byte[] digest) throws IOException {
+            handler.complete(fileSize, digest);
+        }
+    }
+
     public MetadataGenerator(String source, int blockSize, String fileHashAlg, String blockHashAlg) throws NoSuchAlgorithmException {
         this.contentSource = source;
         this.blockSize = blockSize;
         this.fileHashAlg = fileHashAlg;
         this.blockHashAlg = blockHashAlg;
-        this.checksum = new RollingChecksum(blockSize);
         this.fileDigest = MessageDigest.getInstance(fileHashAlg);
-        this.blockDigest = MessageDigest.getInstance(blockHashAlg);
+        this.blockHasher = BlockHasher.getInstance(blockHashAlg);
+        this.block = new byte[blockSize];
+        this.blockHashLength = blockHasher.getLength();
         this.handler = new NoOpHandler();
         reset();
     }
 
     public void setHandler(Handler handler) {
-        this.handler = handler;
+        this.handler = handler instanceof ExtendedHandler ? (ExtendedHandler) handler : new PlainHandler(handler);
+    }
+
+    /**
+     * Truncates the weak checksums and block hashes written for each block,
+     * shrinking the metadata at the cost of more weak matches to verify and a
+     * greater chance of falsely matching blocks.
+     *
+     * @param checksumLength  bytes of each weak checksum to keep, from 2 to 4
+     * @param blockHashLength bytes of each block hash to keep, up to the full length
+     */
+    public void setHashLengths(int checksumLength, int blockHashLength) {
+        if (checksumLength < 2 || checksumLength > 4) {
+            throw new IllegalArgumentException("checksum length must be 2 to 4 bytes: " + checksumLength);
+        }
+        if (blockHashLength < 1 || blockHashLength > blockHasher.getLength()) {
+            throw new IllegalArgumentException("block hash length must be 1 to " + blockHasher.getLength() + " bytes: " + blockHashLength);
+        }
+        this.checksumLength = checksumLength;
+        this.blockHashLength = blockHashLength;
+        // Full checksums need no option, so the metadata stays readable by older readers
+        if (checksumLength < 4) {
+            options.put(Metadata.CHECKSUM_LENGTH, (long) checksumLength);
+        } else {
+            options.remove(Metadata.CHECKSUM_LENGTH);
+        }
+    }
+
+    /**
+     * Requires searches to match consecutive blocks before accepting a match,
+     * so each block's hashes only need to be half as discriminating.
+     *
+     * @param seqMatches 1, the default, or 2
+     */
+    public void setSeqMatches(int seqMatches) {
+        if (seqMatches < 1 || seqMatches > 2) {
+            throw new IllegalArgumentException("sequential matches must be 1 or 2: " + seqMatches);
+        }
+        if (seqMatches > 1) {
+            options.put(Metadata.SEQ_MATCHES, (long) seqMatches);
+        } else {
+            options.remove(Metadata.SEQ_MATCHES);
+        }
+    }
+
+    /**
+     * Describes content-defined chunks rather than fixed-size blocks, see
+     * {@link ChunkSearch}. The block size is used as the average chunk size.
+     *
+     * @param minSize the minimum chunk size, except for the last chunk
+     * @param maxSize the maximum chunk size
+     */
+    public void setChunking(int minSize, int maxSize) {
+        chunker = new Chunker(minSize, blockSize, maxSize);
+        block = new byte[maxSize];
+        options.put(Metadata.CHUNKING, (long) Metadata.FASTCDC);
+        options.put(Metadata.MIN_CHUNK_SIZE, (long) minSize);
+        options.put(Metadata.MAX_CHUNK_SIZE, (long) maxSize);
+    }
+
+    /**
+     * Generates a hash tree over the full-length block hashes, see
+     * {@link HashTree}, which is written after the block records.
+     *
+     * @param leafSpan the number of blocks, or chunks, covered by each leaf
+     */
+    public void setHashTree(int leafSpan) {
+        if (leafSpan < 1) {
+            throw new IllegalArgumentException("leaves must span at least one block: " + leafSpan);
+        }
+        treeSpan = leafSpan;
+        options.put(Metadata.HASH_TREE, (long) leafSpan);
+    }
+
+    /**
+     * Truncates hashes to the shortest lengths that keep the chance of a
+     * false match for a file of the specified size negligible, as zsync does.
+     * Files of more than one block also require 2 sequential matches, which
+     * roughly halves the lengths needed.
+     */
+    public void setHashLengths(long fileSize) {
+        int seq = fileSize > blockSize ? 2 : 1;
+        double bits = log2(Math.max(fileSize, 1)), blockBits = log2(1 + fileSize / blockSize);
+        int weak = (int) Math.ceil((bits + log2(blockSize) - 8.6) / seq / 8);
+        int strong = (int) Math.max(Math.ceil((20 + bits + blockBits) / seq / 8), (int) ((7.9 + 20 + blockBits) / 8));
+        setSeqMatches(seq);
+        setHashLengths(Math.min(Math.max(weak, 2), 4), Math.min(strong, blockHasher.getLength()));
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private void start() throws IOException {
+        tree = treeSpan > 0 ? new HashTree.Builder(blockHasher, treeSpan) : null;
+        handler.header(fileHashAlg, fileDigest.getDigestLength(), contentSource, blockHashAlg, blockHashLength, blockSize,
+                Collections.unmodifiableMap(options));
     }
 
     public void add(byte b) throws IOException {
         if (written == 0) {
-            handler.header(fileHashAlg, fileDigest.getDigestLength(), contentSource, blockHashAlg, blockDigest.getDigestLength(), blockSize);
+            start();
         }
-        checksum.update(b);
         fileDigest.update(b);
-        blockDigest.update(b);
+        if (chunker != null) {
+            int length = chunker.length() + 1;
+            block[length - 1] = b;
+            written++;
+            if (chunker.update(b)) {
+                chunk(length);
+            }
+            return;
+        }
+        block[(int) (written % blockSize)] = b;
         written++;
         if (written % blockSize == 0) {
-            handler.block(checksum.getValue(), blockDigest.digest());
+            block(block, 0);
+        }
+    }
+
+    /**
+     * Adds the specified bytes of content, as if each were added in turn but
+     * digesting them in bulk. Whole blocks are hashed where they are, only
+     * the bytes of partial blocks are copied.
+     */
+    public void add(byte[] buf, int offset, int length) throws IOException {
+        if (length > 0) {
+            fileDigest.update(buf, offset, length);
+            addContent(buf, offset, length);
+        }
+    }
+
+    /**
+     * Adds the specified bytes of content without digesting them as part of
+     * the whole file, which is digested elsewhere, see
+     * {@link MultiMetadataGenerator}.
+     */
+    void addContent(byte[] buf, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (written == 0) {
+            start();
+        }
+        if (chunker != null) {
+            while (length > 0) {
+                int start = chunker.length(), scanned = chunker.scan(buf, offset, length);
+                int count = scanned < 0 ? length : scanned;
+                System.arraycopy(buf, offset, block, start, count);
+                offset += count;
+                length -= count;
+                written += count;
+                if (scanned >= 0) {
+                    chunk(start + count);
+                }
+            }
+            return;
+        }
+        while (length > 0) {
+            int filled = (int) (written % blockSize);
+            if (filled == 0 && length >= blockSize) {
+                block(buf, offset);
+                offset += blockSize;
+                length -= blockSize;
+                written += blockSize;
+                continue;
+            }
+            int count = Math.min(blockSize - filled, length);
+            System.arraycopy(buf, offset, block, filled, count);
+            offset += count;
+            length -= count;
+            written += count;
+            if (filled + count == blockSize) {
+                block(block, 0);
+            }
+        }
+    }
+
+    /**
+     * Generates metadata for the entire content of a channel, hashing blocks
+     * in parallel. Content is read in batches of whole blocks using positional
+     * reads, and each batch is checksummed and hashed by the executor while
+     * the calling thread digests the whole file. Handler methods are only
+     * called from the calling thread, with blocks in order, exactly as if the
+     * content had been added. Chunk boundaries depend on all the content
+     * before them, so chunked metadata is generated serially.
+     *
+     * @param content  the content, read from its start regardless of its position
+     * @param executor executes the batches
+     * @param threads  the number of threads the executor runs, twice as
+     *                 many batches are read ahead to keep them busy
+     */
+    public void generate(FileChannel content, ExecutorService executor, int threads)
+            throws IOException, InterruptedException {
+        reset();
+        int batchLength = chunker != null ? BATCH_SIZE : Math.max(1, BATCH_SIZE / blockSize) * blockSize;
+        int readAhead = Math.max(threads, 1) * 2;
+        Deque<Future<BlockBatch>> pending = new ArrayDeque<>();
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                byte[] buf = new byte[batchLength];
+                int length = read(content, written, buf);
+                if (length == 0) {
+                    break;
+                }
+                if (chunker != null) {
+                    add(buf, 0, length);
+                    continue;
+                }
+                if (written == 0) {
+                    start();
+                }
+                pending.add(executor.submit(new BlockBatch(buf, length / blockSize)));
+                int partial = length % blockSize;
+                System.arraycopy(buf, length - partial, block, 0, partial); // Only hashed for the tree
+                fileDigest.update(buf, 0, length);
+                written += length;
+                while (pending.size() >= readAhead || (!pending.isEmpty() && pending.peek().isDone())) {
+                    pending.remove().get().emit();
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.remove().get().emit();
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            for (Future<BlockBatch> batch : pending) {
+                batch.cancel(true);
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Fills the buffer from the specified position, unless the content ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int read(FileChannel content, long position, byte[] buf) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buf);
+        while (target.hasRemaining()) {
+            if (content.read(target, position + target.position()) < 0) {
+                break;
+            }
+        }
+        return target.position();
+    }
+
+    private static IOException rethrow(ExecutionException e) throws IOException, InterruptedException {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
         }
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Computes the records of the whole blocks in a batch of content, to be
+     * passed on to the handler in order.
+     */
+    private final class BlockBatch implements Callable<BlockBatch> {
+
+        private final byte[] buf;
+        private final long[] checksums;
+        private final byte[][] hashes;
+
+        BlockBatch(byte[] buf, int blocks) {
+            this.buf = buf;
+            checksums = new long[blocks];
+            hashes = new byte[blocks][];
+        }
+
+        @Override
+        public BlockBatch call() throws NoSuchAlgorithmException {
+            BlockHasher hasher = BlockHasher.getInstance(blockHashAlg);
+            long mask = RollingChecksum.mask(checksumLength);
+            for (int i = 0, offset = 0; i < checksums.length; i++, offset += blockSize) {
+                checksums[i] = RollingChecksum.checksum(buf, offset, blockSize) & mask;
+                hashes[i] = hasher.hash(buf, offset, blockSize);
+            }
+            return this;
+        }
+
+        void emit() throws IOException {
+            for (int i = 0; i < checksums.length; i++) {
+                record(checksums[i], hashes[i]);
+            }
+        }
+    }
+
+    private void block(byte[] buf, int offset) throws IOException {
+        long checksum = RollingChecksum.checksum(buf, offset, blockSize);
+        record(checksum & RollingChecksum.mask(checksumLength), blockHasher.hash(buf, offset, blockSize));
+    }
+
+    /**
+     * Passes a block on to the handler, with its hash truncated, and adds its
+     * full hash to the tree.
+     */
+    private void record(long checksum, byte[] hash) throws IOException {
+        if (tree != null) {
+            tree.add(hash);
+        }
+        handler.block(checksum, truncate(hash));
+    }
+
+    private byte[] truncate(byte[] hash) {
+        return hash.length == blockHashLength ? hash : Arrays.copyOf(hash, blockHashLength);
+    }
+
+    private void chunk(int length) throws IOException {
+        byte[] hash = blockHasher.hash(block, 0, length);
+        if (tree != null) {
+            tree.add(hash);
+        }
+        handler.chunk(length, truncate(hash));
     }
 
     public void finish() throws IOException {
-        handler.complete(written, fileDigest.digest());
+        finish(fileDigest.digest());
+    }
+
+    /**
+     * Completes the metadata with a digest of the whole file computed
+     * elsewhere, see {@link #addContent(byte[], int, int)}.
+     */
+    void finish(byte[] fileHash) throws IOException {
+        if (chunker != null && chunker.length() > 0) {
+            chunk(chunker.length()); // The last chunk ends with the content
+        }
+        if (tree != null && written > 0) {
+            int partial = chunker == null ? (int) (written % blockSize) : 0;
+            if (partial > 0) {
+                tree.add(blockHasher.hash(block, 0, partial)); // Leaves also cover the partial block
+            }
+            handler.tree(tree.build());
+        }
+        tree = null;
+        handler.complete(written, fileHash);
         reset();
     }
 
+    String getFileHashAlg() {
+        return fileHashAlg;
+    }
+
+    int getChecksumLength() {
+        return checksumLength;
+    }
+
+    int getBlockHashLength() {
+        return blockHashLength;
+    }
+
+    int getSeqMatches() {
+        Long seqMatches = options.get(Metadata.SEQ_MATCHES);
+        return seqMatches == null ? 1 : seqMatches.intValue();
+    }
+
     public void reset() {
         written = 0;
-        checksum.reset();
         fileDigest.reset();
-        blockDigest.reset();
+        if (chunker != null) {
+            chunker.reset();
+        }
     }
 }
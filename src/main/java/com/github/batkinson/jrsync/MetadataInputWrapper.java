@@ -45,6 +45,15 @@ public class MetadataInputWrapper extends InputStream {
         return b;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = wrapped.read(b, off, len);
+        if (read > 0) {
+            generator.add(b, off, read);
+        }
+        return read;
+    }
+
     public void close() throws IOException {
         try {
             super.close();
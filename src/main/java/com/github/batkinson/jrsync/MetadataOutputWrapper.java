@@ -42,6 +42,12 @@ public class MetadataOutputWrapper extends OutputStream {
         generator.add((byte) b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        wrapped.write(b, off, len);
+        generator.add(b, off, len);
+    }
+
     public void close() throws IOException {
         try {
             wrapped.close();
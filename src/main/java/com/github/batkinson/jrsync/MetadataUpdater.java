@@ -0,0 +1,280 @@
+package com.github.batkinson.jrsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Updates a metadata file after its content is appended to or modified
+ * within known ranges. Block records have a fixed length, so only the
+ * records of changed and new blocks are rehashed and rewritten, and records
+ * past the end of the content are dropped.
+ *
+ * Updates are written to a copy of the metadata file in the same directory,
+ * which then replaces it. Metadata mapped by {@link Metadata#map(File)}
+ * before an update keeps describing the old content, rather than having its
+ * file truncated underneath it.
+ *
+ * The file hash covers all of the content. Digests can't be saved to disk,
+ * but most can be copied, so the updater keeps a copy of its digest of the
+ * content as of its last update. When the next update only appends, the
+ * digest resumes from that copy and only the new bytes are read. The copy
+ * only lives as long as the updater, so the first update by a new updater,
+ * such as after a restart, digests all of the content again, though
+ * unchanged blocks are still not rehashed.
+ *
+ * Metadata that can't be updated in place, because it is chunked, has a hash
+ * tree, or because its hashes were truncated too far for the content's new
+ * size, is generated again in full.
+ */
+public class MetadataUpdater {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File metadataFile;
+    private MessageDigest saved;
+    private long savedLength;
+
+    public MetadataUpdater(File metadataFile) {
+        this.metadataFile = metadataFile;
+    }
+
+    /**
+     * Updates the metadata for its content's current state.
+     *
+     * @param content the content described by the metadata
+     * @param changes the ranges of the content that changed, as pairs of
+     *                start (inclusive) and end (exclusive) offsets. Content
+     *                past its previous size is always treated as changed.
+     * @return true if the metadata was updated in place, false if it was
+     * generated again
+     */
+    public boolean update(File content, long... changes) throws IOException, NoSuchAlgorithmException {
+        if (changes.length % 2 != 0) {
+            throw new IllegalArgumentException("changes must be pairs of start and end offsets");
+        }
+
+        Metadata metadata = Metadata.map(metadataFile);
+        long newSize = content.length();
+        if (!updatable(metadata, newSize)) {
+            MetadataGenerator generator = new MetadataGenerator(metadata.getContentSource(), metadata.getBlockSize(),
+                    metadata.getFileHashAlg(), metadata.getBlockHashAlg());
+            if (metadata.isChunked()) {
+                generator.setChunking(metadata.getMinChunkSize(), metadata.getMaxChunkSize());
+            } else if (truncated(metadata)) {
+                generator.setHashLengths(newSize);
+            }
+            if (metadata.getHashTree() != null) {
+                generator.setHashTree(metadata.getHashTree().getLeafSpan());
+            }
+            File generated = tempFile();
+            try {
+                Metadata.generate(generator, content, generated);
+                replace(generated);
+            } finally {
+                generated.delete();
+            }
+            saved = null;
+            return false;
+        }
+
+        long oldSize = metadata.getFileSize();
+        int blockSize = metadata.getBlockSize();
+        long[] blocks = changedBlocks(changes, oldSize, newSize, blockSize);
+        int checksumLength = metadata.getChecksumLength(), hashLength = metadata.getBlockHashLength();
+        int stride = checksumLength + hashLength;
+        long recordsPos = metadata.getRecordsPosition(), newLength = recordsPos + newSize / blockSize * stride;
+
+        File updated = tempFile();
+        try (RandomAccessFile in = new RandomAccessFile(content, "r");
+             RandomAccessFile original = new RandomAccessFile(metadataFile, "r");
+             RandomAccessFile out = new RandomAccessFile(updated, "rw")) {
+
+            FileChannel source = in.getChannel(), target = out.getChannel();
+            copy(original.getChannel(), target, Math.min(original.length(), newLength));
+            BlockHasher hasher = BlockHasher.getInstance(metadata.getBlockHashAlg());
+            long mask = RollingChecksum.mask(checksumLength);
+            int batchBlocks = Math.max(1, BUFFER_SIZE / blockSize);
+            byte[] buf = new byte[batchBlocks * blockSize];
+            ByteBuffer records = ByteBuffer.allocate(batchBlocks * stride);
+
+            for (int r = 0; r < blocks.length; r += 2) {
+                for (long block = blocks[r]; block < blocks[r + 1]; block += batchBlocks) {
+                    int count = (int) Math.min(batchBlocks, blocks[r + 1] - block);
+                    read(source, block * blockSize, buf, count * blockSize);
+                    records.clear();
+                    for (int i = 0, offset = 0; i < count; i++, offset += blockSize) {
+                        byte[] hash = hasher.hash(buf, offset, blockSize);
+                        MetadataWriter.putBlock(records, checksumLength, RollingChecksum.checksum(buf, offset, blockSize) & mask,
+                                hash.length == hashLength ? hash : Arrays.copyOf(hash, hashLength));
+                    }
+                    records.flip();
+                    for (long pos = recordsPos + block * stride; records.hasRemaining(); ) {
+                        pos += target.write(records, pos);
+                    }
+                }
+            }
+            out.setLength(newLength);
+
+            boolean appended = newSize >= oldSize;
+            for (int i = 0; appended && i < changes.length; i += 2) {
+                appended = changes[i] >= oldSize || changes[i] >= changes[i + 1];
+            }
+            byte[] fileHash = digest(source, metadata, appended, newSize);
+            out.seek(metadata.getFileHashPosition());
+            out.write(fileHash);
+            out.writeLong(newSize);
+        } catch (IOException | RuntimeException e) {
+            updated.delete();
+            throw e;
+        }
+        try {
+            replace(updated);
+        } finally {
+            updated.delete();
+        }
+        return true;
+    }
+
+    private File tempFile() throws IOException {
+        return File.createTempFile("mdu", Metadata.FILE_EXT, metadataFile.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Replaces the metadata file with an updated copy.
+     */
+    private void replace(File updated) throws IOException {
+        if (!updated.renameTo(metadataFile)) {
+            throw new IOException("failed to replace " + metadataFile + " with " + updated);
+        }
+    }
+
+    private static void copy(FileChannel from, FileChannel to, long length) throws IOException {
+        for (long pos = 0; pos < length; ) {
+            pos += from.transferTo(pos, length - pos, to);
+        }
+    }
+
+    /**
+     * Tests whether the metadata's weak checksums or block hashes were truncated.
+     */
+    private static boolean truncated(Metadata metadata) throws NoSuchAlgorithmException {
+        int fullLength = BlockHasher.getInstance(metadata.getBlockHashAlg()).getLength();
+        return metadata.getChecksumLength() < 4 || metadata.getBlockHashLength() < fullLength;
+    }
+
+    /**
+     * Tests whether metadata can be updated in place for content of the
+     * specified size: it must describe blocks without a tree, with hashes
+     * at least as long as would be chosen for the new size, unless they
+     * weren't truncated.
+     */
+    private static boolean updatable(Metadata metadata, long newSize) throws NoSuchAlgorithmException {
+        if (metadata.isChunked() || metadata.getHashTree() != null) {
+            return false; // Trees follow the records, and depend on all of them
+        }
+        if (!truncated(metadata)) {
+            return true;
+        }
+        MetadataGenerator sizing = new MetadataGenerator("", metadata.getBlockSize(), metadata.getFileHashAlg(),
+                metadata.getBlockHashAlg());
+        sizing.setHashLengths(newSize);
+        return sizing.getSeqMatches() <= metadata.getSeqMatches()
+                && sizing.getChecksumLength() <= metadata.getChecksumLength()
+                && sizing.getBlockHashLength() <= metadata.getBlockHashLength();
+    }
+
+    /**
+     * Converts changed byte ranges to sorted, disjoint ranges of the complete
+     * blocks they touch, as pairs of start (inclusive) and end (exclusive)
+     * block indexes.
+     */
+    static long[] changedBlocks(long[] changes, long oldSize, long newSize, int blockSize) {
+        long blockCount = newSize / blockSize;
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i <= changes.length; i += 2) {
+            long start = i < changes.length ? changes[i] : oldSize, end = i < changes.length ? changes[i + 1] : newSize;
+            long first = Math.max(start, 0) / blockSize, last = Math.min((Math.min(end, newSize) + blockSize - 1) / blockSize, blockCount);
+            if (start < end && first < last) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        long[] merged = new long[ranges.size() * 2];
+        int size = 0;
+        for (long[] range : ranges) {
+            if (size > 0 && range[0] <= merged[size - 1]) {
+                merged[size - 1] = Math.max(merged[size - 1], range[1]);
+            } else {
+                merged[size++] = range[0];
+                merged[size++] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * Digests the content, resuming from the saved digest if the content was
+     * only appended to since it was saved.
+     */
+    private byte[] digest(FileChannel content, Metadata metadata, boolean appended, long newSize)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(metadata.getFileHashAlg());
+        long from = 0;
+        if (appended && saved != null && savedLength == metadata.getFileSize()
+                && saved.getAlgorithm().equals(digest.getAlgorithm())) {
+            // Only resume if the saved digest is of the content this metadata describes
+            MessageDigest check = copy(saved);
+            if (check != null && Arrays.equals(check.digest(), metadata.getFileHash())) {
+                digest = copy(saved);
+                from = savedLength;
+            }
+        }
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        for (long pos = from; pos < newSize; ) {
+            int length = (int) Math.min(buf.length, newSize - pos);
+            read(content, pos, buf, length);
+            digest.update(buf, 0, length);
+            pos += length;
+        }
+
+        saved = copy(digest);
+        savedLength = newSize;
+        return digest.digest();
+    }
+
+    /**
+     * Copies a digest, or returns null if it can't be copied.
+     */
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    private static void read(FileChannel content, long position, byte[] buf, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buf, 0, length);
+        while (target.hasRemaining()) {
+            if (content.read(target, position + target.position()) < 0) {
+                throw new IOException("content ended at " + (position + target.position()));
+            }
+        }
+    }
+}
@@ -3,21 +3,48 @@ package com.github.batkinson.jrsync;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
 
 /**
- * Writes metadata directly to a file.
+ * Writes metadata directly to a file. Block records are collected in a
+ * buffer and written in large positional writes, so records are only
+ * guaranteed to be in the file once {@link #complete(long, byte[])} is called.
  */
-public class MetadataWriter implements MetadataGenerator.Handler {
+public class MetadataWriter implements MetadataGenerator.ExtendedHandler {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private final RandomAccessFile metadata;
+    private final FileChannel channel;
+    private final ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE);
+    private long recordsPos;
     private long fileHashPos;
+    private int checksumLength = 4;
 
     public MetadataWriter(RandomAccessFile metadataFile) throws FileNotFoundException {
         metadata = metadataFile;
+        channel = metadataFile.getChannel();
+    }
+
+    @Override
+    public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize)
+            throws IOException {
+        header(fileHashAlg, fileHashLength, source, blockHashAlg, blockHashLength, blockSize, Collections.<String, Long>emptyMap());
     }
 
     @Override
-    public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize) throws IOException {
+    public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength, int blockSize,
+                       Map<String, Long> options) throws IOException {
+
+        // Only mark the format when needed, so plain metadata remains readable by older readers
+        if (!options.isEmpty()) {
+            metadata.writeShort(Metadata.MAGIC);
+            metadata.writeByte(Metadata.VERSION);
+        }
+
         metadata.writeUTF(fileHashAlg);
         metadata.writeByte(fileHashLength);
 
@@ -30,16 +57,83 @@ public class MetadataWriter implements MetadataGenerator.Handler {
         metadata.writeUTF(blockHashAlg);
         metadata.writeByte(blockHashLength);
         metadata.writeInt(blockSize);
+
+        if (!options.isEmpty()) {
+            metadata.writeByte(options.size());
+            for (Map.Entry<String, Long> option : options.entrySet()) {
+                metadata.writeUTF(option.getKey());
+                metadata.writeLong(option.getValue());
+            }
+            Long checksumOption = options.get(Metadata.CHECKSUM_LENGTH);
+            if (checksumOption != null) {
+                checksumLength = checksumOption.intValue();
+            }
+        }
+
+        recordsPos = metadata.getFilePointer();
+        records.clear();
+    }
+
+    /**
+     * Makes room in the buffer for a record, writing out buffered records if
+     * needed. Records are far smaller than the buffer, since hash lengths
+     * are stored in a byte.
+     */
+    private void reserve(int length) throws IOException {
+        if (records.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        records.flip();
+        while (records.hasRemaining()) {
+            recordsPos += channel.write(records, recordsPos);
+        }
+        records.clear();
     }
 
     @Override
     public void block(long checksum, byte[] digest) throws IOException {
-        metadata.writeInt((int) checksum);
-        metadata.write(digest);
+        reserve(checksumLength + digest.length);
+        putBlock(records, checksumLength, checksum, digest);
+    }
+
+    /**
+     * Encodes a block record.
+     */
+    static void putBlock(ByteBuffer records, int checksumLength, long checksum, byte[] digest) {
+        if (checksumLength == 4) {
+            records.putInt((int) checksum);
+        } else {
+            // High half, then whatever remains of the low half
+            records.putShort((short) (checksum >>> 16));
+            if (checksumLength == 3) {
+                records.put((byte) checksum);
+            }
+        }
+        records.put(digest);
+    }
+
+    @Override
+    public void chunk(int length, byte[] digest) throws IOException {
+        reserve(4 + digest.length);
+        records.putInt(length);
+        records.put(digest);
+    }
+
+    @Override
+    public void tree(HashTree tree) throws IOException {
+        flush();
+        ByteBuffer nodes = tree.nodes();
+        while (nodes.hasRemaining()) {
+            recordsPos += channel.write(nodes, recordsPos);
+        }
     }
 
     @Override
     public void complete(long fileSize, byte[] digest) throws IOException {
+        flush();
         // Update file details now that we're finished
         metadata.seek(fileHashPos);
         metadata.write(digest);
@@ -0,0 +1,56 @@
+package com.github.batkinson.jrsync;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Generates several sets of metadata for the same content in a single pass,
+ * such as for different block sizes. The whole file is only digested once,
+ * and the digest shared by all of them, while each generator keeps its own
+ * block state, options and handler.
+ */
+public class MultiMetadataGenerator {
+
+    private final MessageDigest fileDigest;
+    private final MetadataGenerator[] generators;
+
+    /**
+     * @param generators configured generators, which must all use the same
+     *                   file hash algorithm
+     */
+    public MultiMetadataGenerator(MetadataGenerator... generators) throws NoSuchAlgorithmException {
+        if (generators.length == 0) {
+            throw new IllegalArgumentException("at least one generator is required");
+        }
+        String fileHashAlg = generators[0].getFileHashAlg();
+        for (MetadataGenerator generator : generators) {
+            if (!fileHashAlg.equals(generator.getFileHashAlg())) {
+                throw new IllegalArgumentException("generators must share file hash algorithm: " + fileHashAlg);
+            }
+        }
+        this.fileDigest = MessageDigest.getInstance(fileHashAlg);
+        this.generators = generators.clone();
+    }
+
+    public void add(byte[] buf, int offset, int length) throws IOException {
+        fileDigest.update(buf, offset, length);
+        for (MetadataGenerator generator : generators) {
+            generator.addContent(buf, offset, length);
+        }
+    }
+
+    public void finish() throws IOException {
+        byte[] fileHash = fileDigest.digest();
+        for (MetadataGenerator generator : generators) {
+            generator.finish(fileHash.clone());
+        }
+    }
+
+    public void reset() {
+        fileDigest.reset();
+        for (MetadataGenerator generator : generators) {
+            generator.reset();
+        }
+    }
+}
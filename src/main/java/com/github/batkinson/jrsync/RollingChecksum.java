@@ -49,10 +49,43 @@ public class RollingChecksum implements Checksum {
         update(b, 0, b.length);
     }
 
+    /**
+     * Computes the checksum of a single block, as if each of its bytes were
+     * added to a new checksum with a window of the block's length.
+     */
+    public static long checksum(byte[] buf, int offset, int length) {
+        int a = 0, b = 0;
+        for (int i = offset, weight = length, end = offset + length; i < end; i++, weight--) {
+            int value = buf[i] & BYTE_MASK;
+            a += value;
+            b += weight * value;
+        }
+        return ((a & MOD_MASK) | ((b & MOD_MASK) << POW2)) & 0xFFFFFFFFL;
+    }
+
     public long getValue() {
         return a + (b << POW2) & 0xFFFFFFFFL;
     }
 
+    /**
+     * Returns the mask selecting the bits of a checksum kept when it is
+     * truncated to the specified number of bytes. Like zsync, truncation keeps
+     * the high, position-weighted, half and drops the high bytes of the low
+     * half, which is a plain sum of the bytes.
+     */
+    public static long mask(int length) {
+        switch (length) {
+            case 4:
+                return 0xFFFFFFFFL;
+            case 3:
+                return 0xFFFF00FFL;
+            case 2:
+                return 0xFFFF0000L;
+            default:
+                throw new IllegalArgumentException("checksum length must be 2 to 4 bytes: " + length);
+        }
+    }
+
     public void reset() {
         a = 0;
         b = 0;
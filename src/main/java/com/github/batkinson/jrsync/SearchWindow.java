@@ -0,0 +1,293 @@
+package com.github.batkinson.jrsync;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sliding window over a byte source that maintains the rolling checksum of
+ * the block at its head. Unlike {@link SearchBuffer}, content is read in large
+ * chunks into a linear buffer, so the current block is always contiguous and
+ * the checksum is rolled across a chunk in a tight loop, without per-byte
+ * reads, modulo operations or calls.
+ */
+final class SearchWindow {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int MAP_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The results of {@link #seek(MatchTable)}.
+     */
+    static final int END = -1, REFILLED = 0, CANDIDATE = 1;
+
+    /**
+     * The source of bytes for the window.
+     */
+    interface Source {
+        /**
+         * Reads up to the number of bytes specified into the buffer.
+         *
+         * @return the number of bytes read, or -1 at the end of the source
+         */
+        int read(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Adapts a {@link DataInput} as a window source. Streams and random access
+     * files are read in bulk. Other implementations can only signal their end
+     * by throwing mid-read, so they are read byte-by-byte.
+     */
+    static Source source(final DataInput in) {
+        if (in instanceof InputStream) {
+            return new Source() {
+                @Override
+                public int read(byte[] buf, int offset, int length) throws IOException {
+                    return ((InputStream) in).read(buf, offset, length);
+                }
+            };
+        } else if (in instanceof RandomAccessFile) {
+            return new Source() {
+                @Override
+                public int read(byte[] buf, int offset, int length) throws IOException {
+                    return ((RandomAccessFile) in).read(buf, offset, length);
+                }
+            };
+        }
+        return new Source() {
+            @Override
+            public int read(byte[] buf, int offset, int length) throws IOException {
+                int count = 0;
+                try {
+                    while (count < length) {
+                        buf[offset + count] = in.readByte();
+                        count++;
+                    }
+                } catch (EOFException eof) {
+                    return count == 0 ? -1 : count;
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Adapts a {@link FileChannel} as a window source, starting at the
+     * specified offset. The file is mapped a segment at a time and chunks are
+     * bulk copied directly from the mapping, bypassing the stream stack and
+     * the channel's position.
+     */
+    static Source source(final FileChannel channel, final long start) {
+        return new Source() {
+
+            private long next = start;
+            private ByteBuffer segment;
+
+            @Override
+            public int read(byte[] buf, int offset, int length) throws IOException {
+                if (segment == null || !segment.hasRemaining()) {
+                    long size = channel.size();
+                    if (next >= size) {
+                        return -1;
+                    }
+                    segment = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(MAP_SEGMENT_SIZE, size - next));
+                    next += segment.remaining();
+                }
+                int count = Math.min(length, segment.remaining());
+                segment.get(buf, offset, count);
+                return count;
+            }
+        };
+    }
+
+    private final Source source;
+    private final int blockSize;
+    private final byte[] buf;
+    private long remaining;
+    private long base;
+    private int pos;
+    private int limit;
+    private int a;
+    private int b;
+
+    SearchWindow(Source source, long length, int blockSize) {
+        this.source = source;
+        this.blockSize = blockSize;
+        this.remaining = length;
+        this.buf = new byte[2 * blockSize + CHUNK_SIZE]; // Room to peek at the following block
+    }
+
+    /**
+     * Loads the first block of the source.
+     *
+     * @return true if the block was loaded, false if the source is shorter
+     * than a block
+     */
+    boolean load() throws IOException {
+        fill();
+        if (limit - pos < blockSize) {
+            return false;
+        }
+        sum();
+        return true;
+    }
+
+    /**
+     * Moves unconsumed bytes to the buffer start and tops it up from the
+     * source, stopping at the specified length or the end of the source.
+     *
+     * @return true if any bytes were read
+     */
+    private boolean fill() throws IOException {
+        if (remaining <= 0) {
+            return false;
+        }
+        int unconsumed = limit - pos;
+        System.arraycopy(buf, pos, buf, 0, unconsumed);
+        base += pos;
+        pos = 0;
+        limit = unconsumed;
+        int wanted = (int) Math.min(buf.length - limit, remaining), read;
+        while (limit - unconsumed < wanted) {
+            if ((read = source.read(buf, limit, wanted - (limit - unconsumed))) < 0) {
+                remaining = 0;
+                break;
+            }
+            limit += read;
+            remaining -= read;
+        }
+        return limit > unconsumed;
+    }
+
+    /**
+     * Computes the checksum of the current block from scratch.
+     */
+    private void sum() {
+        long checksum = sum(pos);
+        a = (int) (checksum & 0xFFFF);
+        b = (int) (checksum >>> 16);
+    }
+
+    /**
+     * Computes the checksum of the block at the specified buffer offset.
+     */
+    private long sum(int offset) {
+        return RollingChecksum.checksum(buf, offset, blockSize);
+    }
+
+    /**
+     * Ensures the block following the current block is buffered, after it in
+     * {@link #buffer()}, reading more of the source if needed.
+     *
+     * @return false if the source ends before the following block does
+     */
+    boolean peek() throws IOException {
+        if (limit - pos < 2 * blockSize) {
+            fill();
+        }
+        return limit - pos >= 2 * blockSize;
+    }
+
+    /**
+     * The weak checksum of the block following the current block, which must
+     * have been buffered by {@link #peek()}.
+     */
+    long followingChecksum() {
+        return sum(pos + blockSize);
+    }
+
+    /**
+     * The offset of the current block in the source.
+     */
+    long position() {
+        return base + pos;
+    }
+
+    /**
+     * The weak checksum of the current block, as computed by
+     * {@link RollingChecksum}.
+     */
+    long checksum() {
+        return (a | (b << 16)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The buffer holding the current block, starting at {@link #offset()}.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    int offset() {
+        return pos;
+    }
+
+    /**
+     * Advances the window by one byte.
+     *
+     * @return false if the end of the source was reached
+     */
+    boolean next() throws IOException {
+        if (pos + blockSize >= limit && !fill()) {
+            return false;
+        }
+        int out = buf[pos] & 0xFF, in = buf[pos + blockSize] & 0xFF;
+        a = (a - out + in) & 0xFFFF;
+        b = (b - blockSize * out + a) & 0xFFFF;
+        pos++;
+        return true;
+    }
+
+    /**
+     * Advances the window by an entire block.
+     *
+     * @return false if less than a whole block remained in the source
+     */
+    boolean skip() throws IOException {
+        pos += blockSize;
+        if (limit - pos < blockSize) {
+            fill();
+            if (limit - pos < blockSize) {
+                return false;
+            }
+        }
+        sum();
+        return true;
+    }
+
+    /**
+     * Rolls the window forward until the current block's checksum may be in
+     * the specified table, testing the current block first. This is where
+     * the search spends most of its time, so it works on local copies of the
+     * window's state.
+     *
+     * @return {@link #CANDIDATE} if the window stopped on a potential match,
+     * {@link #REFILLED} if it consumed the buffered content and read more,
+     * or {@link #END} if the source was exhausted
+     */
+    int seek(MatchTable table) throws IOException {
+        final byte[] buf = this.buf;
+        final int blockSize = this.blockSize, end = limit - blockSize;
+        int a = this.a, b = this.b, p = pos;
+        while (!table.mightContain((a | (b << 16)) & 0xFFFFFFFFL)) {
+            if (p >= end) {
+                this.a = a;
+                this.b = b;
+                pos = p;
+                return fill() ? REFILLED : END;
+            }
+            int out = buf[p] & 0xFF, in = buf[p + blockSize] & 0xFF;
+            a = (a - out + in) & 0xFFFF;
+            b = (b - blockSize * out + a) & 0xFFFF;
+            p++;
+        }
+        this.a = a;
+        this.b = b;
+        pos = p;
+        return CANDIDATE;
+    }
+}
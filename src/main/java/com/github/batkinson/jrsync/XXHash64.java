@@ -0,0 +1,91 @@
+package com.github.batkinson.jrsync;
+
+/**
+ * A pure Java implementation of the 64-bit xxHash algorithm. It is not a
+ * cryptographic hash, but it distributes well and is many times faster than
+ * MD5, which makes it a good fit for identifying blocks that already share a
+ * weak checksum.
+ */
+final class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XXHash64() {
+    }
+
+    static long hash(byte[] buf, int offset, int length, long seed) {
+
+        int pos = offset, end = offset + length;
+        long h;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2, v2 = seed + PRIME2, v3 = seed, v4 = seed - PRIME1;
+            for (int limit = end - 32; pos <= limit; pos += 32) {
+                v1 = round(v1, readLong(buf, pos));
+                v2 = round(v2, readLong(buf, pos + 8));
+                v3 = round(v3, readLong(buf, pos + 16));
+                v4 = round(v4, readLong(buf, pos + 24));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+
+        h += length;
+
+        for (; pos <= end - 8; pos += 8) {
+            h ^= round(0, readLong(buf, pos));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (pos <= end - 4) {
+            h ^= (readInt(buf, pos) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            pos += 4;
+        }
+        for (; pos < end; pos++) {
+            h ^= (buf[pos] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long merge(long acc, long value) {
+        return (acc ^ round(0, value)) * PRIME1 + PRIME4;
+    }
+
+    private static long readLong(byte[] buf, int pos) {
+        return (buf[pos] & 0xFFL)
+                | (buf[pos + 1] & 0xFFL) << 8
+                | (buf[pos + 2] & 0xFFL) << 16
+                | (buf[pos + 3] & 0xFFL) << 24
+                | (buf[pos + 4] & 0xFFL) << 32
+                | (buf[pos + 5] & 0xFFL) << 40
+                | (buf[pos + 6] & 0xFFL) << 48
+                | (buf[pos + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF)
+                | (buf[pos + 1] & 0xFF) << 8
+                | (buf[pos + 2] & 0xFF) << 16
+                | (buf[pos + 3] & 0xFF) << 24;
+    }
+}
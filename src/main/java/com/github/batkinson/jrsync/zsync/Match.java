@@ -0,0 +1,15 @@
+package com.github.batkinson.jrsync.zsync;
+
+/**
+ * Local content that can be copied for part of the remote file.
+ */
+class Match {
+
+    final long basisOffset;
+    final int length;
+
+    Match(long basisOffset, int length) {
+        this.basisOffset = basisOffset;
+        this.length = length;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.batkinson.jrsync.zsync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a byte range from start to finish. Uses a zero-based byte
+ * index and range is inclusive (last byte is in range, not past it).
+ */
+class Range {
+
+    final long first, last;
+
+    Range(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public boolean directlyFollows(Range other) {
+        return other != null && first == other.last + 1;
+    }
+
+    public boolean canMerge(Range other) {
+        return other != null
+                && (directlyFollows(other) || other.directlyFollows(this));
+    }
+
+    public Range merge(Range other) {
+        if (other != null) {
+            if (directlyFollows(other))
+                return new Range(other.first, last);
+            if (other.directlyFollows(this))
+                return new Range(first, other.last);
+        }
+        throw new RuntimeException("attempted to merge non-contiguous ranges");
+    }
+
+    /**
+     * Adds the specified range to list, compacting into contiguous ranges.
+     */
+    public static void appendRange(List<Range> ranges, long start, long finish) {
+        Range next = new Range(start, finish);
+        if (!ranges.isEmpty()) {
+            int prevIndex = ranges.size() - 1;
+            Range prev = ranges.get(prevIndex);
+            if (prev.canMerge(next)) {
+                ranges.set(prevIndex, prev.merge(next));
+                return;
+            }
+        }
+        ranges.add(next);
+    }
+
+    private static final long[] DIGITS_LOOKUP = {
+            10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L,
+            100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L, 10000000000000000L,
+            100000000000000000L, 1000000000000000000L
+    };
+
+    /**
+     * Returns the number of digits required to encode the value in a base 10 string.
+     *
+     * @param value non-negative integer
+     * @return number of digits to encode as base 10 string
+     */
+    public static long base10Digits(long value) {
+        for (int i = 0; i < DIGITS_LOOKUP.length; i++) {
+            if (value < DIGITS_LOOKUP[i])
+                return i + 1;
+        }
+        return DIGITS_LOOKUP.length + 1;
+    }
+
+    /**
+     * Returns an estimated length for the list of ranges encoded as a range string.
+     *
+     * @param ranges
+     * @return
+     */
+    public static long estimateStringLength(List<Range> ranges) {
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range r = ranges.get(i);
+            length += base10Digits(r.first) + base10Digits(r.last) + (i == 0 ? 1 : 2);
+        }
+        return length;
+    }
+
+    /**
+     * Tests whether any of the ranges, in ascending order, contains the
+     * specified offset.
+     */
+    public static boolean contains(List<Range> ranges, long offset) {
+        int low = 0, high = ranges.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Range range = ranges.get(mid);
+            if (range.last < offset)
+                low = mid + 1;
+            else if (range.first > offset)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits a list of ranges into consecutive lists whose range strings are
+     * no longer than the specified length, except for any single range that
+     * is longer on its own.
+     *
+     * @param ranges    ranges to split, in the order they are requested
+     * @param maxLength maximum length of each range string
+     * @return the lists of ranges, in order
+     */
+    public static List<List<Range>> split(List<Range> ranges, long maxLength) {
+        List<List<Range>> result = new ArrayList<>();
+        List<Range> current = new ArrayList<>();
+        long length = 0;
+        for (Range r : ranges) {
+            long rangeLength = base10Digits(r.first) + base10Digits(r.last) + 1;
+            if (!current.isEmpty() && length + rangeLength + 1 > maxLength) {
+                result.add(current);
+                current = new ArrayList<>();
+                length = 0;
+            }
+            length += current.isEmpty() ? rangeLength : rangeLength + 1;
+            current.add(r);
+        }
+        if (!current.isEmpty())
+            result.add(current);
+        return result;
+    }
+
+    /**
+     * Converts a list of ranges into a range string suitable for using with
+     * http range request headers.
+     */
+    public static String toRangeString(List<Range> ranges) {
+        StringBuilder buf = new StringBuilder();
+        for (Range r : ranges) {
+            if (buf.length() > 0)
+                buf.append(',');
+            buf.append(r);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s-%s", first, last);
+    }
+}
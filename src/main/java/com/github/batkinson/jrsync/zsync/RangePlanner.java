@@ -0,0 +1,84 @@
+package com.github.batkinson.jrsync.zsync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.batkinson.jrsync.zsync.Range.base10Digits;
+
+/**
+ * Decides which remote ranges to request. Each range costs more than its
+ * content: a part in a multipart response, with its own boundary and headers,
+ * and characters in the range header, which may need another request once it
+ * is full. When the local content between two ranges is smaller than that
+ * cost, the planner merges them and the content between is fetched too.
+ * The part overhead alone is smaller than a block, so it's the cost of
+ * another request that makes merging worthwhile: create planners with
+ * {@link #forLink(long, long)} for a measured link.
+ */
+public class RangePlanner {
+
+    /**
+     * Estimated bytes of boundary and headers for each part of a multipart
+     * response.
+     */
+    public static final int PART_OVERHEAD = 100;
+
+    private final long partOverhead;
+    private final long requestCost;
+
+    /**
+     * Creates a planner with the specified costs, in bytes.
+     *
+     * @param partOverhead bytes of boundary and headers for each response part
+     * @param requestCost  bytes that could be received in the time another request takes
+     */
+    public RangePlanner(long partOverhead, long requestCost) {
+        this.partOverhead = partOverhead;
+        this.requestCost = requestCost;
+    }
+
+    /**
+     * Creates a planner for a link with the measured round trip time and
+     * throughput, so each additional request costs what could have been
+     * received during its round trip.
+     *
+     * @param roundTripMillis round trip time in milliseconds
+     * @param bytesPerSecond  throughput in bytes per second
+     */
+    public static RangePlanner forLink(long roundTripMillis, long bytesPerSecond) {
+        return new RangePlanner(PART_OVERHEAD, roundTripMillis * bytesPerSecond / 1000);
+    }
+
+    /**
+     * Returns the cost of requesting the following range separately, rather
+     * than merged with the previous one.
+     */
+    long cost(Range prev, Range next) {
+        long headerLength = base10Digits(prev.last) + base10Digits(next.first) + 2;
+        double perHeaderByte = 1 + (double) requestCost / ZSync.RANGE_STRING_MAX_LENGTH;
+        return partOverhead + (long) (headerLength * perHeaderByte);
+    }
+
+    /**
+     * Merges ranges whose gaps cost less to fetch than to request around.
+     *
+     * @param ranges ranges in ascending byte order
+     * @return the ranges to request, in ascending byte order
+     */
+    List<Range> plan(List<Range> ranges) {
+        List<Range> result = new ArrayList<>();
+        Range current = null;
+        for (Range next : ranges) {
+            if (current != null && next.first - current.last - 1 <= cost(current, next)) {
+                current = new Range(current.first, next.last);
+            } else {
+                if (current != null)
+                    result.add(current);
+                current = next;
+            }
+        }
+        if (current != null)
+            result.add(current);
+        return result;
+    }
+}
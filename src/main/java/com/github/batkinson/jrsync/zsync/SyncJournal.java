@@ -0,0 +1,244 @@
+package com.github.batkinson.jrsync.zsync;
+
+import com.github.batkinson.jrsync.Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.batkinson.jrsync.zsync.Range.appendRange;
+
+/**
+ * Records the progress of a sync next to its target, so an interrupted sync
+ * can resume without repeating the search or the content already written. The
+ * journal starts with the search result: the matching local content and the
+ * remote ranges required. Ranges are then appended as they are written and
+ * forced to disk, so a record is only ever written for content that is
+ * durable. A record torn by the process being killed is ignored. The format
+ * is described in JOURNAL.md.
+ */
+class SyncJournal implements Closeable {
+
+    static final int MAGIC = 0x4A534A; // "JSJ"
+    static final int VERSION = 1;
+
+    private static final int RECORD_SIZE = 16;
+    private static final int MATCH_SIZE = 20;
+
+    private final Map<Long, Match> matches;
+    private final List<Range> required;
+    private final List<Range> completed;
+    private final RandomAccessFile out;
+
+    private SyncJournal(Map<Long, Match> matches, List<Range> required, List<Range> completed, RandomAccessFile out) {
+        this.matches = matches;
+        this.required = required;
+        this.completed = completed;
+        this.out = out;
+    }
+
+    /**
+     * Creates a new journal for a sync, replacing any existing one. Matches
+     * that continue each other in both files are recorded as one.
+     */
+    static SyncJournal create(File file, Metadata metadata, File basis, Map<Long, Match> matches, List<Range> required)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        Map<Long, Match> runs = runs(matches);
+        try {
+            writeHeader(data, metadata, basis);
+            data.writeInt(runs.size());
+            for (Map.Entry<Long, Match> entry : runs.entrySet()) {
+                data.writeLong(entry.getKey());
+                data.writeLong(entry.getValue().basisOffset);
+                data.writeInt(entry.getValue().length);
+            }
+            data.writeInt(required.size());
+            for (Range range : required) {
+                data.writeLong(range.first);
+                data.writeLong(range.last);
+            }
+        } finally {
+            IOUtil.close(data);
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.getChannel().force(true);
+        out.seek(out.length());
+        return new SyncJournal(runs, required, new ArrayList<Range>(), out);
+    }
+
+    /**
+     * Opens the journal for a sync to resume it.
+     *
+     * @return the journal, or null if there is none or it's for a different
+     * target or basis
+     */
+    static SyncJournal open(File file, Metadata metadata, File basis) throws IOException {
+        if (!file.exists())
+            return null;
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        Map<Long, Match> matches = new HashMap<>();
+        List<Range> required = new ArrayList<>(), completed = new ArrayList<>();
+        long length;
+        try {
+            if (!readHeader(data, metadata, basis))
+                return null;
+            int matchCount = data.readInt();
+            for (int i = 0; i < matchCount; i++) {
+                matches.put(data.readLong(), new Match(data.readLong(), data.readInt()));
+            }
+            int requiredCount = data.readInt();
+            for (int i = 0; i < requiredCount; i++) {
+                required.add(new Range(data.readLong(), data.readLong()));
+            }
+            length = headerLength(metadata) + 4 + (long) matchCount * MATCH_SIZE + 4 + (long) requiredCount * RECORD_SIZE;
+            long records = (file.length() - length) / RECORD_SIZE;
+            for (long i = 0; i < records; i++) {
+                completed.add(new Range(data.readLong(), data.readLong()));
+            }
+            length += records * RECORD_SIZE;
+        } catch (EOFException e) {
+            return null; // Killed before the search result was written
+        } finally {
+            IOUtil.close(data);
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(length); // Drop a torn record
+        out.seek(length);
+        return new SyncJournal(matches, required, ZSync.sorted(completed), out);
+    }
+
+    private static void writeHeader(DataOutputStream data, Metadata metadata, File basis) throws IOException {
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(metadata.getFileHash().length);
+        data.write(metadata.getFileHash());
+        data.writeLong(metadata.getFileSize());
+        data.writeLong(basis.length());
+        data.writeLong(basis.lastModified());
+    }
+
+    /**
+     * The length of the header for the metadata, as written by
+     * {@link #writeHeader(DataOutputStream, Metadata, File)}.
+     */
+    private static long headerLength(Metadata metadata) {
+        return 4 + 1 + 1 + metadata.getFileHash().length + 8 + 8 + 8;
+    }
+
+    private static boolean readHeader(DataInputStream data, Metadata metadata, File basis) throws IOException {
+        if (data.readInt() != MAGIC || data.readByte() != VERSION)
+            return false;
+        byte[] fileHash = new byte[data.readUnsignedByte()];
+        data.readFully(fileHash);
+        return Arrays.equals(fileHash, metadata.getFileHash())
+                && data.readLong() == metadata.getFileSize()
+                && data.readLong() == basis.length()
+                && data.readLong() == basis.lastModified();
+    }
+
+    /**
+     * Combines matches that continue each other in both the target and the
+     * basis.
+     */
+    private static Map<Long, Match> runs(Map<Long, Match> matches) {
+        List<Long> offsets = new ArrayList<>(matches.keySet());
+        Collections.sort(offsets);
+        Map<Long, Match> result = new HashMap<>();
+        long runOffset = -1;
+        Match run = null;
+        for (Long offset : offsets) {
+            Match match = matches.get(offset);
+            if (run != null && runOffset + run.length == offset && run.basisOffset + run.length == match.basisOffset
+                    && (long) run.length + match.length <= Integer.MAX_VALUE) {
+                run = new Match(run.basisOffset, run.length + match.length);
+            } else {
+                if (run != null)
+                    result.put(runOffset, run);
+                runOffset = offset;
+                run = match;
+            }
+        }
+        if (run != null)
+            result.put(runOffset, run);
+        return result;
+    }
+
+    /**
+     * The matching local content found by the search, keyed by target offset.
+     */
+    Map<Long, Match> getMatches() {
+        return matches;
+    }
+
+    /**
+     * The remote ranges required, in ascending byte order.
+     */
+    List<Range> getRequired() {
+        return required;
+    }
+
+    /**
+     * The ranges already written when the journal was opened, in ascending
+     * byte order.
+     */
+    List<Range> getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Records ranges of the target as written. The content must already be
+     * forced to disk.
+     */
+    void completed(List<Range> ranges) throws IOException {
+        if (ranges.isEmpty())
+            return;
+        ByteBuffer records = ByteBuffer.allocate(ranges.size() * RECORD_SIZE);
+        for (Range range : ranges) {
+            records.putLong(range.first).putLong(range.last);
+        }
+        out.write(records.array());
+        out.getChannel().force(false);
+    }
+
+    /**
+     * Returns the parts of the ranges, in ascending order, whose whole blocks
+     * still verify against the metadata, so content changed since it was
+     * recorded is written again.
+     */
+    static List<Range> verified(BlockVerifier verifier, RandomAccessFile target, List<Range> ranges) throws IOException {
+        List<Range> result = new ArrayList<>();
+        byte[] buf = verifier.buffer();
+        for (Range range : ranges) {
+            for (long offset = range.first; offset <= range.last; ) {
+                int length = (int) Math.min(verifier.length(offset), range.last - offset + 1);
+                target.seek(offset);
+                target.readFully(buf, 0, length);
+                if (verifier.verify(offset, buf, length))
+                    appendRange(result, offset, offset + length - 1);
+                offset += length;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        IOUtil.close(out);
+    }
+}
@@ -1,32 +1,43 @@
 package com.github.batkinson.jrsync.zsync;
 
 import com.github.batkinson.jrsync.BlockDesc;
+import com.github.batkinson.jrsync.BlockHasher;
 import com.github.batkinson.jrsync.BlockSearch;
+import com.github.batkinson.jrsync.ChunkDesc;
+import com.github.batkinson.jrsync.ChunkSearch;
 import com.github.batkinson.jrsync.Metadata;
 import com.github.batkinson.jrsync.SearchHandler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.github.batkinson.jrsync.zsync.IOUtil.BUFFER_SIZE;
 import static com.github.batkinson.jrsync.zsync.IOUtil.buffer;
 import static com.github.batkinson.jrsync.zsync.IOUtil.close;
 import static com.github.batkinson.jrsync.zsync.IOUtil.copy;
 import static com.github.batkinson.jrsync.zsync.Range.appendRange;
-import static com.github.batkinson.jrsync.zsync.Range.estimateStringLength;
 import static com.github.batkinson.jrsync.zsync.Range.toRangeString;
 import static com.github.batkinson.jrsync.zsync.ZSync.parseContentRange;
-import static java.util.Arrays.asList;
-import static java.util.Collections.EMPTY_MAP;
 
 /**
  * Contains methods useful for implementing the zsync algorithm. By relying only
@@ -43,6 +54,42 @@ public class ZSync {
     public static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
     public static final String MULTIPART_BYTERANGES_MIME_TYPE = "multipart/byteranges";
 
+    /**
+     * The number of times content that fails verification is fetched again
+     * before giving up.
+     */
+    public static final int MAX_REFETCHES = 3;
+
+    /**
+     * The longest range string sent with a single request. Ranges that don't
+     * fit are requested by a series of requests instead.
+     */
+    static final int RANGE_STRING_MAX_LENGTH = 3700;
+
+    /**
+     * The most content a streaming sync fetches while the search is still
+     * running, besides the content past the last whole block.
+     */
+    public static final long STREAMING_LIMIT = 16 * 1024 * 1024;
+
+    /**
+     * The least content a streaming sync fetches with each request while the
+     * search continues.
+     */
+    public static final long STREAMING_BATCH_SIZE = 1024 * 1024;
+
+    /**
+     * The file extension of the journal a resumable sync keeps next to its
+     * target.
+     */
+    public static final String JOURNAL_EXT = "jrsj";
+
+    /**
+     * The most content a resumable sync writes before recording its progress,
+     * and the most it requests at once.
+     */
+    public static final long JOURNAL_BATCH_SIZE = 1024 * 1024;
+
     /**
      * Parses the specified {@link String} as an http content range header value.
      *
@@ -95,61 +142,705 @@ public class ZSync {
      */
     public static void sync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
                             ProgressTracker tracker) throws NoSuchAlgorithmException, IOException, InterruptedException {
+        sync(metadata, basis, target, requestFactory, tracker, null);
+    }
+
+    /**
+     * Performs a remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker)},
+     * using the specified planner to decide which ranges to request. Without
+     * a planner, only ranges that adjoin each other are merged.
+     *
+     * @param planner merges ranges when fetching the content between them costs less, null for no planning
+     */
+    public static void sync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                            ProgressTracker tracker, RangePlanner planner)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
 
         MessageDigest digest = MessageDigest.getInstance(metadata.getFileHashAlg());
         DigestOutputStream digestOut = new DigestOutputStream(buffer(new FileOutputStream(target)), digest);
 
-        // Perform block search for remote content in local file
-        BlockSearch search = new BlockSearch(metadata.getBlockDescs(), metadata.getBlockSize());
         Analyzer analyzer = new Analyzer(metadata);
         if (tracker != null)
             analyzer.setTracker(tracker);
-        DataInputStream searchInput = new DataInputStream(buffer(new FileInputStream(basis)));
+        RandomAccessFile randomAccessBasis = new RandomAccessFile(basis, "r");
+        RangeStream input = null;
+        List<Range> failed;
         try {
-            search.zsyncSearch(searchInput, basis.length(), metadata.getFileSize(), metadata.getBlockHashAlg(), analyzer);
+            search(metadata, randomAccessBasis, analyzer);
+            if (planner != null)
+                analyzer.plan(planner);
+
+            if (analyzer.remoteBytes() > 0) {
+                input = new RequestRangeStream(requestFactory, analyzer.getRemoteRanges());
+            }
+
+            failed = buildFile(metadata, randomAccessBasis, analyzer.getMatches(), analyzer.getRemoteRanges(), input, digestOut,
+                    tracker);
+
         } finally {
-            searchInput.close();
+            close(input, digestOut, randomAccessBasis);
         }
 
-        RangeRequest req = null;
-        RangeStream input = null;
+        byte[] fileHash = failed.isEmpty() ? digest.digest() : refetch(metadata, target, failed, requestFactory);
+        if (!Arrays.equals(metadata.getFileHash(), fileHash)) {
+            throw new RuntimeException("constructed file doesn't match metadata");
+        }
+    }
+
+    /**
+     * Performs a remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker)},
+     * but fetches the remote ranges over several concurrent connections.
+     * Ranges are split into balanced batches, one per connection, and each
+     * batch is fetched by its own request using the specified executor. Local
+     * and remote content are written into place in the target as they arrive,
+     * so progress may be reported from the fetching threads.
+     *
+     * @param metadata       describes remote file
+     * @param basis          local file to search for matching content
+     * @param target         file that will be written as a result
+     * @param requestFactory factory to create http range requests, must be safe to use concurrently
+     * @param tracker        event handler for progress updates, null for no tracking
+     * @param executor       executes the range requests
+     * @param connections    number of range requests to make at once
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void sync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                            ProgressTracker tracker, ExecutorService executor, int connections)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+        sync(metadata, basis, target, requestFactory, tracker, executor, connections, 0);
+    }
+
+    /**
+     * Performs a concurrent remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker, ExecutorService, int)},
+     * but limits the amount of content requested at once, splitting the
+     * ranges into more batches than connections when needed. Smaller batches
+     * keep connections busy when some are slower than others.
+     *
+     * @param batchSize maximum bytes to request at once, rounded up to a whole block, or 0 for no limit
+     */
+    public static void sync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                            ProgressTracker tracker, ExecutorService executor, int connections, long batchSize)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+        sync(metadata, basis, target, requestFactory, tracker, executor, connections, batchSize, null);
+    }
+
+    /**
+     * Performs a concurrent remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker, ExecutorService, int, long)},
+     * using the specified planner to decide which ranges to request. Without
+     * a planner, only ranges that adjoin each other are merged.
+     *
+     * @param planner merges ranges when fetching the content between them costs less, null for no planning
+     */
+    public static void sync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                            ProgressTracker tracker, ExecutorService executor, int connections, long batchSize,
+                            RangePlanner planner)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+
+        BlockVerifier verifier = new BlockVerifier(metadata);
+        Analyzer analyzer = new Analyzer(metadata);
+        if (tracker != null)
+            analyzer.setTracker(tracker);
+        RandomAccessFile randomAccessBasis = new RandomAccessFile(basis, "r");
+        RandomAccessFile out = null;
+        List<Future<List<Range>>> results = new ArrayList<>();
+        List<Range> failed = new ArrayList<>();
         try {
-            if (analyzer.remoteBytes() > 0) {
-                req = requestFactory.create();
-                req.setHeader(RANGE_HEADER, "bytes=" + toRangeString(analyzer.getRemoteRanges()));
+            search(metadata, randomAccessBasis, analyzer);
+            if (planner != null)
+                analyzer.plan(planner);
+
+            out = new RandomAccessFile(target, "rw");
+            out.setLength(metadata.getFileSize());
+            FileChannel channel = out.getChannel();
+            CopyTracker copyTracker = new CopyTracker(tracker, metadata.getFileSize());
+            copyTracker.copied(0);
 
-                int status = req.getResponseCode();
-                String contentType = req.getContentType(), contentRange = req.getHeader(CONTENT_RANGE_HEADER);
-                InputStream bodyIn = req.getInputStream();
+            // Start fetching before copying local content, so it overlaps with the requests
+            if (analyzer.remoteBytes() > 0) {
+                for (List<Range> batch : batches(analyzer.getRemoteRanges(), verifier, connections, batchSize)) {
+                    results.add(executor.submit(new Fetch(requestFactory, metadata, batch, channel, copyTracker)));
+                }
+            }
 
-                if (status != SC_PARTIAL_CONTENT)
-                    throw new RuntimeException(
-                            "expected " + SC_PARTIAL_CONTENT + ", was: " + status);
+            copyMatches(randomAccessBasis.getChannel(), analyzer.getMatches(), channel, copyTracker);
 
-                if (contentRange != null) {
-                    input = new ContentRangeStream(bodyIn, contentRange);
-                } else if (contentType != null && contentType.contains(MULTIPART_BYTERANGES_MIME_TYPE)) {
-                    input = new MultipartByteRangeInputStream(bodyIn, contentType);
-                } else
-                    throw new RuntimeException("expected http range content for single or multiple ranges");
+            for (Future<List<Range>> result : results) {
+                failed.addAll(result.get());
             }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            for (Future<List<Range>> result : results) {
+                result.cancel(true);
+            }
+            close(out, randomAccessBasis);
+        }
 
-            RandomAccessFile randomAccessBasis = new RandomAccessFile(basis, "r");
+        if (!Arrays.equals(metadata.getFileHash(), refetch(metadata, target, sorted(failed), requestFactory))) {
+            throw new RuntimeException("constructed file doesn't match metadata");
+        }
+    }
+
+    /**
+     * Performs a remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker)},
+     * but starts fetching remote content while the basis is still being
+     * searched, using {@link #STREAMING_LIMIT} and {@link #STREAMING_BATCH_SIZE}.
+     *
+     * @param executor fetches remote content while the search runs
+     * @see #streamingSync(Metadata, File, File, RangeRequestFactory, ProgressTracker, ExecutorService, long, long)
+     */
+    public static void streamingSync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                                     ProgressTracker tracker, ExecutorService executor)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+        streamingSync(metadata, basis, target, requestFactory, tracker, executor, STREAMING_LIMIT, STREAMING_BATCH_SIZE);
+    }
+
+    /**
+     * Performs a remote file synchronization that fetches remote content while
+     * the basis is still being searched, so the network isn't idle during the
+     * search. Content past the last whole block never matches, so it is
+     * fetched right away. Once a match continues the previous one in both
+     * files, the content before it in the target has usually been found
+     * wherever it is going to be, so the unmatched blocks before it are
+     * fetched too. Content that is moved further along in the basis may still
+     * match after being fetched, so at most the limit is fetched this way.
+     * Blocks that match after all are simply taken from the remote data.
+     * Whatever the search leaves unmatched is fetched once it completes, while
+     * the matching local content is copied.
+     *
+     * @param metadata       describes remote file
+     * @param basis          local file to search for matching content
+     * @param target         file that will be written as a result
+     * @param requestFactory factory to create http range requests, must be safe to use concurrently
+     * @param tracker        event handler for progress updates, null for no tracking
+     * @param executor       fetches remote content while the search runs
+     * @param limit          most content to fetch before the search completes, besides the trailing content
+     * @param batchSize      least content to fetch with each request during the search
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void streamingSync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                                     ProgressTracker tracker, ExecutorService executor, long limit, long batchSize)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+
+        StreamingAnalyzer analyzer = new StreamingAnalyzer(metadata, limit, batchSize);
+        if (tracker != null)
+            analyzer.setTracker(tracker);
+        RandomAccessFile randomAccessBasis = new RandomAccessFile(basis, "r");
+        RandomAccessFile out = null;
+        List<Future<List<Range>>> results = new ArrayList<>();
+        List<Range> failed = new ArrayList<>();
+        try {
+            out = new RandomAccessFile(target, "rw");
+            out.setLength(metadata.getFileSize());
+            FileChannel channel = out.getChannel();
+            CopyTracker copyTracker = new CopyTracker(tracker, metadata.getFileSize());
+            copyTracker.copied(0);
+
+            Future<List<Range>> speculative = executor.submit(
+                    new StreamingFetch(requestFactory, metadata, analyzer, channel, copyTracker));
+            results.add(speculative);
             try {
-                buildFile(metadata, randomAccessBasis, analyzer.getMatches(), input, digestOut, tracker);
+                search(metadata, randomAccessBasis, analyzer);
             } finally {
-                randomAccessBasis.close();
+                analyzer.finish();
             }
+            failed.addAll(speculative.get());
 
+            // Fetch what is still required, and copy local content that wasn't fetched
+            List<Range> fetched = analyzer.getFetched();
+            List<Range> remaining = missing(analyzer.getRemoteRanges(), fetched);
+            if (!remaining.isEmpty()) {
+                results.add(executor.submit(new Fetch(requestFactory, metadata, remaining, channel, copyTracker)));
+            }
+            Map<Long, Match> matches = new HashMap<>();
+            for (Map.Entry<Long, Match> entry : analyzer.getMatches().entrySet()) {
+                if (!Range.contains(fetched, entry.getKey()))
+                    matches.put(entry.getKey(), entry.getValue());
+            }
+            copyMatches(randomAccessBasis.getChannel(), matches, channel, copyTracker);
+
+            for (Future<List<Range>> result : results.subList(1, results.size())) {
+                failed.addAll(result.get());
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
         } finally {
-            close(input, req, digestOut);
+            for (Future<List<Range>> result : results) {
+                result.cancel(true);
+            }
+            close(out, randomAccessBasis);
         }
 
-        if (!Arrays.equals(metadata.getFileHash(), digest.digest())) {
+        if (!Arrays.equals(metadata.getFileHash(), refetch(metadata, target, sorted(failed), requestFactory))) {
             throw new RuntimeException("constructed file doesn't match metadata");
         }
     }
 
+    /**
+     * Returns the journal a resumable sync keeps for the specified target.
+     */
+    public static File journalFile(File target) {
+        return new File(target.getPath() + "." + JOURNAL_EXT);
+    }
+
+    /**
+     * Performs a remote file synchronization like
+     * {@link #sync(Metadata, File, File, RangeRequestFactory, ProgressTracker)},
+     * but keeps a journal next to the target so the sync can be resumed if it
+     * is interrupted, or the process is killed. The journal records the
+     * search result and the ranges of the target written so far. When a
+     * journal for the same remote file and basis exists, the search is
+     * skipped, ranges it records are verified against their block hashes
+     * again, and only the content still missing is copied or fetched. The
+     * journal is deleted once the sync completes.
+     *
+     * @param metadata       describes remote file
+     * @param basis          local file to search for matching content, must be unchanged to resume
+     * @param target         file that will be written as a result, kept if the sync is interrupted
+     * @param requestFactory factory to create http range requests
+     * @param tracker        event handler for progress updates, null for no tracking
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void resumableSync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                                     ProgressTracker tracker)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+        resumableSync(metadata, basis, target, requestFactory, tracker, JOURNAL_BATCH_SIZE);
+    }
+
+    /**
+     * Performs a resumable remote file synchronization like
+     * {@link #resumableSync(Metadata, File, File, RangeRequestFactory, ProgressTracker)},
+     * recording progress after the specified amount of content. Smaller
+     * batches lose less when interrupted, but make more requests.
+     *
+     * @param batchSize most content to write before recording progress, and to request at once
+     */
+    public static void resumableSync(Metadata metadata, File basis, File target, RangeRequestFactory requestFactory,
+                                     ProgressTracker tracker, long batchSize)
+            throws NoSuchAlgorithmException, IOException, InterruptedException {
+
+        File journalFile = journalFile(target);
+        BlockVerifier verifier = new BlockVerifier(metadata);
+        RandomAccessFile randomAccessBasis = new RandomAccessFile(basis, "r");
+        RandomAccessFile out = null;
+        SyncJournal journal = null;
+        List<Range> failed = new ArrayList<>();
+        try {
+            List<Range> completed = new ArrayList<>();
+            if (target.length() == metadata.getFileSize())
+                journal = SyncJournal.open(journalFile, metadata, basis);
+            out = new RandomAccessFile(target, "rw");
+            if (journal != null) {
+                completed = SyncJournal.verified(verifier, out, journal.getCompleted());
+            } else {
+                Analyzer analyzer = new Analyzer(metadata);
+                if (tracker != null)
+                    analyzer.setTracker(tracker);
+                search(metadata, randomAccessBasis, analyzer);
+                // The journal is only used with a full-size target, so it is written first: if the sync is killed
+                // before the target is sized, it is simply started again
+                journal = SyncJournal.create(journalFile, metadata, basis, analyzer.getMatches(), analyzer.getRemoteRanges());
+                out.setLength(metadata.getFileSize());
+            }
+
+            FileChannel channel = out.getChannel();
+            CopyTracker copyTracker = new CopyTracker(tracker, metadata.getFileSize());
+            for (Range range : completed)
+                copyTracker.copied += range.last - range.first + 1;
+            copyTracker.copied(0);
+
+            // Copy local content not yet written, recording it a batch at a time
+            Map<Long, Match> uncopied = uncopied(journal.getMatches(), completed);
+            List<Long> offsets = new ArrayList<>(uncopied.keySet());
+            Collections.sort(offsets);
+            Map<Long, Match> batch = new HashMap<>();
+            List<Range> batchRanges = new ArrayList<>();
+            long batchBytes = 0;
+            for (int i = 0; i < offsets.size(); i++) {
+                long offset = offsets.get(i);
+                Match match = uncopied.get(offset);
+                batch.put(offset, match);
+                appendRange(batchRanges, offset, offset + match.length - 1);
+                batchBytes += match.length;
+                if (batchBytes >= batchSize || i == offsets.size() - 1) {
+                    copyMatches(randomAccessBasis.getChannel(), batch, channel, copyTracker);
+                    channel.force(false);
+                    journal.completed(batchRanges);
+                    batch.clear();
+                    batchRanges = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+
+            // Fetch remote content not yet written, a request at a time
+            List<Range> remaining = missing(journal.getRequired(), completed);
+            if (!remaining.isEmpty()) {
+                for (List<Range> ranges : batches(remaining, verifier, 1, batchSize)) {
+                    List<Range> rangesFailed = fetch(requestFactory, verifier, metadata.getFileSize(), ranges, channel,
+                            copyTracker);
+                    channel.force(false);
+                    journal.completed(missing(ranges, rangesFailed));
+                    failed.addAll(rangesFailed);
+                }
+            }
+        } finally {
+            close(journal, out, randomAccessBasis);
+        }
+
+        if (!Arrays.equals(metadata.getFileHash(), refetch(metadata, target, sorted(failed), requestFactory))) {
+            journalFile.delete();
+            throw new RuntimeException("constructed file doesn't match metadata");
+        }
+        journalFile.delete();
+    }
+
+    /**
+     * Returns the parts of the matches not covered by the completed ranges.
+     *
+     * @param completed ranges already written, in ascending byte order
+     */
+    static Map<Long, Match> uncopied(Map<Long, Match> matches, List<Range> completed) {
+        List<Long> offsets = new ArrayList<>(matches.keySet());
+        Collections.sort(offsets);
+        List<Range> local = new ArrayList<>();
+        for (Long offset : offsets) {
+            local.add(new Range(offset, offset + matches.get(offset).length - 1));
+        }
+        Map<Long, Match> result = new HashMap<>();
+        int next = 0;
+        for (Range part : missing(local, completed)) {
+            while (local.get(next).last < part.first)
+                next++;
+            for (int i = next; i < local.size() && local.get(i).first <= part.last; i++) {
+                Range match = local.get(i);
+                long first = Math.max(match.first, part.first), last = Math.min(match.last, part.last);
+                result.put(first, new Match(matches.get(match.first).basisOffset + first - match.first, (int) (last - first + 1)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Searches the basis for content matching the remote file.
+     */
+    private static void search(Metadata metadata, RandomAccessFile basis, Analyzer analyzer)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        if (metadata.isChunked()) {
+            ChunkSearch search = new ChunkSearch(metadata.getBlockDescs(), metadata.getMinChunkSize(), metadata.getBlockSize(),
+                    metadata.getMaxChunkSize());
+            search.search(basis.getChannel(), metadata.getBlockHashAlg(), analyzer);
+        } else {
+            BlockSearch search = new BlockSearch(metadata.getBlockDescs(), metadata.getBlockSize(), metadata.getChecksumLength());
+            search.setSeqMatches(metadata.getSeqMatches());
+            search.zsyncSearch(basis.getChannel(), metadata.getFileSize(), metadata.getBlockHashAlg(), analyzer);
+        }
+    }
+
+    /**
+     * Splits ranges into batches of roughly equal size: one per connection,
+     * or more if needed to keep each under the batch size. Ranges are only
+     * split at block, or chunk, boundaries so every block is verified, and
+     * what remains is rebalanced after each batch to make up for rounding.
+     *
+     * @param batchSize maximum bytes per batch, or 0 for no limit
+     */
+    static List<List<Range>> batches(List<Range> ranges, BlockVerifier verifier, int connections, long batchSize) {
+        long total = 0;
+        for (Range range : ranges)
+            total += range.last - range.first + 1;
+        long count = Math.max(connections, 1);
+        if (batchSize > 0)
+            count = Math.max(count, (total + batchSize - 1) / batchSize);
+        long perBatch = (total + count - 1) / count;
+
+        List<List<Range>> result = new ArrayList<>();
+        List<Range> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (Range range : ranges) {
+            long first = range.first;
+            while (first <= range.last) {
+                long fits = first + (perBatch - batchBytes) - 1;
+                long split = fits >= range.last ? range.last + 1 : fits + verifier.length(fits);
+                long last = Math.min(split, range.last + 1) - 1;
+                appendRange(batch, first, last);
+                batchBytes += last - first + 1;
+                first = last + 1;
+                if (batchBytes >= perBatch) {
+                    result.add(batch);
+                    total -= batchBytes;
+                    long remaining = Math.max(count - result.size(), 1);
+                    perBatch = (total + remaining - 1) / remaining;
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+        }
+        if (!batch.isEmpty())
+            result.add(batch);
+        return result;
+    }
+
+    /**
+     * Copies the matching local content into place in the target.
+     */
+    private static void copyMatches(FileChannel basis, Map<Long, Match> matches, FileChannel target, CopyTracker tracker)
+            throws IOException, InterruptedException {
+        List<Long> offsets = new ArrayList<>(matches.keySet());
+        Collections.sort(offsets);
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        for (Long offset : offsets) {
+            Match match = matches.get(offset);
+            long remaining = match.length;
+            while (remaining > 0) {
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                buf.clear();
+                buf.limit((int) Math.min(remaining, buf.capacity()));
+                long done = match.length - remaining;
+                if (basis.read(buf, match.basisOffset + done) < 0)
+                    throw new IOException("failed to read content, end of file");
+                buf.flip();
+                int read = buf.remaining();
+                while (buf.hasRemaining())
+                    target.write(buf, offset + done + buf.position());
+                remaining -= read;
+                tracker.copied(read);
+            }
+        }
+    }
+
+    /**
+     * Fetches one batch of ranges for a concurrent sync.
+     */
+    private static final class Fetch implements Callable<List<Range>> {
+
+        private final RangeRequestFactory requestFactory;
+        private final Metadata metadata;
+        private final List<Range> ranges;
+        private final FileChannel target;
+        private final CopyTracker tracker;
+
+        Fetch(RangeRequestFactory requestFactory, Metadata metadata, List<Range> ranges, FileChannel target,
+              CopyTracker tracker) {
+            this.requestFactory = requestFactory;
+            this.metadata = metadata;
+            this.ranges = ranges;
+            this.target = target;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public List<Range> call() throws IOException, NoSuchAlgorithmException, InterruptedException {
+            return fetch(requestFactory, new BlockVerifier(metadata), metadata.getFileSize(), ranges, target, tracker);
+        }
+    }
+
+    /**
+     * Fetches the batches of ranges a {@link StreamingAnalyzer} hands out
+     * during the search, in order, until the search completes.
+     */
+    private static final class StreamingFetch implements Callable<List<Range>> {
+
+        private final RangeRequestFactory requestFactory;
+        private final Metadata metadata;
+        private final StreamingAnalyzer analyzer;
+        private final FileChannel target;
+        private final CopyTracker tracker;
+
+        StreamingFetch(RangeRequestFactory requestFactory, Metadata metadata, StreamingAnalyzer analyzer,
+                       FileChannel target, CopyTracker tracker) {
+            this.requestFactory = requestFactory;
+            this.metadata = metadata;
+            this.analyzer = analyzer;
+            this.target = target;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public List<Range> call() throws IOException, NoSuchAlgorithmException, InterruptedException {
+            BlockVerifier verifier = new BlockVerifier(metadata);
+            List<Range> failed = new ArrayList<>(), batch;
+            while ((batch = analyzer.take()) != null) {
+                failed.addAll(fetch(requestFactory, verifier, metadata.getFileSize(), batch, target, tracker));
+            }
+            return failed;
+        }
+    }
+
+    private static IOException rethrow(ExecutionException e)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Requests the specified ranges and returns the content of the response.
+     */
+    static RangeStream open(RangeRequest req, List<Range> ranges) throws IOException {
+        req.setHeader(RANGE_HEADER, "bytes=" + toRangeString(ranges));
+
+        int status = req.getResponseCode();
+        String contentType = req.getContentType(), contentRange = req.getHeader(CONTENT_RANGE_HEADER);
+        InputStream bodyIn = req.getInputStream();
+
+        if (status != SC_PARTIAL_CONTENT)
+            throw new RuntimeException(
+                    "expected " + SC_PARTIAL_CONTENT + ", was: " + status);
+
+        if (contentRange != null) {
+            return new ContentRangeStream(bodyIn, contentRange);
+        } else if (contentType != null && contentType.contains(MULTIPART_BYTERANGES_MIME_TYPE)) {
+            return new MultipartByteRangeInputStream(bodyIn, contentType);
+        } else
+            throw new RuntimeException("expected http range content for single or multiple ranges");
+    }
+
+    /**
+     * Requests the ranges that failed verification again, up to
+     * {@link #MAX_REFETCHES} times, writing them into place in the target.
+     * Each attempt only requests the ranges still failing after the last.
+     *
+     * @return the digest of the target once all of its ranges are verified
+     * @throws IOException if ranges still fail after the last attempt
+     */
+    private static byte[] refetch(Metadata metadata, File target, List<Range> failed, RangeRequestFactory requestFactory)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        BlockVerifier verifier = new BlockVerifier(metadata);
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            for (int attempt = 0; attempt < MAX_REFETCHES && !failed.isEmpty(); attempt++) {
+                failed = fetch(requestFactory, verifier, metadata.getFileSize(), failed, out.getChannel(), null);
+            }
+        } finally {
+            close(out);
+        }
+        if (!failed.isEmpty()) {
+            throw new IOException("content failed verification after " + MAX_REFETCHES + " attempts: " + toRangeString(failed));
+        }
+        return digest(target, metadata.getFileHashAlg());
+    }
+
+    /**
+     * Requests the specified ranges, writing them into place in the target as
+     * they are verified. Ranges are sent with as few requests as fit.
+     *
+     * @param tracker progress of the content written, or null
+     * @return the ranges that failed verification or were missing from the
+     * response, in order
+     */
+    private static List<Range> fetch(RangeRequestFactory requestFactory, BlockVerifier verifier, long fileSize,
+                                     List<Range> ranges, FileChannel target, CopyTracker tracker)
+            throws IOException, InterruptedException {
+        RangeStream input = new RequestRangeStream(requestFactory, ranges);
+        List<Range> received = new ArrayList<>(), failed = new ArrayList<>();
+        try {
+            Range range;
+            while ((range = next(input)) != null) {
+                if (range.first < 0 || range.last >= fileSize || range.last < range.first)
+                    throw new RuntimeException("unexpected range: " + range);
+                long length = range.last - range.first + 1;
+                long copied = copyRange(verifier, input, range.first, length, new FileSink(target, range.first, tracker), failed);
+                if (copied > 0)
+                    appendRange(received, range.first, range.first + copied - 1);
+                if (copied < length)
+                    break; // Content ended early
+            }
+        } finally {
+            close(input);
+        }
+        failed.addAll(missing(ranges, received));
+        return sorted(failed);
+    }
+
+    /**
+     * Returns the next range of the content, or null if it ended, even if it
+     * ended early.
+     */
+    private static Range next(RangeStream input) throws IOException {
+        try {
+            return input.next();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the parts of the requested ranges not covered by the received
+     * ranges. Both lists must be in ascending order.
+     */
+    static List<Range> missing(List<Range> requested, List<Range> received) {
+        List<Range> result = new ArrayList<>();
+        int r = 0;
+        for (Range range : requested) {
+            long first = range.first;
+            while (first <= range.last) {
+                while (r < received.size() && received.get(r).last < first)
+                    r++;
+                if (r == received.size() || received.get(r).first > range.last) {
+                    appendRange(result, first, range.last);
+                    break;
+                }
+                Range next = received.get(r);
+                if (next.first > first)
+                    appendRange(result, first, next.first - 1);
+                first = next.last + 1;
+            }
+        }
+        return result;
+    }
+
+    static List<Range> sorted(List<Range> ranges) {
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                return a.first < b.first ? -1 : a.first == b.first ? 0 : 1;
+            }
+        });
+        List<Range> result = new ArrayList<>();
+        for (Range range : ranges)
+            appendRange(result, range.first, range.last);
+        return result;
+    }
+
+    private static byte[] digest(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buf)) >= 0)
+                digest.update(buf, 0, read);
+        } finally {
+            close(in);
+        }
+        return digest.digest();
+    }
+
     /**
      * Implements a {@link CopyTracker} that automatically reports sync progress using a {@link ProgressTracker}.
      */
@@ -165,7 +856,7 @@ public class ZSync {
         }
 
         @Override
-        public void copied(int bytes) {
+        public synchronized void copied(int bytes) {
             copied += bytes;
             int nextValue = fileSize <= 0 ? 100 : (int) ((((double) copied) / fileSize) * 100);
             if (tracker != null && nextValue != fileProgress) {
@@ -175,20 +866,141 @@ public class ZSync {
         }
     }
 
+    /**
+     * Where verified remote content is written, in order.
+     */
+    interface Sink {
+        void write(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Writes to a stream, reporting progress.
+     */
+    static class StreamSink implements Sink {
+
+        private final OutputStream out;
+        private final CopyTracker tracker;
+
+        StreamSink(OutputStream out, CopyTracker tracker) {
+            this.out = out;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            out.write(buf, offset, length);
+            tracker.copied(length);
+        }
+    }
+
+    /**
+     * Writes into place in a file, optionally reporting progress. Writes are
+     * positional, so several sinks can write to the same file at once.
+     */
+    static class FileSink implements Sink {
+
+        private final FileChannel file;
+        private final CopyTracker tracker;
+        private long position;
+
+        FileSink(FileChannel file, long position, CopyTracker tracker) {
+            this.file = file;
+            this.position = position;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+            while (src.hasRemaining())
+                position += file.write(src, position);
+            if (tracker != null)
+                tracker.copied(length);
+        }
+    }
+
+    /**
+     * Copies a range of remote content a block at a time, verifying each
+     * whole block against its hash. Every byte of the range is written, so
+     * the output stays in place, but blocks that fail verification are added
+     * to the failed ranges. If the content ends early, or can't be read, the
+     * rest of the range is written as zeros and also fails.
+     *
+     * @return the number of bytes read before the content ended
+     */
+    static long copyRange(BlockVerifier verifier, RangeStream input, long offset, long length, Sink out, List<Range> failed)
+            throws IOException, InterruptedException {
+        byte[] buf = verifier.buffer();
+        long end = offset + length, total = 0;
+        boolean ended = input == null;
+        while (offset < end) {
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            int blockLength = (int) Math.min(verifier.length(offset), end - offset);
+            int read = ended ? 0 : readFully(input, buf, blockLength);
+            if (read < blockLength) {
+                ended = true;
+                Arrays.fill(buf, read, blockLength, (byte) 0);
+            }
+            total += read;
+            if (read < blockLength || !verifier.verify(offset, buf, blockLength)) {
+                appendRange(failed, offset, offset + blockLength - 1);
+            }
+            out.write(buf, 0, blockLength);
+            offset += blockLength;
+        }
+        return total;
+    }
+
+    /**
+     * Reads until the buffer holds the specified length, unless the content
+     * ends or fails first.
+     *
+     * @return the number of bytes read
+     */
+    private static int readFully(BlockReadable input, byte[] buf, int length) {
+        int total = 0;
+        try {
+            while (total < length) {
+                int read = input.read(buf, total, length - total);
+                if (read < 0)
+                    break;
+                total += read;
+            }
+        } catch (IOException e) {
+            // Treated as the end of the content, and fetched again
+        }
+        return total;
+    }
+
     /**
      * Constructs a file from matching local content and multiple ranges of
      * remote content. It assumes the server will return ranges in order
      * requested. It also does *not* close the basis file.
+     *
+     * Remote content is verified a block at a time as it is written. Blocks
+     * that fail, along with any content missing because the response ended
+     * early, are still written, as zeros where missing, so they can be
+     * fetched again and written into place.
+     *
+     * @param remoteRanges the ranges requested, in order
+     * @return the ranges that failed verification, in order
      */
-    static void buildFile(Metadata metadata, RandomAccessFile basis, Map<Long, Long> matches, RangeStream remoteInput,
-                          OutputStream output, ProgressTracker tracker) throws IOException, InterruptedException {
-        if (remoteInput == null)
-            remoteInput = new EmptyRangeStream();
+    static List<Range> buildFile(Metadata metadata, RandomAccessFile basis, Map<Long, Match> matches, List<Range> remoteRanges,
+                                 RangeStream remoteInput, OutputStream output, ProgressTracker tracker)
+            throws IOException, InterruptedException, NoSuchAlgorithmException {
         BlockReadable localInput = new RandomAccessBlockReadable(basis);
-        int blockSize = metadata.getBlockSize();
+        BlockVerifier verifier = new BlockVerifier(metadata);
         long offset = 0, targetSize = metadata.getFileSize();
         CopyTracker copyTracker = new CopyTracker(tracker, targetSize);
+        Sink sink = new StreamSink(output, copyTracker);
+        List<Range> failed = new ArrayList<>();
+        int expected = 0;
         Range nextRange;
+        Match match;
 
         copyTracker.copied(0);
 
@@ -198,121 +1010,114 @@ public class ZSync {
                 throw new InterruptedException();
             }
 
-            if (matches.containsKey(offset)) {
-                basis.seek(matches.get(offset));
-                copy(localInput, output, blockSize, copyTracker);
-                offset += blockSize;
-            } else if ((nextRange = remoteInput.next()) != null && offset == nextRange.first) {
-                int rangeLength = (int) (nextRange.last - nextRange.first) + 1;
-                copy(remoteInput, output, rangeLength, copyTracker);
+            if ((match = matches.get(offset)) != null) {
+                basis.seek(match.basisOffset);
+                copy(localInput, output, match.length, copyTracker);
+                offset += match.length;
+                continue;
+            }
+
+            nextRange = remoteInput == null ? null : next(remoteInput);
+            if (nextRange != null) {
+                if (offset != nextRange.first)
+                    throw new RuntimeException("no content for offset: " + offset);
+                long rangeLength = nextRange.last - nextRange.first + 1;
+                if (copyRange(verifier, remoteInput, offset, rangeLength, sink, failed) < rangeLength)
+                    remoteInput = null; // Ended early, the rest is fetched again
                 offset += rangeLength;
-            } else
+                continue;
+            }
+
+            // The response ended early, so write the rest of the range requested for the offset as missing
+            remoteInput = null;
+            while (expected < remoteRanges.size() && remoteRanges.get(expected).last < offset)
+                expected++;
+            if (expected == remoteRanges.size() || remoteRanges.get(expected).first > offset)
                 throw new RuntimeException("no content for offset: " + offset);
+            long missing = remoteRanges.get(expected).last - offset + 1;
+            copyRange(verifier, null, offset, missing, sink, failed);
+            offset += missing;
         }
+        return failed;
     }
 }
 
 
 /**
- * Represents a byte range from start to finish. Uses a zero-based byte
- * index and range is inclusive (last byte is in range, not past it).
+ * Verifies remote content a block, or chunk, at a time against the hashes in
+ * the metadata. Only whole blocks can be verified: the final partial block
+ * has no hash, and is only covered by the hash of the whole file.
  */
-class Range {
-
-    final long first, last;
+class BlockVerifier {
 
-    Range(long first, long last) {
-        this.first = first;
-        this.last = last;
-    }
-
-    public boolean directlyFollows(Range other) {
-        return other != null && first == other.last + 1;
-    }
-
-    public boolean canMerge(Range other) {
-        return other != null
-                && (directlyFollows(other) || other.directlyFollows(this));
-    }
+    private final Metadata metadata;
+    private final BlockHasher hasher;
+    private final int blockSize;
 
-    public Range merge(Range other) {
-        if (other != null) {
-            if (directlyFollows(other))
-                return new Range(other.first, last);
-            if (other.directlyFollows(this))
-                return new Range(first, other.last);
-        }
-        throw new RuntimeException("attempted to merge non-contiguous ranges");
+    BlockVerifier(Metadata metadata) throws NoSuchAlgorithmException {
+        this.metadata = metadata;
+        this.hasher = BlockHasher.getInstance(metadata.getBlockHashAlg());
+        this.blockSize = metadata.getBlockSize();
     }
 
     /**
-     * Adds the specified range to list, compacting into contiguous ranges.
+     * Returns a buffer large enough for any block.
      */
-    public static void appendRange(List<Range> ranges, long start, long finish) {
-        Range next = new Range(start, finish);
-        if (!ranges.isEmpty()) {
-            int prevIndex = ranges.size() - 1;
-            Range prev = ranges.get(prevIndex);
-            if (prev.canMerge(next)) {
-                ranges.set(prevIndex, prev.merge(next));
-                return;
-            }
-        }
-        ranges.add(next);
+    byte[] buffer() {
+        return new byte[metadata.isChunked() ? metadata.getMaxChunkSize() : blockSize];
     }
 
-    private static final long[] DIGITS_LOOKUP = {
-            10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L,
-            100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L, 10000000000000000L,
-            100000000000000000L, 1000000000000000000L
-    };
-
     /**
-     * Returns the number of digits required to encode the value in a base 10 string.
-     *
-     * @param value non-negative integer
-     * @return number of digits to encode as base 10 string
+     * Returns the number of bytes from the offset to the end of its block.
      */
-    public static long base10Digits(long value) {
-        for (int i = 0; i < DIGITS_LOOKUP.length; i++) {
-            if (value < DIGITS_LOOKUP[i])
-                return i + 1;
+    long length(long offset) {
+        if (metadata.isChunked()) {
+            ChunkDesc chunk = chunk(offset);
+            return chunk.getOffset() + chunk.getLength() - offset;
         }
-        return DIGITS_LOOKUP.length + 1;
+        return Math.min(blockSize - offset % blockSize, metadata.getFileSize() - offset);
     }
 
     /**
-     * Returns an estimated length for the list of ranges encoded as a range string.
-     *
-     * @param ranges
-     * @return
+     * Finds the chunk containing the offset.
      */
-    public static long estimateStringLength(List<Range> ranges) {
-        long length = 0;
-        for (int i = 0; i < ranges.size(); i++) {
-            Range r = ranges.get(i);
-            length += base10Digits(r.first) + base10Digits(r.last) + (i == 0 ? 1 : 2);
+    private ChunkDesc chunk(long offset) {
+        List<BlockDesc> chunks = metadata.getBlockDescs();
+        int low = 0, high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (((ChunkDesc) chunks.get(mid)).getOffset() <= offset)
+                low = mid;
+            else
+                high = mid - 1;
         }
-        return length;
+        return (ChunkDesc) chunks.get(low);
     }
 
     /**
-     * Converts a list of ranges into a range string suitable for using with
-     * http range request headers.
+     * Tests content read for the specified offset.
+     *
+     * @return false only if the content is a whole block, or chunk, whose
+     * hash doesn't match
      */
-    public static String toRangeString(List<Range> ranges) {
-        StringBuilder buf = new StringBuilder();
-        for (Range r : ranges) {
-            if (buf.length() > 0)
-                buf.append(',');
-            buf.append(r);
+    boolean verify(long offset, byte[] buf, int length) {
+        BlockDesc desc;
+        if (metadata.isChunked()) {
+            ChunkDesc chunk = chunk(offset);
+            if (chunk.getOffset() != offset || chunk.getLength() != length)
+                return true;
+            desc = chunk;
+        } else {
+            if (offset % blockSize != 0 || length != blockSize || offset / blockSize >= metadata.getBlockCount())
+                return true;
+            desc = metadata.getBlockDesc(offset / blockSize);
         }
-        return buf.toString();
-    }
-
-    @Override
-    public String toString() {
-        return String.format("%s-%s", first, last);
+        byte[] expected = desc.getCryptoHash(), actual = hasher.hash(buf, 0, length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i])
+                return false;
+        }
+        return true;
     }
 }
 
@@ -323,13 +1128,11 @@ class Range {
  */
 class Analyzer implements SearchHandler {
 
-    private static final int RANGE_STRING_MAX_LENGTH = 3700;
-
-    // Maps remote block index to offset of matching content in local file
-    private final Map<Long, Long> matches = new HashMap<>();
+    // Maps remote block offset to matching content in local file
+    private final Map<Long, Match> matches = new HashMap<>();
     private final Metadata metadata;
     private final List<Range> required = new ArrayList<>();
-    private long rangeStringLength = -1;
+    private long matchedBytes;
     private ProgressTracker tracker;
     private int lastProgress = -1;
 
@@ -351,7 +1154,9 @@ class Analyzer implements SearchHandler {
 
     @Override
     public void matched(long start, BlockDesc desc) throws IOException {
-        matches.put(desc.getBlockIndex() * metadata.getBlockSize(), start);
+        int length = desc.getLength(metadata.getBlockSize());
+        matches.put(desc.getOffset(metadata.getBlockSize()), new Match(start, length));
+        matchedBytes += length;
     }
 
     @Override
@@ -359,22 +1164,36 @@ class Analyzer implements SearchHandler {
         appendRange(required, start, end - 1);
     }
 
-    private boolean isRangeStringTooLong() {
-        if (rangeStringLength < 0) {
-            rangeStringLength = estimateStringLength(required);
+    /**
+     * Merges the required ranges using the specified planner. Matches that
+     * fall inside merged ranges are dropped, their content is fetched with
+     * the rest of the range instead.
+     */
+    public void plan(RangePlanner planner) {
+        List<Range> planned = planner.plan(required);
+        if (planned.size() == required.size())
+            return;
+        Iterator<Map.Entry<Long, Match>> entries = matches.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, Match> entry = entries.next();
+            if (Range.contains(planned, entry.getKey())) {
+                matchedBytes -= entry.getValue().length;
+                entries.remove();
+            }
         }
-        return rangeStringLength > RANGE_STRING_MAX_LENGTH;
+        required.clear();
+        required.addAll(planned);
     }
 
-    public Map<Long, Long> getMatches() {
-        return isRangeStringTooLong() ? EMPTY_MAP : matches;
+    public Map<Long, Match> getMatches() {
+        return matches;
     }
 
     /**
      * The amount of remote content we can source locally.
      */
     public long localBytes() {
-        return isRangeStringTooLong() ? 0 : metadata.getBlockSize() * matches.size();
+        return matchedBytes;
     }
 
     /**
@@ -388,7 +1207,118 @@ class Analyzer implements SearchHandler {
      * The minimal list of remote byte ranges required in ascending byte order.
      */
     public List<Range> getRemoteRanges() {
-        return isRangeStringTooLong() ? asList(new Range(0, metadata.getFileSize() - 1)) : required;
+        return required;
+    }
+}
+
+/**
+ * An {@link Analyzer} that also hands out batches of content to fetch while
+ * the search is still running: the content past the last whole block, which
+ * never matches, and blocks still unmatched behind a match that continues
+ * the previous one in both files, up to a limit. Handler methods and {@link #finish()} are called by the
+ * searching thread, {@link #take()} by the fetching one.
+ */
+class StreamingAnalyzer extends Analyzer {
+
+    private static final List<Range> END = Collections.emptyList();
+
+    private final BlockingQueue<List<Range>> batches = new LinkedBlockingQueue<>();
+    private final List<Range> fetched = new ArrayList<>();
+    private final List<BlockDesc> blocks;
+    private final int blockSize;
+    private final long limit, batchSize;
+    private List<Range> pending = new ArrayList<>();
+    private long pendingBytes, speculated;
+    private int nextBlock;
+    private long lastOffset = -1, lastStart;
+    private int lastLength;
+
+    StreamingAnalyzer(Metadata metadata, long limit, long batchSize) {
+        super(metadata);
+        this.blocks = metadata.getBlockDescs();
+        this.blockSize = metadata.getBlockSize();
+        this.limit = limit;
+        this.batchSize = batchSize;
+        long trailing = metadata.isChunked() ? metadata.getFileSize() : metadata.getBlockCount() * blockSize;
+        if (trailing < metadata.getFileSize()) {
+            appendRange(pending, trailing, metadata.getFileSize() - 1);
+            flush();
+        }
+    }
+
+    /**
+     * Matches are reported in basis order, so a match that continues the
+     * previous one in both files confirms the order of the content before
+     * it. A lone match could be a repeated or moved block.
+     */
+    @Override
+    public void matched(long start, BlockDesc desc) throws IOException {
+        super.matched(start, desc);
+        long offset = desc.getOffset(blockSize);
+        if (offset == lastOffset + lastLength && start == lastStart + lastLength)
+            advance(offset);
+        lastOffset = offset;
+        lastStart = start;
+        lastLength = desc.getLength(blockSize);
+    }
+
+    /**
+     * Adds the unmatched blocks before the target offset to the pending
+     * batch, handing it out once it is large enough.
+     */
+    private void advance(long targetOffset) {
+        Map<Long, Match> matches = getMatches();
+        for (; nextBlock < blocks.size(); nextBlock++) {
+            BlockDesc block = blocks.get(nextBlock);
+            long offset = block.getOffset(blockSize);
+            if (offset >= targetOffset)
+                break;
+            if (!matches.containsKey(offset)) {
+                int length = block.getLength(blockSize);
+                if (speculated + length > limit) {
+                    nextBlock = blocks.size(); // Leave the rest until the search completes
+                    break;
+                }
+                appendRange(pending, offset, offset + length - 1);
+                pendingBytes += length;
+                speculated += length;
+            }
+        }
+        if (pendingBytes > 0 && pendingBytes >= batchSize)
+            flush();
+    }
+
+    private void flush() {
+        batches.add(pending);
+        fetched.addAll(pending);
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+    }
+
+    /**
+     * Signals the search is complete. Pending content isn't handed out, it's
+     * fetched with the rest of the unmatched content.
+     */
+    void finish() {
+        batches.add(END);
+    }
+
+    /**
+     * Waits for the next batch of ranges to fetch.
+     *
+     * @return the ranges, or null once the search is complete
+     */
+    List<Range> take() throws InterruptedException {
+        List<Range> batch = batches.take();
+        return batch == END ? null : batch;
+    }
+
+    /**
+     * The ranges handed out for fetching, in ascending byte order. Only valid
+     * once the search is complete.
+     */
+    List<Range> getFetched() {
+        return ZSync.sorted(new ArrayList<>(fetched));
     }
 }
 
@@ -459,6 +1389,54 @@ class EmptyRangeStream implements RangeStream {
     }
 }
 
+/**
+ * A {@link RangeStream} implementation that requests ranges with a series of
+ * requests, so each range header stays under
+ * {@link ZSync#RANGE_STRING_MAX_LENGTH}. Requests are made one at a time, the
+ * next only once the previous response has no more ranges.
+ */
+class RequestRangeStream implements RangeStream {
+
+    private final RangeRequestFactory requestFactory;
+    private final List<List<Range>> requests;
+    private int nextRequest;
+    private RangeRequest req;
+    private RangeStream input;
+
+    public RequestRangeStream(RangeRequestFactory requestFactory, List<Range> ranges) {
+        this.requestFactory = requestFactory;
+        this.requests = Range.split(ranges, ZSync.RANGE_STRING_MAX_LENGTH);
+    }
+
+    @Override
+    public Range next() throws IOException {
+        while (true) {
+            if (input == null) {
+                if (nextRequest == requests.size())
+                    return null;
+                req = requestFactory.create();
+                input = ZSync.open(req, requests.get(nextRequest++));
+            }
+            Range range = input.next();
+            if (range != null)
+                return range;
+            close();
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        return input == null ? -1 : input.read(buf, offset, length);
+    }
+
+    @Override
+    public void close() {
+        IOUtil.close(input, req);
+        input = null;
+        req = null;
+    }
+}
+
 /**
  * A {@link RangeStream} implementation that can read the body of an http
  * response containing a single range. Use this when the response contains
@@ -0,0 +1,68 @@
+package com.github.batkinson.jrsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.SearchBenchmark.CountingHandler;
+import static com.github.batkinson.jrsync.SearchBenchmark.Search;
+import static com.github.batkinson.jrsync.SearchBenchmark.describe;
+import static com.github.batkinson.jrsync.SearchBenchmark.input;
+import static com.github.batkinson.jrsync.SearchBenchmark.measure;
+
+/**
+ * Compares block hash algorithms for raw hashing, metadata generation and
+ * candidate verification. Not run as part of the test suite, run it directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.BlockHasherBenchmark
+ * </pre>
+ */
+public class BlockHasherBenchmark {
+
+    static final int BLOCK_SIZE = 4096;
+    static final String[] ALGORITHMS = {"MD5", "SHA1", BlockHasher.XXH64, BlockHasher.XXH64X2};
+
+    public static void main(String[] args) throws Exception {
+
+        final byte[] content = new byte[64 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        for (final String algorithm : ALGORITHMS) {
+            final BlockHasher hasher = BlockHasher.getInstance(algorithm);
+            final byte[] out = new byte[hasher.getLength()];
+            measure("hash " + algorithm, content.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+                        hasher.hash(content, offset, BLOCK_SIZE, out, 0);
+                    }
+                }
+            });
+        }
+
+        final File metadata = File.createTempFile("hasher-benchmark", ".jrsmd");
+        metadata.deleteOnExit();
+        for (final String algorithm : ALGORITHMS) {
+            measure("generate, SHA1 file hash, " + algorithm, content.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    Metadata.generate("", BLOCK_SIZE, "SHA1", algorithm, new ByteArrayInputStream(content), metadata);
+                }
+            });
+        }
+
+        // Every offset is a weak checksum hit that fails verification
+        final int blockSize = 64;
+        final byte[] zeros = new byte[16 * 1024 * 1024];
+        for (final String algorithm : ALGORITHMS) {
+            final List<BlockDesc> poisoned = describe(new byte[blockSize], blockSize);
+            BlockDesc zero = poisoned.remove(0);
+            poisoned.add(new BlockDesc(zero.blockIndex, zero.weakChecksum, new byte[BlockHasher.getInstance(algorithm).getLength()]));
+            measure("rsync, all weak collisions, " + algorithm, zeros.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    new BlockSearch(poisoned, blockSize).rsyncSearch(input(zeros), zeros.length, algorithm, handler);
+                }
+            });
+        }
+    }
+}
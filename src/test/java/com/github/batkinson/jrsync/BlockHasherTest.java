@@ -0,0 +1,91 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.BlockHasher.XXH64;
+import static com.github.batkinson.jrsync.BlockHasher.XXH64X2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BlockHasherTest {
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    private static long xxh64(String s) {
+        byte[] bytes = ascii(s);
+        return XXHash64.hash(bytes, 0, bytes.length, 0);
+    }
+
+    @Test
+    public void xxh64ReferenceValues() {
+        assertEquals(0xEF46DB3751D8E999L, xxh64(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, xxh64("a"));
+        assertEquals(0x44BC2CF5AD770999L, xxh64("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, xxh64("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void xxh64HashesRanges() {
+        byte[] content = new byte[300];
+        new Random(0).nextBytes(content);
+        // Cover the stripe, word, int and byte paths at unaligned offsets
+        for (int length = 0; length < 100; length++) {
+            byte[] copy = new byte[length];
+            System.arraycopy(content, 7, copy, 0, length);
+            assertEquals(XXHash64.hash(copy, 0, length, 0), XXHash64.hash(content, 7, length, 0));
+        }
+    }
+
+    @Test
+    public void xxh64HasherIsBigEndian() throws NoSuchAlgorithmException {
+        BlockHasher hasher = BlockHasher.getInstance(XXH64);
+        assertEquals(XXH64, hasher.getAlgorithm());
+        assertEquals(8, hasher.getLength());
+        assertArrayEquals(new byte[]{(byte) 0x44, (byte) 0xBC, 0x2C, (byte) 0xF5, (byte) 0xAD, 0x77, 0x09, (byte) 0x99},
+                hasher.hash(ascii("abc"), 0, 3));
+    }
+
+    @Test
+    public void xxh64x2HasherConcatenatesLanes() throws NoSuchAlgorithmException {
+        byte[] content = ascii("Nobody inspects the spammish repetition");
+        BlockHasher hasher = BlockHasher.getInstance(XXH64X2);
+        assertEquals(XXH64X2, hasher.getAlgorithm());
+        assertEquals(16, hasher.getLength());
+        byte[] out = new byte[18];
+        hasher.hash(content, 0, content.length, out, 1);
+        ByteBuffer lanes = ByteBuffer.wrap(out, 1, 16);
+        assertEquals(xxh64("Nobody inspects the spammish repetition"), lanes.getLong());
+        assertEquals(XXHash64.hash(content, 0, content.length, 1), lanes.getLong());
+        assertEquals(0, out[0]);
+        assertEquals(0, out[17]);
+    }
+
+    @Test
+    public void digestHasherMatchesDigest() throws NoSuchAlgorithmException {
+        byte[] content = ascii("0123456789");
+        for (String algorithm : new String[]{"MD5", "SHA1"}) {
+            BlockHasher hasher = BlockHasher.getInstance(algorithm);
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(content, 2, 5);
+            assertEquals(algorithm, hasher.getAlgorithm());
+            assertEquals(digest.getDigestLength(), hasher.getLength());
+            byte[] out = new byte[hasher.getLength() + 1];
+            hasher.hash(content, 2, 5, out, 1);
+            assertArrayEquals(digest.digest(), Arrays.copyOfRange(out, 1, out.length));
+        }
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void unknownAlgorithm() throws NoSuchAlgorithmException {
+        BlockHasher.getInstance("NOPE");
+    }
+}
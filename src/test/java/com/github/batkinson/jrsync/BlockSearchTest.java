@@ -10,7 +10,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.github.batkinson.jrsync.TestUtils.computeBlocks;
 import static com.github.batkinson.jrsync.TestUtils.computeHash;
@@ -32,6 +37,8 @@ public class BlockSearchTest {
     RandomAccessFile guitar;
     RandomAccessFile file6;
 
+    int seqMatches = 1;
+
     @Before
     public void setup() throws URISyntaxException, FileNotFoundException {
 
@@ -101,16 +108,278 @@ public class BlockSearchTest {
         assertSearch(10, "zpb", file6, file1, true);
     }
 
+    @Test
+    public void zsyncMappedDifferentBlockSizes() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        for (int blockSize : Arrays.asList(1, 13, (int) file1.length(), (int) file2.length(), 1100)) {
+            assertMappedSearch(blockSize, "zmdbs", file1, file2);
+        }
+    }
+
+    @Test
+    public void zsyncMappedBinaryBigToSmall() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertMappedSearch(191, "zmbbts", violin, guitar);
+    }
+
+    @Test
+    public void zsyncMappedBinarySmallToBig() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertMappedSearch(191, "zmbstb", guitar, violin);
+    }
+
+    @Test
+    public void zsyncMappedPoisonByte() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertMappedSearch(10, "zmpb", file6, file1);
+    }
+
+    @Test
+    public void zsyncParallelDifferentBlockSizes() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        for (int blockSize : Arrays.asList(1, 13, (int) file1.length(), (int) file2.length(), 1100)) {
+            assertSearch(blockSize, "zpdbs", file1, file2, Mode.ZSYNC_PARALLEL);
+        }
+    }
+
+    @Test
+    public void zsyncParallelBinaryBigToSmall() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "zpbbts", violin, guitar, Mode.ZSYNC_PARALLEL);
+    }
+
+    @Test
+    public void zsyncParallelBinarySmallToBig() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "zpbstb", guitar, violin, Mode.ZSYNC_PARALLEL);
+    }
+
+    @Test
+    public void zsyncParallelBinaryIdentical() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "zpbi", guitar, guitar, Mode.ZSYNC_PARALLEL);
+    }
+
+    @Test
+    public void zsyncParallelPoisonByte() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(10, "zppb", file6, file1, Mode.ZSYNC_PARALLEL);
+    }
+
+    @Test
+    public void rsyncParallelDifferentBlockSizes() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        for (int blockSize : Arrays.asList(1, 13, (int) file1.length(), (int) file2.length(), 1100)) {
+            assertSearch(blockSize, "rpdbs", file1, file2, Mode.RSYNC_PARALLEL);
+        }
+    }
+
+    @Test
+    public void rsyncParallelBinaryBigToSmall() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "rpbbts", violin, guitar, Mode.RSYNC_PARALLEL);
+    }
+
+    @Test
+    public void rsyncParallelBinarySmallToBig() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "rpbstb", guitar, violin, Mode.RSYNC_PARALLEL);
+    }
+
+    @Test
+    public void rsyncParallelBinaryIdentical() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(191, "rpbi", guitar, guitar, Mode.RSYNC_PARALLEL);
+    }
+
+    @Test
+    public void rsyncParallelReportsLikeSerial() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertParallelReportsLikeSerial();
+    }
+
+    @Test
+    public void rsyncParallelReportsLikeSerialSeqMatches() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        seqMatches = 2;
+        assertParallelReportsLikeSerial();
+    }
+
+    @Test
+    public void seqMatchesAllModes() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        seqMatches = 2;
+        for (Mode mode : Mode.values()) {
+            for (int blockSize : Arrays.asList(1, 10, 13, 1100)) {
+                assertSearch(blockSize, "sm", file1, file2, mode);
+                assertSearch(blockSize, "sm", file6, file1, mode);
+            }
+            assertSearch(191, "smbbts", violin, guitar, mode);
+            assertSearch(191, "smbstb", guitar, violin, mode);
+            // Runs of matches include their last block
+            FilePatcher patcher = assertSearch(191, "smbi", guitar, guitar, mode);
+            assertEquals(guitar.length() / 191 * 191, patcher.getBytesMatched());
+        }
+    }
+
+    @Test
+    public void seqMatchesRejectLoneBlocks() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        RandomAccessFile basis = tempContent("0123456789abcdefghij"), target = tempContent("XX0123456789XXXXXXXX");
+        try {
+            BlockSearch search = new BlockSearch(computeBlocks(basis, 10, MD5), 10);
+            RecordingHandler handler = new RecordingHandler();
+            search.rsyncSearch(target, target.length(), MD5, handler);
+            assertEquals(Arrays.asList("matched 2 0", "unmatched 0 2", "unmatched 12 20"), sorted(handler.events));
+
+            search.setSeqMatches(2);
+            handler = new RecordingHandler();
+            target.seek(0);
+            search.rsyncSearch(target, target.length(), MD5, handler);
+            assertEquals(Collections.singletonList("unmatched 0 20"), handler.events);
+        } finally {
+            close(basis);
+            close(target);
+        }
+    }
+
+    @Test
+    public void seqMatchesAcrossSegments() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        // The second segment starts with the last block of a run, which only matches after the block before it
+        RandomAccessFile complete = tempContent("0123456789abcdefghijABCDEFGHIJklmnopqrst"),
+                changed = tempContent("0123456789abcdefghijABCDEFGHIJXXXXXXXXXX");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BlockSearch search = new BlockSearch(computeBlocks(complete, 10, MD5), 10);
+            search.setSeqMatches(2);
+            RecordingHandler serial = new RecordingHandler(), parallel = new RecordingHandler();
+            search.rsyncSearch(changed, changed.length(), MD5, serial);
+            search.rsyncSearch(changed.getChannel(), MD5, parallel, executor, 2);
+            assertEquals(Arrays.asList("matched 0 0", "matched 10 1", "matched 20 2", "unmatched 30 40"), serial.events);
+            assertEquals(serial.events, parallel.events);
+
+            search = new BlockSearch(computeBlocks(complete, 10, MD5), 10);
+            search.setSeqMatches(2);
+            serial = new RecordingHandler();
+            parallel = new RecordingHandler();
+            search.zsyncSearch(changed.getChannel(), complete.length(), MD5, serial);
+            search.zsyncSearch(changed.getChannel(), complete.length(), MD5, parallel, executor, 2);
+            assertEquals(Arrays.asList("matched 0 0", "matched 10 1", "matched 20 2", "unmatched 30 40"), serial.events);
+            assertEquals(serial.events, parallel.events);
+        } finally {
+            executor.shutdownNow();
+            close(complete);
+            close(changed);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSeqMatches() {
+        new BlockSearch(Collections.<BlockDesc>emptyList(), 10).setSeqMatches(3);
+    }
+
+    private RandomAccessFile tempContent(String content) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(File.createTempFile("content-", "", outputDir), "rw");
+        file.write(content.getBytes());
+        file.seek(0);
+        return file;
+    }
+
+    private static List<String> sorted(List<String> events) {
+        List<String> result = new ArrayList<>(events);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void assertParallelReportsLikeSerial() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        // Repetitive content makes segment searches disagree with the serial one at boundaries
+        File repetitive = File.createTempFile("repetitive-", "", outputDir);
+        byte[] content = new byte[5000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 7 == 0 ? i / 7 % 3 : 'a');
+        }
+        RandomAccessFile target = new RandomAccessFile(repetitive, "rw");
+        try {
+            target.write(content);
+            for (RandomAccessFile[] pair : new RandomAccessFile[][]{{target, target}, {violin, guitar}, {guitar, violin}, {file1, file2}}) {
+                for (int blockSize : Arrays.asList(1, 5, 13, 191)) {
+                    for (int segments : Arrays.asList(1, 3, 7, 50)) {
+                        assertSameReports(blockSize, pair[0], pair[1], segments);
+                    }
+                }
+            }
+        } finally {
+            close(target);
+        }
+    }
+
+    private static class RecordingHandler implements SearchHandler {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void searched(int percent) {
+        }
+
+        @Override
+        public void matched(long startOffset, BlockDesc match) {
+            events.add("matched " + startOffset + " " + match.blockIndex);
+        }
+
+        @Override
+        public void unmatched(long startOffset, long endOffset) {
+            events.add("unmatched " + startOffset + " " + endOffset);
+        }
+    }
+
+    private void assertSameReports(int blockSize, RandomAccessFile basis, RandomAccessFile target, int segments)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        BlockSearch search = new BlockSearch(computeBlocks(basis, blockSize, MD5), blockSize);
+        search.setSeqMatches(seqMatches);
+        RecordingHandler serial = new RecordingHandler(), parallel = new RecordingHandler();
+        target.seek(0);
+        search.rsyncSearch(target, target.length(), MD5, serial);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            search.rsyncSearch(target.getChannel(), MD5, parallel, executor, segments);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(serial.events, parallel.events);
+    }
+
+    private enum Mode {
+        RSYNC, RSYNC_PARALLEL, ZSYNC, ZSYNC_MAPPED, ZSYNC_PARALLEL
+    }
+
     private void assertSearch(int blockSize, String name, RandomAccessFile basis, RandomAccessFile target, boolean reverse) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(blockSize, name, basis, target, reverse ? Mode.ZSYNC : Mode.RSYNC);
+    }
+
+    private void assertMappedSearch(int blockSize, String name, RandomAccessFile basis, RandomAccessFile target) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(blockSize, name, basis, target, Mode.ZSYNC_MAPPED);
+    }
+
+    private FilePatcher assertSearch(int blockSize, String name, RandomAccessFile basis, RandomAccessFile target, Mode mode) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        boolean reverse = mode != Mode.RSYNC && mode != Mode.RSYNC_PARALLEL;
         final BlockSearch search = new BlockSearch(computeBlocks(reverse ? target : basis, blockSize, MD5), blockSize);
+        search.setSeqMatches(seqMatches);
+        basis.seek(0);
+        target.seek(0);
         File tempFile = File.createTempFile(name + "-" + blockSize + "-", "", outputDir);
         FilePatcher patcher = new FilePatcher(blockSize, basis, target, tempFile, reverse);
-        if (reverse) {
-            search.zsyncSearch(basis, basis.length(), target.length(), MD5, patcher);
-        } else {
-            search.rsyncSearch(target, target.length(), MD5, patcher);
+        ExecutorService executor;
+        switch (mode) {
+            case RSYNC_PARALLEL:
+                executor = Executors.newFixedThreadPool(4);
+                try {
+                    search.rsyncSearch(target.getChannel(), MD5, patcher, executor, 7);
+                } finally {
+                    executor.shutdownNow();
+                }
+                break;
+            case ZSYNC_PARALLEL:
+                executor = Executors.newFixedThreadPool(4);
+                try {
+                    search.zsyncSearch(basis.getChannel(), target.length(), MD5, patcher, executor, 7);
+                } finally {
+                    executor.shutdownNow();
+                }
+                break;
+            case ZSYNC_MAPPED:
+                search.zsyncSearch(basis.getChannel(), target.length(), MD5, patcher);
+                break;
+            case ZSYNC:
+                search.zsyncSearch(basis, basis.length(), target.length(), MD5, patcher);
+                break;
+            default:
+                search.rsyncSearch(target, target.length(), MD5, patcher);
         }
         assertArrayEquals(computeHash(target), computeHash(patcher.getDest()));
         assertEquals(target.length(), patcher.getBytesMatched() + patcher.getBytesNeeded());
+        return patcher;
     }
 }
@@ -0,0 +1,122 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlockSumsTest {
+
+    private static byte[] hash(Random random, int length) {
+        byte[] result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+    @Test
+    public void emptyList() {
+        BlockSums sums = BlockSums.blocks(16, 0);
+        assertTrue(sums.isEmpty());
+        sums.trimToSize();
+        assertEquals(0, new MatchTable(sums).size());
+    }
+
+    @Test
+    public void blocksAreViews() {
+        Random random = new Random(1);
+        for (int hashLength : new int[]{1, 5, 8, 9, 16, 20}) {
+            BlockSums sums = BlockSums.blocks(hashLength, 2); // Forces growth
+            List<BlockDesc> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                long checksum = random.nextInt() & 0xFFFFFFFFL;
+                byte[] hash = hash(random, hashLength);
+                sums.add(checksum, hash);
+                expected.add(new BlockDesc(i, checksum, hash));
+            }
+            sums.trimToSize();
+            assertEquals(expected.size(), sums.size());
+            assertFalse(sums.isChunked());
+            for (int i = 0; i < expected.size(); i++) {
+                BlockDesc block = sums.get(i);
+                assertEquals(i, block.getBlockIndex());
+                assertEquals(expected.get(i).getWeakChecksum(), block.getWeakChecksum());
+                assertEquals(expected.get(i).getWeakChecksum(), sums.checksum(i));
+                assertArrayEquals(expected.get(i).getCryptoHash(), block.getCryptoHash());
+                assertEquals(1024, sums.length(i, 1024));
+            }
+        }
+    }
+
+    @Test
+    public void chunksFollowEachOther() {
+        Random random = new Random(2);
+        BlockSums sums = BlockSums.chunks(8, 1);
+        int[] lengths = {10, 3, 700, 1};
+        for (int length : lengths) {
+            sums.addChunk(length, hash(random, 8));
+        }
+        assertTrue(sums.isChunked());
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            ChunkDesc chunk = (ChunkDesc) sums.get(i);
+            assertEquals(offset, chunk.getOffset());
+            assertEquals(lengths[i], chunk.getLength());
+            assertEquals(lengths[i], sums.length(i, 1024));
+            assertEquals(chunk.getWeakChecksum(), sums.checksum(i));
+            offset += lengths[i];
+        }
+    }
+
+    @Test
+    public void copiesDescriptors() {
+        Random random = new Random(3);
+        List<BlockDesc> chunks = new ArrayList<>();
+        chunks.add(new ChunkDesc(0, 0, 5, hash(random, 4)));
+        chunks.add(new ChunkDesc(1, 5, 7, hash(random, 4)));
+        BlockSums sums = (BlockSums) BlockSums.of(chunks);
+        assertTrue(sums.isChunked());
+        assertEquals(7, sums.length(1, 100));
+        assertEquals(5, ((ChunkDesc) sums.get(1)).getOffset());
+        assertArrayEquals(chunks.get(1).getCryptoHash(), sums.hash(1));
+        assertSame(sums, BlockSums.of(sums));
+    }
+
+    @Test
+    public void matchesPackedHashes() {
+        Random random = new Random(4);
+        BlockSums sums = BlockSums.blocks(12, 4);
+        byte[] hash = hash(random, 12);
+        sums.add(7, hash(random, 12));
+        sums.add(7, hash);
+        MatchTable table = new MatchTable(sums);
+        long[] packed = new long[MatchTable.words(12)];
+        MatchTable.pack(hash, 12, packed, 0);
+        assertFalse(table.hashEquals(0, packed));
+        assertTrue(table.hashEquals(1, packed));
+        assertArrayEquals(hash, table.block(1).getCryptoHash());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHashLength() {
+        BlockSums.blocks(16, 1).add(0, new byte[8]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void blocksHaveNoLengths() {
+        BlockSums.blocks(16, 1).addChunk(10, new byte[16]);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndex() {
+        BlockSums sums = BlockSums.blocks(16, 4);
+        sums.add(0, new byte[16]);
+        sums.get(1);
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.TestUtils.computeChunks;
+import static com.github.batkinson.jrsync.TestUtils.computeHash;
+import static com.github.batkinson.jrsync.TestUtils.randomAccess;
+import static com.github.batkinson.jrsync.TestUtils.testFile;
+import static com.github.batkinson.jrsync.zsync.IOUtil.close;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkSearchTest {
+
+    private static final String MD5 = "MD5";
+
+    File outputDir;
+
+    RandomAccessFile file1;
+    RandomAccessFile file2;
+    RandomAccessFile violin;
+    RandomAccessFile guitar;
+    RandomAccessFile file6;
+
+    @Before
+    public void setup() throws URISyntaxException, FileNotFoundException {
+        outputDir = new File(System.getProperty("outputDir"), "chunked-files");
+        outputDir.mkdirs();
+        file1 = randomAccess(testFile("file1.txt"));
+        file2 = randomAccess(testFile("file2.txt"));
+        violin = randomAccess(testFile("violin.jpg"));
+        guitar = randomAccess(testFile("guitar.jpg"));
+        file6 = randomAccess(testFile("file6.txt"));
+    }
+
+    @After
+    public void teardown() {
+        close(file1, file2, violin, guitar, file6);
+    }
+
+    @Test
+    public void identical() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        FilePatcher patcher = assertSearch(64, "ci", guitar, guitar);
+        assertEquals(guitar.length(), patcher.getBytesMatched());
+    }
+
+    @Test
+    public void textFiles() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        for (int avgSize : new int[]{4, 16, 64, 1024}) {
+            assertSearch(avgSize, "ct", file1, file2);
+            assertSearch(avgSize, "ct", file2, file1);
+            assertSearch(avgSize, "cp", file6, file1);
+        }
+    }
+
+    @Test
+    public void binaryFiles() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        assertSearch(256, "cbbts", violin, guitar);
+        assertSearch(256, "cbstb", guitar, violin);
+    }
+
+    @Test
+    public void emptyBasis() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        RandomAccessFile empty = new RandomAccessFile(File.createTempFile("empty-", "", outputDir), "rw");
+        try {
+            FilePatcher patcher = assertSearch(64, "ce", empty, guitar);
+            assertEquals(0, patcher.getBytesMatched());
+        } finally {
+            close(empty);
+        }
+    }
+
+    @Test
+    public void insertionsOnlyCostNearbyChunks() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        byte[] content = new byte[1 << 20];
+        Random random = new Random(0);
+        random.nextBytes(content);
+        RandomAccessFile basis = new RandomAccessFile(File.createTempFile("basis-", "", outputDir), "rw");
+        RandomAccessFile target = new RandomAccessFile(File.createTempFile("target-", "", outputDir), "rw");
+        try {
+            basis.write(content);
+            // Insert a few bytes at several places, shifting everything after them
+            for (int offset = 0, edit = 0; offset < content.length; offset += 200000, edit++) {
+                int length = Math.min(200000, content.length - offset);
+                target.write(content, offset, length);
+                target.write(new byte[]{(byte) edit, 1, 2});
+            }
+            FilePatcher patcher = assertSearch(1024, "cin", basis, target);
+            // Each insertion costs about two average chunks
+            assertTrue(patcher.getBytesNeeded() + " bytes needed", patcher.getBytesNeeded() < 6 * 4 * 1024 * 2);
+        } finally {
+            close(basis, target);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChunkSizes() {
+        new ChunkSearch(null, 100, 10, 1000);
+    }
+
+    private FilePatcher assertSearch(int avgSize, String name, RandomAccessFile basis, RandomAccessFile target)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        int minSize = avgSize / 4, maxSize = avgSize * 8;
+        ChunkSearch search = new ChunkSearch(computeChunks(target, minSize, avgSize, maxSize, MD5), minSize, avgSize, maxSize);
+        File tempFile = File.createTempFile(name + "-" + avgSize + "-", "", outputDir);
+        FilePatcher patcher = new FilePatcher(avgSize, basis, target, tempFile, true);
+        search.search(basis.getChannel(), MD5, patcher);
+        assertArrayEquals(computeHash(target), computeHash(patcher.getDest()));
+        assertEquals(target.length(), patcher.getBytesMatched() + patcher.getBytesNeeded());
+        return patcher;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkerTest {
+
+    private static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Returns the offsets where chunks end, excluding the end of the content.
+     */
+    private static List<Integer> boundaries(byte[] content, int minSize, int avgSize, int maxSize) {
+        Chunker chunker = new Chunker(minSize, avgSize, maxSize);
+        List<Integer> boundaries = new ArrayList<>();
+        for (int offset = 0, length; (length = chunker.scan(content, offset, content.length - offset)) >= 0; ) {
+            offset += length;
+            boundaries.add(offset);
+        }
+        return boundaries;
+    }
+
+    @Test
+    public void chunksWithinLimits() {
+        byte[] content = content(1 << 20, 0);
+        List<Integer> boundaries = boundaries(content, 1024, 4096, 32768);
+        int previous = 0;
+        for (int boundary : boundaries) {
+            assertTrue(boundary - previous > 1024);
+            assertTrue(boundary - previous <= 32768);
+            previous = boundary;
+        }
+        // Normalized chunking keeps chunks near the average
+        double average = (double) previous / boundaries.size();
+        assertTrue("average chunk size " + average, average > 2048 && average < 8192);
+    }
+
+    @Test
+    public void noBoundariesWithinMinimum() {
+        assertTrue(boundaries(content(1024, 5), 1024, 4096, 32768).isEmpty());
+    }
+
+    @Test
+    public void scanningMatchesUpdating() {
+        byte[] content = content(100000, 1);
+        Random random = new Random(2);
+        Chunker scanner = new Chunker(64, 256, 2048), updater = new Chunker(64, 256, 2048);
+        List<Integer> scanned = new ArrayList<>(), updated = new ArrayList<>();
+        for (int offset = 0; offset < content.length; ) {
+            int count = Math.min(content.length - offset, 1 + random.nextInt(700)), length = scanner.scan(content, offset, count);
+            offset += length < 0 ? count : length;
+            if (length >= 0) {
+                scanned.add(offset);
+            }
+        }
+        for (int i = 0; i < content.length; i++) {
+            if (updater.update(content[i])) {
+                updated.add(i + 1);
+            }
+        }
+        assertEquals(updated, scanned);
+        assertEquals(boundaries(content, 64, 256, 2048), scanned);
+    }
+
+    @Test
+    public void boundariesFollowInsertedContent() {
+        byte[] content = content(200000, 3), inserted = new byte[content.length + 100];
+        System.arraycopy(content, 0, inserted, 0, 50000);
+        System.arraycopy(content(100, 4), 0, inserted, 50000, 100);
+        System.arraycopy(content, 50000, inserted, 50100, content.length - 50000);
+
+        List<Integer> original = boundaries(content, 256, 1024, 8192), shifted = new ArrayList<>();
+        for (int boundary : boundaries(inserted, 256, 1024, 8192)) {
+            shifted.add(boundary > 50000 ? boundary - 100 : boundary);
+        }
+
+        // Apart from around the insertion, the chunks are the same
+        int differing = 0;
+        for (int boundary : original) {
+            if (!shifted.contains(boundary)) {
+                differing++;
+            }
+        }
+        assertTrue(differing + " boundaries moved", differing <= 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMinAboveAverage() {
+        new Chunker(512, 256, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEqualMinAndMax() {
+        new Chunker(256, 256, 256);
+    }
+}
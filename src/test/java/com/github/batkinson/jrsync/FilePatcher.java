@@ -37,10 +37,10 @@ class FilePatcher implements SearchHandler {
 
     @Override
     public void matched(long offset, BlockDesc match) throws IOException {
-        long start = reverse ? offset : match.blockIndex * blockSize;
-        long end = start + blockSize, size = end - start;
+        long start = reverse ? offset : match.getOffset(blockSize);
+        long end = start + match.getLength(blockSize), size = end - start;
         bytesMatched += size;
-        dest.seek(reverse ? match.blockIndex * blockSize : offset);
+        dest.seek(reverse ? match.getOffset(blockSize) : offset);
         copyRange(basis, start, end, dest);
     }
 
@@ -0,0 +1,70 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashProbeTest {
+
+    private static final byte[] content = new byte[1000];
+
+    static {
+        new Random(0).nextBytes(content);
+    }
+
+    private static MatchTable table(String algorithm, int blockSize) throws NoSuchAlgorithmException {
+        BlockHasher hasher = BlockHasher.getInstance(algorithm);
+        List<BlockDesc> blocks = new ArrayList<>();
+        for (int i = 0; (i + 1) * blockSize <= content.length; i++) {
+            blocks.add(new BlockDesc(i, 0, hasher.hash(content, i * blockSize, blockSize)));
+        }
+        return new MatchTable(blocks);
+    }
+
+    @Test
+    public void matchesOnlyTheHashedBlock() throws NoSuchAlgorithmException {
+        // SHA-1 hashes don't fill a whole number of words
+        for (String algorithm : new String[]{"MD5", "SHA-1", "SHA-256", BlockHasher.XXH64, BlockHasher.XXH64X2}) {
+            int blockSize = 100;
+            MatchTable table = table(algorithm, blockSize);
+            HashProbe probe = new HashProbe(BlockHasher.getInstance(algorithm), table);
+            for (int i = 0; i < table.size(); i++) {
+                probe.hash(content, i * blockSize, blockSize);
+                for (int j = 0; j < table.size(); j++) {
+                    assertTrue(probe.matches(table, j) == (i == j));
+                }
+            }
+            probe.hash(content, 1, blockSize);
+            assertFalse(probe.matches(table, 0));
+        }
+    }
+
+    @Test
+    public void rejectsLongerHashes() throws NoSuchAlgorithmException {
+        MatchTable table = table("SHA-256", 100);
+        HashProbe probe = new HashProbe(BlockHasher.getInstance("MD5"), table);
+        probe.hash(content, 0, 100);
+        assertFalse(probe.matches(table, 0));
+    }
+
+    @Test
+    public void comparesTruncatedHashes() throws NoSuchAlgorithmException {
+        BlockHasher hasher = BlockHasher.getInstance("MD5");
+        List<BlockDesc> blocks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            blocks.add(new BlockDesc(i, 0, Arrays.copyOf(hasher.hash(content, i * 100, 100), 5)));
+        }
+        MatchTable table = new MatchTable(blocks);
+        HashProbe probe = new HashProbe(hasher, table);
+        probe.hash(content, 300, 100);
+        assertTrue(probe.matches(table, 3));
+        assertFalse(probe.matches(table, 4));
+    }
+}
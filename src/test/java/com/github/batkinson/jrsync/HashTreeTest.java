@@ -0,0 +1,116 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashTreeTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static HashTree tree(byte[] content, int leafSpan) throws NoSuchAlgorithmException {
+        BlockHasher hasher = BlockHasher.getInstance("MD5");
+        HashTree.Builder builder = new HashTree.Builder(hasher, leafSpan);
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+            builder.add(hasher.hash(content, offset, Math.min(BLOCK_SIZE, content.length - offset)));
+        }
+        return builder.build();
+    }
+
+    private static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test
+    public void noBlocksNoTree() throws NoSuchAlgorithmException {
+        assertNull(tree(new byte[0], 1));
+    }
+
+    @Test
+    public void nodesHashChildren() throws NoSuchAlgorithmException {
+        BlockHasher hasher = BlockHasher.getInstance("MD5");
+        byte[] content = content(BLOCK_SIZE * 5 + 3, 1); // 6 blocks, 3 leaves
+        HashTree tree = tree(content, 2);
+        assertEquals(3, tree.getLeafCount());
+        assertEquals(3, tree.getLevels());
+        assertEquals(2, tree.getLevelSize(1));
+        assertEquals(6, HashTree.nodeCount(3));
+        for (int leaf = 0; leaf < 3; leaf++) {
+            int offset = leaf * 2 * BLOCK_SIZE, length = Math.min(2 * BLOCK_SIZE, content.length - offset);
+            byte[] hash = HashTree.leafHash(hasher, content, offset, length, BLOCK_SIZE);
+            assertArrayEquals(hash, tree.getLeaf(leaf));
+            assertTrue(tree.verifyLeaf(leaf, hash));
+            assertFalse(tree.verifyLeaf((leaf + 1) % 3, hash));
+        }
+        byte[] left = tree.getNode(0, 0), right = tree.getNode(0, 1);
+        assertArrayEquals(hasher.hash(concat(left, right), 0, 32), tree.getNode(1, 0));
+        assertArrayEquals(tree.getLeaf(2), tree.getNode(1, 1)); // Carried up without a sibling
+        byte[] pair = concat(tree.getNode(1, 0), tree.getNode(1, 1));
+        assertArrayEquals(hasher.hash(pair, 0, 32), tree.getRoot());
+    }
+
+    @Test
+    public void identicalContentHasEqualRoots() throws NoSuchAlgorithmException {
+        byte[] content = content(BLOCK_SIZE * 100, 2);
+        assertTrue(tree(content, 4).rootEquals(tree(content.clone(), 4)));
+        assertTrue(tree(content, 4).diff(tree(content, 4)).isEmpty());
+        content[BLOCK_SIZE * 50] ^= 1;
+        assertFalse(tree(content, 4).rootEquals(tree(content(BLOCK_SIZE * 100, 2), 4)));
+    }
+
+    @Test
+    public void diffFindsChangedLeaves() throws NoSuchAlgorithmException {
+        byte[] original = content(BLOCK_SIZE * 1000 + 5, 3);
+        byte[] modified = original.clone();
+        modified[0] ^= 1;
+        modified[BLOCK_SIZE * 411] ^= 1;
+        modified[original.length - 1] ^= 1;
+        BitSet expected = new BitSet();
+        expected.set(0);
+        expected.set(411 / 3);
+        expected.set(1000 / 3);
+        assertEquals(expected, tree(modified, 3).diff(tree(original, 3)));
+    }
+
+    @Test
+    public void diffFindsAppendedLeaves() throws NoSuchAlgorithmException {
+        Random random = new Random(4);
+        for (int i = 0; i < 50; i++) {
+            byte[] original = content(random.nextInt(BLOCK_SIZE * 64) + 1, i);
+            byte[] longer = concat(original, content(random.nextInt(BLOCK_SIZE * 64) + 1, -i));
+            HashTree before = tree(original, 2), after = tree(longer, 2);
+
+            // Leaves are only unchanged while entirely within the original content
+            int unchanged = original.length / (BLOCK_SIZE * 2);
+            BitSet expected = new BitSet();
+            expected.set(unchanged, after.getLeafCount());
+            assertEquals(expected, after.diff(before));
+            expected.clear();
+            expected.set(unchanged, before.getLeafCount());
+            assertEquals(expected, before.diff(after));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDifferentSpans() throws NoSuchAlgorithmException {
+        byte[] content = content(BLOCK_SIZE * 10, 5);
+        tree(content, 2).diff(tree(content, 3));
+    }
+}
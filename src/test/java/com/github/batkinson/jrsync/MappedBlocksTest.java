@@ -0,0 +1,103 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedBlocksTest {
+
+    private static final int HEADER = 7;
+
+    File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = new File(System.getProperty("outputDir"), "metadata-scratch");
+        outputDir.mkdirs();
+    }
+
+    /**
+     * Writes random records after a header, as {@link MetadataWriter} would,
+     * adding the same records to the expected sums.
+     */
+    private File records(BlockSums expected, int count, int checksumLength, Random random) throws IOException {
+        File output = File.createTempFile("mapped", "", outputDir);
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(0);
+            file.write(new byte[HEADER]);
+            for (int i = 0; i < count; i++) {
+                long checksum = random.nextInt() & RollingChecksum.mask(checksumLength);
+                if (checksumLength == 4) {
+                    file.writeInt((int) checksum);
+                } else {
+                    file.writeShort((int) (checksum >>> 16));
+                    if (checksumLength == 3) {
+                        file.writeByte((int) checksum);
+                    }
+                }
+                byte[] hash = new byte[expected.hashLength()];
+                random.nextBytes(hash);
+                file.write(hash);
+                expected.add(checksum, hash);
+            }
+        }
+        return output;
+    }
+
+    @Test
+    public void decodesAcrossSegments() throws IOException {
+        Random random = new Random(1);
+        for (int checksumLength : new int[]{2, 3, 4}) {
+            for (int hashLength : new int[]{1, 5, 16}) {
+                BlockSums expected = BlockSums.blocks(hashLength, 1);
+                File file = records(expected, 100, checksumLength, random);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    // Segments of 7 records, the last partial
+                    int stride = checksumLength + hashLength;
+                    MappedBlocks blocks = new MappedBlocks(raf.getChannel(), HEADER, 100, checksumLength, hashLength, stride * 7 + 1);
+                    assertEquals(100, blocks.count());
+                    assertEquals(100, blocks.size());
+                    for (int i = 0; i < 100; i++) {
+                        assertEquals(expected.checksum(i), blocks.checksum(i));
+                        assertEquals(i, blocks.get(i).getBlockIndex());
+                        assertArrayEquals(expected.hash(i), blocks.get(i).getCryptoHash());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesPackedHashes() throws IOException {
+        Random random = new Random(2);
+        BlockSums expected = BlockSums.blocks(12, 1);
+        File file = records(expected, 20, 4, random);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedBlocks blocks = new MappedBlocks(raf.getChannel(), HEADER, 20, 4, 12);
+            MatchTable table = new MatchTable(blocks);
+            assertEquals(20, table.size());
+            long[] packed = new long[MatchTable.words(12)];
+            MatchTable.pack(expected.hash(5), 12, packed, 0);
+            assertTrue(table.hashEquals(5, packed));
+            assertFalse(table.hashEquals(6, packed));
+            assertTrue(table.find(expected.checksum(5)) >= 0);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndex() throws IOException {
+        File file = records(BlockSums.blocks(4, 1), 3, 4, new Random(3));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            new MappedBlocks(raf.getChannel(), HEADER, 3, 4, 4).get(3L);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatchClaimsTest {
+
+    private static MatchTable table(long... checksums) {
+        List<BlockDesc> blocks = new ArrayList<>();
+        for (int i = 0; i < checksums.length; i++) {
+            blocks.add(new BlockDesc(i, checksums[i], new byte[0]));
+        }
+        return new MatchTable(blocks);
+    }
+
+    @Test
+    public void claimsOnlyOnce() {
+        MatchTable table = table(1, 2, 1);
+        MatchClaims claims = new MatchClaims(table);
+        int slot = table.find(1);
+        assertFalse(claims.isClaimed(2));
+        assertTrue(claims.claim(slot, 2));
+        assertTrue(claims.isClaimed(2));
+        assertFalse(claims.claim(slot, 2));
+    }
+
+    @Test
+    public void runsExhaust() {
+        MatchTable table = table(1, 2, 1);
+        MatchClaims claims = new MatchClaims(table);
+        int slot = table.find(1);
+        claims.claim(slot, 0);
+        assertFalse(claims.exhausted(slot));
+        claims.claim(slot, 2);
+        assertTrue(claims.exhausted(slot));
+        assertFalse(claims.exhausted(table.find(2)));
+        assertFalse(claims.complete());
+        claims.claim(table.find(2), 1);
+        assertTrue(claims.complete());
+    }
+
+    @Test
+    public void findsUnclaimed() {
+        long[] sums = new long[200];
+        MatchTable table = table(sums);
+        MatchClaims claims = new MatchClaims(table);
+        int slot = table.find(0);
+        for (int i = 0; i < sums.length; i++) {
+            if (i != 150 && i != 199) {
+                claims.claim(slot, i);
+            }
+        }
+        assertEquals(150, claims.nextUnclaimed(0));
+        assertEquals(199, claims.nextUnclaimed(151));
+        assertEquals(200, claims.nextUnclaimed(200));
+    }
+}
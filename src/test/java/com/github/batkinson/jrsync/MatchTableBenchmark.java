@@ -0,0 +1,174 @@
+package com.github.batkinson.jrsync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the heap cost and lookup rate of {@link MatchTable} against the
+ * boxed map it replaced, then measures the effect of its tag prefilter on
+ * workloads that rarely and mostly match. Not run as part of the test suite,
+ * run it directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.MatchTableBenchmark
+ * </pre>
+ */
+public class MatchTableBenchmark {
+
+    private static final int BLOCKS = 2000000;
+    private static final int LOOKUPS = 50000000;
+
+    /**
+     * The match table previously used by {@link BlockSearch}.
+     */
+    private static final class MapTable {
+
+        static final class Key {
+            long value;
+
+            Key(long v) {
+                value = v;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Key && value == ((Key) o).value;
+            }
+
+            @Override
+            public int hashCode() {
+                return (int) (value ^ (value >>> 32));
+            }
+        }
+
+        final Map<Key, Collection<BlockDesc>> table = new HashMap<>();
+        final Key probe = new Key(0);
+
+        MapTable(List<BlockDesc> blocks) {
+            for (BlockDesc desc : blocks) {
+                Key key = new Key(desc.weakChecksum);
+                Collection<BlockDesc> hits = table.get(key);
+                if (hits == null) {
+                    hits = new LinkedHashSet<>();
+                    table.put(key, hits);
+                }
+                hits.add(desc);
+            }
+        }
+
+        boolean contains(long checksum) {
+            probe.value = checksum;
+            return table.containsKey(probe);
+        }
+    }
+
+    static List<BlockDesc> randomBlocks(int count, Random random) {
+        List<BlockDesc> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[16];
+            random.nextBytes(hash);
+            result.add(new BlockDesc(i, random.nextInt() & 0xFFFFFFFFL, hash));
+        }
+        return result;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Generates checksums to look up, hitting the specified fraction of the time.
+     */
+    static long[] probes(List<BlockDesc> blocks, Random random, double hitRate) {
+        long[] result = new long[1 << 20];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = random.nextDouble() < hitRate ? blocks.get(random.nextInt(blocks.size())).weakChecksum : random.nextInt() & 0xFFFFFFFFL;
+        }
+        return result;
+    }
+
+    static void prefilter(int blockCount, double hitRate, Random random) {
+        List<BlockDesc> blocks = randomBlocks(blockCount, random);
+        MatchTable table = new MatchTable(blocks);
+        long[] probes = probes(blocks, random, hitRate);
+        int mask = probes.length - 1;
+        long hits = 0;
+        for (int round = 0; round < 2; round++) {  // First round warms up
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (table.find(probes[i & mask]) >= 0) {
+                    hits++;
+                }
+            }
+            double plainRate = LOOKUPS / ((System.nanoTime() - start) / 1e9);
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                long sum = probes[i & mask];
+                if (table.mightContain(sum) && table.find(sum) >= 0) {
+                    hits--;
+                }
+            }
+            double filteredRate = LOOKUPS / ((System.nanoTime() - start) / 1e9);
+            if (round > 0) {
+                System.out.printf("%8d blocks, %3.0f%% hits: find %6.1f M/s, prefiltered %6.1f M/s (hit balance %d)%n",
+                        blockCount, hitRate * 100, plainRate / 1e6, filteredRate / 1e6, hits);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+
+        Random random = new Random(42);
+        List<BlockDesc> blocks = randomBlocks(BLOCKS, random);
+        long[] probes = probes(blocks, random, 0.125);
+        int mask = probes.length - 1;
+
+        long base = usedHeap();
+        MapTable map = new MapTable(blocks);
+        long mapHeap = usedHeap() - base;
+
+        long start = System.nanoTime(), hits = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (map.contains(probes[i & mask])) {
+                hits++;
+            }
+        }
+        double mapRate = LOOKUPS / ((System.nanoTime() - start) / 1e9);
+        map = null;
+
+        base = usedHeap();
+        MatchTable table = new MatchTable(blocks);
+        long tableHeap = usedHeap() - base;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (table.find(probes[i & mask]) >= 0) {
+                hits--;
+            }
+        }
+        double tableRate = LOOKUPS / ((System.nanoTime() - start) / 1e9);
+
+        System.out.printf("%d blocks, %d lookups (hit balance %d)%n", BLOCKS, LOOKUPS, hits);
+        System.out.printf("HashMap:    %6d MB, %6.1f M lookups/s%n", mapHeap >> 20, mapRate / 1e6);
+        System.out.printf("MatchTable: %6d MB, %6.1f M lookups/s%n", tableHeap >> 20, tableRate / 1e6);
+        if (table.size() == 0) {
+            System.out.println();  // Keep table reachable until measurements are done
+        }
+        table = null;
+        blocks = null;
+
+        for (int blockCount : new int[]{10000, 250000}) {
+            prefilter(blockCount, 0, random);
+            prefilter(blockCount, 0.9, random);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatchTableTest {
+
+    private static List<BlockDesc> blocks(long... checksums) {
+        List<BlockDesc> result = new ArrayList<>();
+        for (int i = 0; i < checksums.length; i++) {
+            result.add(new BlockDesc(i, checksums[i], new byte[]{(byte) i}));
+        }
+        return result;
+    }
+
+    private static List<Integer> run(MatchTable table, long checksum) {
+        List<Integer> result = new ArrayList<>();
+        int slot = table.find(checksum);
+        if (slot >= 0) {
+            for (int pos = table.start(slot); pos < table.end(slot); pos++) {
+                result.add(table.entry(pos));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void emptyTable() {
+        MatchTable table = new MatchTable(null);
+        assertEquals(0, table.size());
+        assertTrue(table.find(0) < 0);
+    }
+
+    @Test
+    public void findsRunsInBlockOrder() {
+        MatchTable table = new MatchTable(blocks(7, 0xFFFFFFFFL, 7, 3, 7, 0xFFFFFFFFL));
+        assertEquals(Arrays.asList(0, 2, 4), run(table, 7));
+        assertEquals(Arrays.asList(1, 5), run(table, 0xFFFFFFFFL));
+        assertEquals(Arrays.asList(3), run(table, 3));
+        assertTrue(table.find(4) < 0);
+        assertEquals(2, table.block(2).getBlockIndex());
+    }
+
+    @Test
+    public void keepsCallersDescriptors() {
+        List<BlockDesc> blocks = new ArrayList<>();
+        blocks.add(new BlockDesc(7, 1, new byte[]{1}));
+        blocks.add(new BlockDesc(3, 2, new byte[]{2}));
+        MatchTable table = new MatchTable(blocks);
+        assertSame(blocks.get(0), table.block(0));
+        assertSame(blocks.get(1), table.block(1));
+        assertEquals(7, table.block(0).getBlockIndex());
+        assertEquals(3, table.block(1).getBlockIndex());
+    }
+
+    @Test
+    public void mixedHashLengthsNeverMatch() {
+        List<BlockDesc> blocks = new ArrayList<>();
+        blocks.add(new BlockDesc(0, 1, new byte[]{1, 2}));
+        blocks.add(new BlockDesc(1, 2, new byte[]{1}));
+        MatchTable table = new MatchTable(blocks);
+        long[] packed = new long[1];
+        MatchTable.pack(new byte[]{1, 2}, 2, packed, 0);
+        assertTrue(table.hashEquals(0, packed));
+        MatchTable.pack(new byte[2], 2, packed, 0);
+        assertFalse(table.hashEquals(1, packed));
+    }
+
+    @Test
+    public void handlesCollidingSlots() {
+        long[] sums = new long[1000];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = (long) i << 20;
+        }
+        MatchTable table = new MatchTable(blocks(sums));
+        for (int i = 0; i < sums.length; i++) {
+            assertEquals(Arrays.asList(i), run(table, sums[i]));
+        }
+        assertTrue(table.find(1) < 0);
+    }
+
+    @Test
+    public void prefilterHasNoFalseNegatives() {
+        Random random = new Random(0);
+        long[] sums = new long[100000];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        MatchTable table = new MatchTable(blocks(sums));
+        for (long sum : sums) {
+            assertTrue(table.mightContain(sum));
+        }
+    }
+
+    @Test
+    public void prefilterRejectsMostMisses() {
+        Random random = new Random(0);
+        long[] sums = new long[1000];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        MatchTable table = new MatchTable(blocks(sums));
+        int passed = 0, probes = 100000;
+        for (int i = 0; i < probes; i++) {
+            long sum = random.nextInt() & 0xFFFFFFFFL;
+            if (table.mightContain(sum) && table.find(sum) < 0) {
+                passed++;
+            }
+        }
+        assertTrue(passed < probes / 20);
+    }
+
+    @Test
+    public void removeShrinksRun() {
+        MatchTable table = new MatchTable(blocks(5, 5, 5));
+        int slot = table.find(5);
+        table.remove(slot, table.start(slot));
+        assertEquals(Arrays.asList(2, 1), run(table, 5));
+        table.remove(slot, table.start(slot));
+        table.remove(slot, table.start(slot));
+        assertTrue(table.find(5) < 0);
+    }
+
+    @Test
+    public void packsHashesBigEndian() {
+        byte[] hash = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        long[] packed = new long[MatchTable.words(hash.length)];
+        MatchTable.pack(hash, hash.length, packed, 0);
+        assertEquals(2, packed.length);
+        assertEquals(0x0102030405060708L, packed[0]);
+        assertEquals(0x0900000000000000L, packed[1]);
+    }
+}
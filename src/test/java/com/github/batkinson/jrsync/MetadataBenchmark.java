@@ -0,0 +1,132 @@
+package com.github.batkinson.jrsync;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.MatchTableBenchmark.usedHeap;
+
+/**
+ * Measures the time to load metadata describing a large file and the heap it
+ * then occupies, along with the match table built from it. Compares reading
+ * it in compact form, reading it as a list of descriptor objects as it was
+ * previously read, and mapping it. Not run as part of the test suite, run it
+ * directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.MetadataBenchmark
+ * </pre>
+ */
+public class MetadataBenchmark {
+
+    private static final int BLOCKS = 4000000;
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Writes metadata with random checksums and hashes, as if generated.
+     */
+    static File randomMetadata(int blocks, int hashLength, int checksumLength) throws IOException {
+        File file = File.createTempFile("bench", "." + Metadata.FILE_EXT);
+        file.deleteOnExit();
+        Random random = new Random(42);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MetadataWriter writer = new MetadataWriter(raf);
+            writer.header("SHA1", 20, "bench", "MD5", hashLength, BLOCK_SIZE,
+                    checksumLength == 4 ? Collections.<String, Long>emptyMap()
+                            : Collections.singletonMap(Metadata.CHECKSUM_LENGTH, (long) checksumLength));
+            // Write records in bulk, the writer isn't buffered
+            int recordLength = checksumLength + hashLength;
+            byte[] records = new byte[recordLength * 65536];
+            for (int written = 0; written < blocks; ) {
+                int count = Math.min(blocks - written, 65536);
+                random.nextBytes(records);
+                raf.write(records, 0, count * recordLength);
+                written += count;
+            }
+            writer.complete((long) blocks * BLOCK_SIZE, new byte[20]);
+        }
+        return file;
+    }
+
+    static Metadata read(File file) throws IOException, NoSuchAlgorithmException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            return Metadata.read(in);
+        }
+    }
+
+    /**
+     * Copies descriptors into separate objects, as metadata was read before.
+     */
+    static List<BlockDesc> objects(List<BlockDesc> blocks) {
+        List<BlockDesc> result = new ArrayList<>();
+        for (BlockDesc block : blocks) {
+            result.add(new BlockDesc(block.blockIndex, block.weakChecksum, block.cryptoHash));
+        }
+        return result;
+    }
+
+    static void measure(int hashLength, int checksumLength) throws IOException, NoSuchAlgorithmException {
+        File file = randomMetadata(BLOCKS, hashLength, checksumLength);
+
+        read(file); // Warm up
+        long base = usedHeap();
+        long start = System.nanoTime();
+        Metadata metadata = read(file);
+        double compactSecs = (System.nanoTime() - start) / 1e9;
+        long compactHeap = usedHeap() - base;
+        MatchTable table = new MatchTable(metadata.getBlockDescs());
+        long compactTableHeap = usedHeap() - base;
+
+        if (table.size() != metadata.getBlockDescs().size()) {
+            throw new AssertionError(); // Keeps both reachable until measured
+        }
+        table = null;
+        metadata = null;
+
+        // Reading then creating objects costs about what reading them did
+        base = usedHeap();
+        start = System.nanoTime();
+        List<BlockDesc> objects = objects(read(file).getBlockDescs());
+        double objectSecs = (System.nanoTime() - start) / 1e9;
+        long objectHeap = usedHeap() - base;
+        table = new MatchTable(objects);
+        long objectTableHeap = usedHeap() - base;
+
+        objects = null;
+        table = null;
+        base = usedHeap();
+        start = System.nanoTime();
+        metadata = Metadata.map(file);
+        double mappedSecs = (System.nanoTime() - start) / 1e9;
+        long mappedHeap = usedHeap() - base;
+        start = System.nanoTime();
+        table = new MatchTable(metadata.getBlockDescs());
+        double mappedTableSecs = (System.nanoTime() - start) / 1e9;
+        long mappedTableHeap = usedHeap() - base;
+
+        System.out.printf("%d blocks, %d+%d bytes each (%d MB of metadata)%n",
+                BLOCKS, checksumLength, hashLength, file.length() >> 20);
+        System.out.printf("compact: read %5.2fs, %5d MB, %5d MB with match table%n",
+                compactSecs, compactHeap >> 20, compactTableHeap >> 20);
+        System.out.printf("objects: read %5.2fs, %5d MB, %5d MB with match table%n",
+                objectSecs, objectHeap >> 20, objectTableHeap >> 20);
+        System.out.printf("mapped:  map  %5.3fs, %5d MB, %5d MB with match table, built in %5.2fs%n",
+                mappedSecs, mappedHeap >> 20, mappedTableHeap >> 20, mappedTableSecs);
+        if (table.size() != metadata.getBlockCount()) {
+            throw new AssertionError();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        measure(16, 4);
+        measure(5, 3);
+    }
+}
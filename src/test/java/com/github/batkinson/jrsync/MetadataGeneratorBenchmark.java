@@ -0,0 +1,66 @@
+package com.github.batkinson.jrsync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the rate of generating metadata for a file serially and with
+ * blocks hashed by increasing numbers of threads. Not run as part of the test
+ * suite, run it directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.MetadataGeneratorBenchmark
+ * </pre>
+ */
+public class MetadataGeneratorBenchmark {
+
+    private static final int CONTENT_MB = 256;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int ROUNDS = 3;
+
+    static File randomContent(int megabytes) throws IOException {
+        File file = File.createTempFile("bench", ".bin");
+        file.deleteOnExit();
+        byte[] buf = new byte[1 << 20];
+        Random random = new Random(42);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < megabytes; i++) {
+                random.nextBytes(buf);
+                out.write(buf);
+            }
+        }
+        return file;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File content = randomContent(CONTENT_MB), metadata = File.createTempFile("bench", "." + Metadata.FILE_EXT);
+        metadata.deleteOnExit();
+
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            Metadata.generate("bench", BLOCK_SIZE, "SHA1", "MD5", content, metadata);
+            best = Math.max(best, CONTENT_MB / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("serial:    %6.0f MB/s%n", best);
+
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                best = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    Metadata.generate("bench", BLOCK_SIZE, "SHA1", "MD5", content, metadata, executor, threads);
+                    best = Math.max(best, CONTENT_MB / ((System.nanoTime() - start) / 1e9));
+                }
+                System.out.printf("%2d threads: %6.0f MB/s%n", threads, best);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -2,9 +2,23 @@ package com.github.batkinson.jrsync;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.eq;
@@ -40,4 +54,318 @@ public class MetadataGeneratorTest {
         verify(mock).block(anyLong(), any(byte[].class));
         verify(mock).complete(eq(1L), any(byte[].class));
     }
+
+    private static class HeaderHandler implements MetadataGenerator.ExtendedHandler {
+
+        int blockHashLength;
+        Map<String, Long> options;
+        List<byte[]> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength,
+                           int blockSize) {
+            fail("extended handlers are always passed the options");
+        }
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength,
+                           int blockSize, Map<String, Long> options) {
+            this.blockHashLength = blockHashLength;
+            this.options = options;
+        }
+
+        @Override
+        public void block(long checksum, byte[] digest) {
+            hashes.add(digest);
+        }
+
+        @Override
+        public void chunk(int length, byte[] digest) {
+            lengths.add(length);
+            hashes.add(digest);
+        }
+
+        @Override
+        public void tree(HashTree tree) {
+        }
+
+        @Override
+        public void complete(long fileSize, byte[] digest) {
+        }
+    }
+
+    private static HeaderHandler generate(MetadataGenerator generator) throws IOException {
+        HeaderHandler handler = new HeaderHandler();
+        generator.setHandler(handler);
+        generator.add((byte) 0);
+        generator.finish();
+        return handler;
+    }
+
+    /**
+     * Counts the headers passed to a plain handler.
+     */
+    private static class PlainHandler implements MetadataGenerator.Handler {
+
+        int headers;
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength,
+                           int blockSize) {
+            headers++;
+        }
+
+        @Override
+        public void block(long checksum, byte[] digest) {
+        }
+
+        @Override
+        public void complete(long fileSize, byte[] digest) {
+        }
+    }
+
+    @Test
+    public void plainHandlerWithoutOptions() throws NoSuchAlgorithmException, IOException {
+        MetadataGenerator generator = new MetadataGenerator("", 1, "SHA1", "MD5");
+        PlainHandler handler = new PlainHandler();
+        generator.setHandler(handler);
+        generator.add((byte) 0);
+        generator.finish();
+        assertEquals(1, handler.headers);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void plainHandlerRejectsOptions() throws NoSuchAlgorithmException, IOException {
+        MetadataGenerator generator = new MetadataGenerator("", 1, "SHA1", "MD5");
+        generator.setHashLengths(3, 6);
+        generator.setHandler(new PlainHandler());
+        generator.add((byte) 0);
+    }
+
+    @Test
+    public void fullLengthsWithoutOptions() throws NoSuchAlgorithmException, IOException {
+        HeaderHandler handler = generate(new MetadataGenerator("", 1, "SHA1", "MD5"));
+        assertEquals(16, handler.blockHashLength);
+        assertTrue(handler.options.isEmpty());
+    }
+
+    @Test
+    public void truncatesHashes() throws NoSuchAlgorithmException, IOException {
+        MetadataGenerator generator = new MetadataGenerator("", 1, "SHA1", "MD5");
+        generator.setHashLengths(3, 6);
+        HeaderHandler handler = generate(generator);
+        assertEquals(6, handler.blockHashLength);
+        assertEquals(6, handler.hashes.get(0).length);
+        assertEquals(Long.valueOf(3), handler.options.get(Metadata.CHECKSUM_LENGTH));
+    }
+
+    @Test
+    public void choosesLengthsForFileSize() throws NoSuchAlgorithmException, IOException {
+        long[][] expected = {
+                // file size, block size, checksum length, block hash length, sequential matches
+                {10, 10, 2, 4, 1},
+                {1000, 10, 2, 4, 2},
+                {1L << 30, 4096, 3, 5, 2},
+                {1L << 40, 65536, 3, 6, 2}
+        };
+        for (long[] e : expected) {
+            MetadataGenerator generator = new MetadataGenerator("", (int) e[1], "SHA1", "MD5");
+            generator.setHashLengths(e[0]);
+            HeaderHandler handler = generate(generator);
+            assertEquals(Long.valueOf(e[2]), handler.options.get(Metadata.CHECKSUM_LENGTH));
+            assertEquals(e[3], handler.blockHashLength);
+            assertEquals(e[4] > 1 ? Long.valueOf(e[4]) : null, handler.options.get(Metadata.SEQ_MATCHES));
+        }
+        // Never longer than the hash itself
+        MetadataGenerator generator = new MetadataGenerator("", 1, "SHA1", BlockHasher.XXH64);
+        generator.setHashLengths(1L << 60);
+        assertEquals(8, generate(generator).blockHashLength);
+    }
+
+    @Test
+    public void seqMatchesOption() throws NoSuchAlgorithmException, IOException {
+        MetadataGenerator generator = new MetadataGenerator("", 10, "SHA1", "MD5");
+        generator.setSeqMatches(2);
+        assertEquals(Long.valueOf(2), generate(generator).options.get(Metadata.SEQ_MATCHES));
+        generator.setSeqMatches(1);
+        assertTrue(generate(generator).options.isEmpty());
+    }
+
+    @Test
+    public void chunksContent() throws NoSuchAlgorithmException, IOException {
+        byte[] content = new byte[20000];
+        new Random(0).nextBytes(content);
+        MetadataGenerator generator = new MetadataGenerator("", 64, "SHA1", "MD5");
+        generator.setChunking(16, 512);
+        HeaderHandler handler = new HeaderHandler();
+        generator.setHandler(handler);
+        for (byte b : content) {
+            generator.add(b);
+        }
+        generator.finish();
+
+        assertEquals(Long.valueOf(Metadata.FASTCDC), handler.options.get(Metadata.CHUNKING));
+        assertEquals(Long.valueOf(16), handler.options.get(Metadata.MIN_CHUNK_SIZE));
+        assertEquals(Long.valueOf(512), handler.options.get(Metadata.MAX_CHUNK_SIZE));
+        Chunker chunker = new Chunker(16, 64, 512);
+        BlockHasher hasher = BlockHasher.getInstance("MD5");
+        int offset = 0;
+        for (int i = 0; i < handler.lengths.size(); i++) {
+            int length = handler.lengths.get(i);
+            if (offset + length < content.length) {
+                assertEquals(length, chunker.scan(content, offset, content.length - offset));
+            }
+            assertArrayEquals(hasher.hash(content, offset, length), handler.hashes.get(i));
+            offset += length;
+        }
+        assertEquals(content.length, offset);
+    }
+
+    /**
+     * Records every call as text, so different ways of adding the same
+     * content can be compared.
+     */
+    static class RecordingHandler implements MetadataGenerator.ExtendedHandler {
+
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength,
+                           int blockSize) {
+            calls.add("header " + blockHashLength);
+        }
+
+        @Override
+        public void header(String fileHashAlg, int fileHashLength, String source, String blockHashAlg, int blockHashLength,
+                           int blockSize, Map<String, Long> options) {
+            calls.add("header " + blockHashLength + " " + options);
+        }
+
+        @Override
+        public void block(long checksum, byte[] digest) {
+            calls.add("block " + checksum + " " + Arrays.toString(digest));
+        }
+
+        @Override
+        public void chunk(int length, byte[] digest) {
+            calls.add("chunk " + length + " " + Arrays.toString(digest));
+        }
+
+        @Override
+        public void tree(HashTree tree) {
+            calls.add("tree " + tree.getLeafCount() + " " + Arrays.toString(tree.getRoot()));
+        }
+
+        @Override
+        public void complete(long fileSize, byte[] digest) {
+            calls.add("complete " + fileSize + " " + Arrays.toString(digest));
+        }
+    }
+
+    private static MetadataGenerator generator(int mode) throws NoSuchAlgorithmException {
+        MetadataGenerator generator = new MetadataGenerator("", 64, "SHA1", "MD5");
+        if (mode == 1) {
+            generator.setHashLengths(20000);
+        } else if (mode == 2) {
+            generator.setChunking(16, 512);
+        } else if (mode == 3) {
+            generator.setHashLengths(20000);
+            generator.setHashTree(4);
+        } else if (mode == 4) {
+            generator.setChunking(16, 512);
+            generator.setHashTree(3);
+        }
+        return generator;
+    }
+
+    @Test
+    public void bulkAddsMatchBytes() throws NoSuchAlgorithmException, IOException {
+        byte[] content = new byte[20000 + 17];
+        Random random = new Random(0);
+        random.nextBytes(content);
+        for (int mode = 0; mode < 5; mode++) {
+            MetadataGenerator generator = generator(mode);
+            RecordingHandler expected = new RecordingHandler();
+            generator.setHandler(expected);
+            for (byte b : content) {
+                generator.add(b);
+            }
+            generator.finish();
+
+            // Slices both within and spanning several blocks, including empty ones
+            for (int maxSlice : new int[]{1, 63, 64, 65, 1000, content.length}) {
+                RecordingHandler actual = new RecordingHandler();
+                generator.setHandler(actual);
+                for (int offset = 0; offset < content.length; ) {
+                    int length = Math.min(random.nextInt(maxSlice + 1), content.length - offset);
+                    generator.add(content, offset, length);
+                    offset += length;
+                }
+                generator.finish();
+                assertEquals(expected.calls, actual.calls);
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() throws NoSuchAlgorithmException, IOException, InterruptedException {
+        // Spans several batches and ends with a partial block
+        byte[] content = new byte[3 * (1 << 20) + 17];
+        new Random(1).nextBytes(content);
+        File file = File.createTempFile("parallel", "");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (FileInputStream in = new FileInputStream(file)) {
+            for (int mode = 0; mode < 5; mode++) {
+                MetadataGenerator generator = generator(mode);
+                RecordingHandler expected = new RecordingHandler();
+                generator.setHandler(expected);
+                generator.add(content, 0, content.length);
+                generator.finish();
+
+                RecordingHandler actual = new RecordingHandler();
+                generator.setHandler(actual);
+                generator.generate(in.getChannel(), executor, 3);
+                assertEquals(expected.calls, actual.calls);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelEmptyContent() throws NoSuchAlgorithmException, IOException, InterruptedException {
+        File file = File.createTempFile("empty", "");
+        file.deleteOnExit();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (FileInputStream in = new FileInputStream(file)) {
+            MetadataGenerator generator = generator(0);
+            RecordingHandler actual = new RecordingHandler();
+            generator.setHandler(actual);
+            generator.generate(in.getChannel(), executor, 1);
+            assertEquals(1, actual.calls.size());
+            assertTrue(actual.calls.get(0).startsWith("complete 0 "));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChunkSizes() throws NoSuchAlgorithmException {
+        new MetadataGenerator("", 64, "SHA1", "MD5").setChunking(128, 512);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSeqMatches() throws NoSuchAlgorithmException {
+        new MetadataGenerator("", 1, "SHA1", "MD5").setSeqMatches(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongerBlockHash() throws NoSuchAlgorithmException {
+        new MetadataGenerator("", 1, "SHA1", "MD5").setHashLengths(4, 17);
+    }
 }
@@ -3,12 +3,19 @@ package com.github.batkinson.jrsync;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.github.batkinson.jrsync.TestUtils.computeChecksum;
 import static com.github.batkinson.jrsync.TestUtils.computeHash;
@@ -17,6 +24,8 @@ import static com.github.batkinson.jrsync.TestUtils.randomAccess;
 import static com.github.batkinson.jrsync.TestUtils.testFile;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class MetadataTest {
@@ -106,4 +115,268 @@ public class MetadataTest {
         }
     }
 
+
+    @Test
+    public void truncatedRoundTrip() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("file2.txt");
+        File output = File.createTempFile("truncated", "", outputDir);
+        Metadata.generateTruncated("nowhere", 10, "SHA1", "MD5", in, output);
+
+        RandomAccessFile content = randomAccess(in);
+        Metadata metadata = Metadata.read(randomAccess(output));
+        assertEquals(content.length(), metadata.getFileSize());
+        assertArrayEquals(computeHash(content, "SHA1"), metadata.getFileHash());
+        assertEquals("nowhere", metadata.getContentSource());
+        assertEquals("MD5", metadata.getBlockHashAlg());
+        assertEquals(10, metadata.getBlockSize());
+
+        int checksumLength = metadata.getChecksumLength(), hashLength = metadata.getBlockDescs().get(0).cryptoHash.length;
+        assertTrue(checksumLength < 4 && hashLength < 16);
+        assertEquals(2, metadata.getSeqMatches());
+        for (int i = 0; i < metadata.getBlockDescs().size(); i++) {
+            BlockDesc bd = metadata.getBlockDescs().get(i);
+            long checksum = computeChecksum(content, 10, i * 10);
+            assertEquals(checksum & RollingChecksum.mask(checksumLength), bd.weakChecksum);
+            byte[] hash = computeHash(content, "MD5", 10, i * 10);
+            assertArrayEquals(Arrays.copyOf(hash, hashLength), bd.cryptoHash);
+        }
+
+        File full = File.createTempFile("full", "", outputDir);
+        Metadata.generate("nowhere", 10, "SHA1", "MD5", inputStream(in), full);
+        int blocks = metadata.getBlockDescs().size();
+        assertTrue(output.length() < full.length() - blocks * 10);
+    }
+
+    @Test
+    public void fullHashesWriteNoOptions() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("file2.txt");
+        File fromFile = File.createTempFile("file", "", outputDir), fromStream = File.createTempFile("stream", "", outputDir);
+        Metadata.generate("nowhere", 10, "SHA1", "MD5", in, fromFile);
+        Metadata.generate("nowhere", 10, "SHA1", "MD5", inputStream(in), fromStream);
+        assertArrayEquals(readAll(fromStream), readAll(fromFile));
+
+        File explicit = File.createTempFile("explicit", "", outputDir);
+        MetadataGenerator generator = new MetadataGenerator("nowhere", 10, "SHA1", "MD5");
+        generator.setHashLengths(4, 16);
+        Metadata.generate(generator, in, explicit);
+        assertArrayEquals(readAll(fromStream), readAll(explicit));
+    }
+
+    private static byte[] readAll(File file) throws IOException, URISyntaxException {
+        try (RandomAccessFile raf = randomAccess(file)) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    @Test
+    public void parallelWrite() throws IOException, URISyntaxException, NoSuchAlgorithmException, InterruptedException {
+        File in = testFile("file2.txt");
+        File serial = File.createTempFile("serial", "", outputDir), parallel = File.createTempFile("parallel", "", outputDir);
+        Metadata.generate("nowhere", 10, "SHA1", "MD5", in, serial);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Metadata.generate("nowhere", 10, "SHA1", "MD5", in, parallel, executor, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertArrayEquals(computeHash(randomAccess(serial)), computeHash(randomAccess(parallel)));
+    }
+
+    @Test
+    public void multipleBlockSizesWrite() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("file2.txt");
+        int[] blockSizes = {10, 100, 1000};
+        File[] outputs = new File[blockSizes.length];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = File.createTempFile("multi", "", outputDir);
+        }
+        Metadata.generate("nowhere", blockSizes, "SHA1", "MD5", in, outputs);
+        for (int i = 0; i < outputs.length; i++) {
+            File single = File.createTempFile("single", "", outputDir);
+            Metadata.generate("nowhere", blockSizes[i], "SHA1", "MD5", in, single);
+            assertArrayEquals(computeHash(randomAccess(single)), computeHash(randomAccess(outputs[i])));
+        }
+    }
+
+    @Test
+    public void chunkedRoundTrip() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("violin.jpg");
+        File output = File.createTempFile("chunked", "", outputDir);
+        Metadata.generateChunked("nowhere", 1024, "SHA1", "MD5", in, output);
+
+        RandomAccessFile content = randomAccess(in);
+        Metadata metadata = Metadata.read(randomAccess(output));
+        assertTrue(metadata.isChunked());
+        assertEquals(content.length(), metadata.getFileSize());
+        assertArrayEquals(computeHash(content, "SHA1"), metadata.getFileHash());
+        assertEquals(1024, metadata.getBlockSize());
+        assertEquals(256, metadata.getMinChunkSize());
+        assertEquals(8192, metadata.getMaxChunkSize());
+
+        long offset = 0;
+        for (int i = 0; i < metadata.getBlockDescs().size(); i++) {
+            ChunkDesc chunk = (ChunkDesc) metadata.getBlockDescs().get(i);
+            assertEquals(i, chunk.getBlockIndex());
+            assertEquals(offset, chunk.getOffset());
+            assertTrue(chunk.getLength() <= 8192);
+            byte[] bytes = new byte[chunk.getLength()];
+            content.seek(offset);
+            content.readFully(bytes);
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(bytes), chunk.getCryptoHash());
+            offset += chunk.getLength();
+        }
+        assertEquals(content.length(), offset);
+    }
+
+    private static void assertSameMetadata(Metadata expected, Metadata actual) {
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertArrayEquals(expected.getFileHash(), actual.getFileHash());
+        assertEquals(expected.getContentSource(), actual.getContentSource());
+        assertEquals(expected.getBlockSize(), actual.getBlockSize());
+        assertEquals(expected.getChecksumLength(), actual.getChecksumLength());
+        assertEquals(expected.getSeqMatches(), actual.getSeqMatches());
+        assertEquals(expected.isChunked(), actual.isChunked());
+        assertEquals(expected.getBlockCount(), actual.getBlockCount());
+        assertEquals(expected.getBlockDescs().size(), actual.getBlockDescs().size());
+        for (int i = 0; i < expected.getBlockCount(); i++) {
+            BlockDesc block = expected.getBlockDesc(i);
+            assertEquals(block.getBlockIndex(), actual.getBlockDesc(i).getBlockIndex());
+            assertEquals(block.getWeakChecksum(), actual.getBlockDesc(i).getWeakChecksum());
+            assertArrayEquals(block.getCryptoHash(), actual.getBlockDescs().get(i).getCryptoHash());
+            assertEquals(block.getOffset(expected.getBlockSize()), actual.getBlockDesc(i).getOffset(actual.getBlockSize()));
+        }
+    }
+
+    @Test
+    public void mapMatchesRead() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("file2.txt");
+        File truncated = File.createTempFile("truncated", "", outputDir);
+        Metadata.generateTruncated("nowhere", 10, "SHA1", "MD5", in, truncated);
+        File chunked = File.createTempFile("chunked", "", outputDir);
+        Metadata.generateChunked("nowhere", 64, "SHA1", "MD5", in, chunked);
+        for (File file : new File[]{testFile("file1.jrsmd"), testFile("file2.jrsmd"), truncated, chunked}) {
+            assertSameMetadata(Metadata.read(randomAccess(file)), Metadata.map(file));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void mapRejectsMissingRecords() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File output = File.createTempFile("missing", "", outputDir);
+        Metadata.generate("nowhere", 10, "SHA1", "MD5", testFile("file2.txt"), output);
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        Metadata.map(output);
+    }
+
+    @Test
+    public void mapsMoreBlocksThanAList() throws IOException, NoSuchAlgorithmException {
+        long blocks = Integer.MAX_VALUE + 2L, lastBlock = blocks - 1;
+        File output = File.createTempFile("huge", "", outputDir);
+        output.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            MetadataWriter writer = new MetadataWriter(file);
+            writer.header("MD5", 16, "", "MD5", 1, 1, Collections.singletonMap(Metadata.CHECKSUM_LENGTH, 2L));
+            long records = file.getFilePointer();
+            file.seek(records + lastBlock * 3); // Leaves the rest of the file sparse
+            file.writeShort(0xABCD);
+            file.writeByte(42);
+            writer.complete(blocks, new byte[16]);
+        }
+        try {
+            Metadata metadata = Metadata.map(output);
+            assertEquals(blocks, metadata.getBlockCount());
+            BlockDesc last = metadata.getBlockDesc(lastBlock);
+            assertEquals(lastBlock, last.getBlockIndex());
+            assertEquals(0xABCD0000L, last.getWeakChecksum());
+            assertArrayEquals(new byte[]{42}, last.getCryptoHash());
+            assertEquals(0, metadata.getBlockDesc(lastBlock - 1).getWeakChecksum());
+            try {
+                metadata.getBlockDescs();
+                fail("blocks can't fit a list");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+            try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+                Metadata.read(file);
+                fail("blocks can't be read");
+            } catch (IOException e) {
+                // Expected
+            }
+        } finally {
+            output.delete();
+        }
+    }
+
+    private static File treeMetadata(File content, int blockSize, boolean chunked, File dir) throws IOException,
+            NoSuchAlgorithmException {
+        File output = File.createTempFile("tree", "", dir);
+        MetadataGenerator generator = new MetadataGenerator("nowhere", blockSize, "SHA1", "MD5");
+        if (chunked) {
+            generator.setChunking(blockSize / 4, blockSize * 8);
+        } else {
+            generator.setHashLengths(content.length());
+        }
+        generator.setHashTree(4);
+        Metadata.generate(generator, content, output);
+        return output;
+    }
+
+    @Test
+    public void hashTreeRoundTrip() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("violin.jpg");
+        byte[] content = new byte[(int) in.length()];
+        randomAccess(in).readFully(content);
+        BlockHasher hasher = BlockHasher.getInstance("MD5");
+        for (boolean chunked : new boolean[]{false, true}) {
+            File output = treeMetadata(in, 1000, chunked, outputDir);
+            Metadata read = Metadata.read(randomAccess(output)), mapped = Metadata.map(output);
+            assertSameMetadata(read, mapped);
+            HashTree tree = read.getHashTree();
+            assertEquals(4, tree.getLeafSpan());
+            assertEquals(16, tree.getHashLength());
+            assertTrue(tree.rootEquals(mapped.getHashTree()));
+            assertTrue(tree.diff(mapped.getHashTree()).isEmpty());
+            if (!chunked) {
+                // Leaves cover the final partial block, which has no record
+                int leaves = (int) ((read.getFileSize() + 3999) / 4000);
+                assertEquals(leaves, tree.getLeafCount());
+                int last = (leaves - 1) * 4000;
+                assertTrue(tree.verifyLeaf(leaves - 1, HashTree.leafHash(hasher, content, last, content.length - last, 1000)));
+            }
+        }
+        assertNull(Metadata.read(randomAccess(testFile("file2.jrsmd"))).getHashTree());
+    }
+
+    @Test
+    public void diffFindsChangedContent() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        File in = testFile("violin.jpg");
+        byte[] content = new byte[(int) in.length()];
+        randomAccess(in).readFully(content);
+        File modified = File.createTempFile("modified", "", outputDir);
+        content[12345] ^= 1;
+        try (RandomAccessFile out = new RandomAccessFile(modified, "rw")) {
+            out.setLength(0);
+            out.write(content);
+            out.write(new byte[100]);
+        }
+        Metadata before = Metadata.map(treeMetadata(in, 1000, false, outputDir));
+        Metadata after = Metadata.map(treeMetadata(modified, 1000, false, outputDir));
+        long end = content.length + 100, lastLeaf = content.length / 4000 * 4000;
+        assertArrayEquals(new long[]{12000, 16000, lastLeaf, end}, after.diff(before));
+        assertArrayEquals(new long[0], after.diff(after));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void diffRequiresTrees() throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        Metadata metadata = Metadata.read(randomAccess(testFile("file2.jrsmd")));
+        metadata.diff(metadata);
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersion() throws IOException, NoSuchAlgorithmException {
+        Metadata.read(new DataInputStream(new ByteArrayInputStream(new byte[]{0x4A, 0x52, 3})));
+    }
 }
@@ -0,0 +1,188 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.TestUtils.computeHash;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataUpdaterTest {
+
+    private static final int BLOCK_SIZE = 1000;
+
+    File outputDir;
+    Random random = new Random(0);
+
+    @Before
+    public void setUp() {
+        outputDir = new File(System.getProperty("outputDir"), "metadata-updater-scratch");
+        outputDir.mkdirs();
+    }
+
+    private File content(int length) throws IOException {
+        File file = File.createTempFile("content", "", outputDir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(bytes(length));
+        }
+        return file;
+    }
+
+    private byte[] bytes(int length) {
+        byte[] result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private void write(File file, long position, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.write(bytes);
+        }
+    }
+
+    /**
+     * Generates metadata with full length hashes, which are never too short.
+     */
+    private File fullMetadata(File content) throws IOException, NoSuchAlgorithmException {
+        File metadata = File.createTempFile("full", "", outputDir);
+        Metadata.generate("nowhere", BLOCK_SIZE, "SHA1", "MD5", new FileInputStream(content), metadata);
+        return metadata;
+    }
+
+    private File truncatedMetadata(File content) throws IOException, NoSuchAlgorithmException {
+        File metadata = File.createTempFile("truncated", "", outputDir);
+        Metadata.generateTruncated("nowhere", BLOCK_SIZE, "SHA1", "MD5", content, metadata);
+        return metadata;
+    }
+
+    private static void assertSameFile(File expected, File actual) throws IOException, NoSuchAlgorithmException {
+        assertArrayEquals(computeHash(new RandomAccessFile(expected, "r")), computeHash(new RandomAccessFile(actual, "r")));
+    }
+
+    @Test
+    public void appends() throws IOException, NoSuchAlgorithmException {
+        File content = content(100500), metadata = fullMetadata(content);
+        MetadataUpdater updater = new MetadataUpdater(metadata);
+        for (int i = 0; i < 3; i++) {  // Later appends resume the file digest
+            write(content, content.length(), bytes(20250));
+            assertTrue(updater.update(content));
+            assertSameFile(fullMetadata(content), metadata);
+        }
+    }
+
+    @Test
+    public void modifiesRanges() throws IOException, NoSuchAlgorithmException {
+        File content = content(100500), metadata = fullMetadata(content);
+        MetadataUpdater updater = new MetadataUpdater(metadata);
+        write(content, 5500, bytes(10));
+        write(content, 40999, bytes(2));
+        write(content, 100400, bytes(100));
+        assertTrue(updater.update(content, 5500, 5510, 40999, 41001, 100400, 100500));
+        assertSameFile(fullMetadata(content), metadata);
+
+        // Changes and appends at once, after a saved digest
+        write(content, 0, bytes(1));
+        write(content, content.length(), bytes(999));
+        assertTrue(updater.update(content, 0, 1));
+        assertSameFile(fullMetadata(content), metadata);
+    }
+
+    @Test
+    public void truncates() throws IOException, NoSuchAlgorithmException {
+        File content = content(100500), metadata = fullMetadata(content);
+        try (RandomAccessFile raf = new RandomAccessFile(content, "rw")) {
+            raf.setLength(50250);
+        }
+        assertTrue(new MetadataUpdater(metadata).update(content));
+        assertSameFile(fullMetadata(content), metadata);
+    }
+
+    @Test
+    public void keepsTruncatedHashes() throws IOException, NoSuchAlgorithmException {
+        File content = content(1000000), metadata = truncatedMetadata(content);
+        write(content, content.length(), bytes(1500));
+        write(content, 1234, bytes(5000));
+        assertTrue(new MetadataUpdater(metadata).update(content, 1234, 6234));
+        assertSameFile(truncatedMetadata(content), metadata);
+    }
+
+    @Test
+    public void regeneratesTooShortHashes() throws IOException, NoSuchAlgorithmException {
+        File content = content(5000), metadata = truncatedMetadata(content);
+        write(content, content.length(), bytes(1000000));
+        assertFalse(new MetadataUpdater(metadata).update(content));
+        assertSameFile(truncatedMetadata(content), metadata);
+    }
+
+    @Test
+    public void regeneratesChunks() throws IOException, NoSuchAlgorithmException {
+        File content = content(50000), metadata = File.createTempFile("chunked", "", outputDir);
+        Metadata.generateChunked("nowhere", 1024, "SHA1", "MD5", content, metadata);
+        write(content, 100, bytes(10));
+        assertFalse(new MetadataUpdater(metadata).update(content, 100, 110));
+        File expected = File.createTempFile("chunked", "", outputDir);
+        Metadata.generateChunked("nowhere", 1024, "SHA1", "MD5", content, expected);
+        assertSameFile(expected, metadata);
+    }
+
+    private File treeMetadata(File content) throws IOException, NoSuchAlgorithmException {
+        File metadata = File.createTempFile("tree", "", outputDir);
+        MetadataGenerator generator = new MetadataGenerator("nowhere", BLOCK_SIZE, "SHA1", "MD5");
+        generator.setHashLengths(content.length());
+        generator.setHashTree(8);
+        Metadata.generate(generator, content, metadata);
+        return metadata;
+    }
+
+    @Test
+    public void regeneratesTrees() throws IOException, NoSuchAlgorithmException {
+        File content = content(50000), metadata = treeMetadata(content);
+        write(content, content.length(), bytes(5000));
+        assertFalse(new MetadataUpdater(metadata).update(content));
+        assertSameFile(treeMetadata(content), metadata);
+    }
+
+    @Test
+    public void keepsMappedMetadata() throws IOException, NoSuchAlgorithmException {
+        File content = content(100500), metadata = fullMetadata(content);
+        Metadata mapped = Metadata.map(metadata);
+        BlockDesc last = mapped.getBlockDesc(mapped.getBlockCount() - 1);
+        try (RandomAccessFile raf = new RandomAccessFile(content, "rw")) {
+            raf.setLength(10500);
+        }
+        assertTrue(new MetadataUpdater(metadata).update(content));
+        assertSameFile(fullMetadata(content), metadata);
+        assertEquals(100, mapped.getBlockCount());
+        BlockDesc stillLast = mapped.getBlockDesc(mapped.getBlockCount() - 1);
+        assertEquals(last.weakChecksum, stillLast.weakChecksum);
+        assertArrayEquals(last.cryptoHash, stillLast.cryptoHash);
+    }
+
+    @Test
+    public void changedBlocks() {
+        // Overlapping, adjacent, empty and out of range changes
+        assertArrayEquals(new long[]{0, 3, 5, 6, 9, 10},
+                MetadataUpdater.changedBlocks(new long[]{2500, 2600, 0, 1500, 1500, 2001, 5999, 6000, 7, 7, 20000, 30000},
+                        9500, 10000, 1000));
+        // Appended content includes the previous partial block, but not a new partial block
+        assertArrayEquals(new long[]{3, 5}, MetadataUpdater.changedBlocks(new long[0], 3500, 5500, 1000));
+        assertArrayEquals(new long[0], MetadataUpdater.changedBlocks(new long[0], 5500, 3500, 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnpairedChanges() throws IOException, NoSuchAlgorithmException {
+        File content = content(1000);
+        new MetadataUpdater(fullMetadata(content)).update(content, 1);
+    }
+}
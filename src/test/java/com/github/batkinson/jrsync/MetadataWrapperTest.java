@@ -91,6 +91,35 @@ public class MetadataWrapperTest {
         assertEquals(outputDir, metadataFile.getParentFile());
     }
 
+    @Test
+    public void testInputWrapperBulkReads() throws IOException, NoSuchAlgorithmException, URISyntaxException {
+        MetadataInputWrapper in = new MetadataInputWrapper(new BufferedInputStream(inputStream(contentFile)), SOURCE, BLOCK_SIZE, FILE_ALG, BLOCK_ALG, outputDir);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(contentOutput));
+        bulkCopy(in, out);
+        assertResult(in.getMetadataFile(), contentOutput);
+    }
+
+    @Test
+    public void testOutputWrapperBulkWrites() throws IOException, NoSuchAlgorithmException, URISyntaxException {
+        MetadataOutputWrapper out = new MetadataOutputWrapper(new BufferedOutputStream(new FileOutputStream(contentOutput)), SOURCE, BLOCK_SIZE, FILE_ALG, BLOCK_ALG, outputDir);
+        InputStream in = new BufferedInputStream(inputStream(contentFile));
+        bulkCopy(in, out);
+        assertResult(out.getMetadataFile(), contentOutput);
+    }
+
+    /**
+     * Copies in pieces that don't line up with blocks.
+     */
+    private void bulkCopy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BLOCK_SIZE * 2 + 37];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        out.close();
+    }
+
     private void copy(InputStream in, OutputStream out) throws IOException {
         int read;
         while ((read = in.read()) >= 0) {
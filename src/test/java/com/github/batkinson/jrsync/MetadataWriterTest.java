@@ -0,0 +1,89 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MetadataWriterTest {
+
+    File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = new File(System.getProperty("outputDir"), "metadata-scratch");
+        outputDir.mkdirs();
+    }
+
+    @Test
+    public void writesMoreRecordsThanBuffered() throws IOException, NoSuchAlgorithmException {
+        int blocks = 50000; // Several buffers of records
+        Random random = new Random(0);
+        BlockSums expected = BlockSums.blocks(13, blocks);
+        byte[] fileHash = new byte[20];
+        random.nextBytes(fileHash);
+
+        File output = File.createTempFile("writer", "", outputDir);
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            MetadataWriter writer = new MetadataWriter(file);
+            writer.header("SHA1", 20, "nowhere", "MD5", 13, 10, Collections.singletonMap(Metadata.CHECKSUM_LENGTH, 3L));
+            for (int i = 0; i < blocks; i++) {
+                long checksum = random.nextInt() & RollingChecksum.mask(3);
+                byte[] hash = new byte[13];
+                random.nextBytes(hash);
+                writer.block(checksum, hash);
+                expected.add(checksum, hash);
+            }
+            writer.complete(blocks * 10L, fileHash);
+        }
+
+        Metadata metadata = Metadata.map(output);
+        assertEquals(blocks * 10L, metadata.getFileSize());
+        assertArrayEquals(fileHash, metadata.getFileHash());
+        assertEquals("nowhere", metadata.getContentSource());
+        assertEquals(blocks, metadata.getBlockCount());
+        for (int i = 0; i < blocks; i++) {
+            assertEquals(expected.checksum(i), metadata.getBlockDesc(i).getWeakChecksum());
+            assertArrayEquals(expected.hash(i), metadata.getBlockDesc(i).getCryptoHash());
+        }
+    }
+
+    @Test
+    public void writesChunks() throws IOException, NoSuchAlgorithmException {
+        Random random = new Random(1);
+        int[] lengths = {100, 50, 1, 349};
+        byte[][] hashes = new byte[lengths.length][16];
+        File output = File.createTempFile("chunks", "", outputDir);
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            MetadataWriter writer = new MetadataWriter(file);
+            Map<String, Long> options = new LinkedHashMap<>();
+            options.put(Metadata.CHUNKING, (long) Metadata.FASTCDC);
+            options.put(Metadata.MIN_CHUNK_SIZE, 1L);
+            options.put(Metadata.MAX_CHUNK_SIZE, 400L);
+            writer.header("SHA1", 20, "", "MD5", 16, 100, options);
+            for (int i = 0; i < lengths.length; i++) {
+                random.nextBytes(hashes[i]);
+                writer.chunk(lengths[i], hashes[i]);
+            }
+            writer.complete(500, new byte[20]);
+        }
+
+        Metadata metadata = Metadata.map(output);
+        assertEquals(lengths.length, metadata.getBlockCount());
+        for (int i = 0; i < lengths.length; i++) {
+            ChunkDesc chunk = (ChunkDesc) metadata.getBlockDesc(i);
+            assertEquals(lengths[i], chunk.getLength());
+            assertArrayEquals(hashes[i], chunk.getCryptoHash());
+        }
+    }
+}
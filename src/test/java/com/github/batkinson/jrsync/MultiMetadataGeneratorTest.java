@@ -0,0 +1,68 @@
+package com.github.batkinson.jrsync;
+
+import com.github.batkinson.jrsync.MetadataGeneratorTest.RecordingHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiMetadataGeneratorTest {
+
+    private static MetadataGenerator[] generators(String fileHashAlg, int... blockSizes) throws NoSuchAlgorithmException {
+        MetadataGenerator[] result = new MetadataGenerator[blockSizes.length];
+        for (int i = 0; i < blockSizes.length; i++) {
+            result[i] = new MetadataGenerator("", blockSizes[i], fileHashAlg, "MD5");
+        }
+        return result;
+    }
+
+    @Test
+    public void matchesSeparateGenerators() throws NoSuchAlgorithmException, IOException {
+        byte[] content = new byte[50000];
+        new Random(0).nextBytes(content);
+        int[] blockSizes = {64, 1000, 4096, 100000};
+
+        MetadataGenerator[] generators = generators("SHA1", blockSizes);
+        generators[1].setHashLengths(content.length);
+        generators[2].setChunking(1024, 32768);
+        RecordingHandler[] expected = new RecordingHandler[blockSizes.length];
+        for (int i = 0; i < generators.length; i++) {
+            expected[i] = new RecordingHandler();
+            generators[i].setHandler(expected[i]);
+            generators[i].add(content, 0, content.length);
+            generators[i].finish();
+        }
+
+        RecordingHandler[] actual = new RecordingHandler[blockSizes.length];
+        for (int i = 0; i < generators.length; i++) {
+            actual[i] = new RecordingHandler();
+            generators[i].setHandler(actual[i]);
+        }
+        MultiMetadataGenerator multi = new MultiMetadataGenerator(generators);
+        for (int offset = 0; offset < content.length; offset += 777) {
+            multi.add(content, offset, Math.min(777, content.length - offset));
+        }
+        multi.finish();
+
+        for (int i = 0; i < blockSizes.length; i++) {
+            assertEquals(expected[i].calls, actual[i].calls);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDifferentFileHashes() throws NoSuchAlgorithmException {
+        MetadataGenerator[] generators = {
+                new MetadataGenerator("", 64, "SHA1", "MD5"),
+                new MetadataGenerator("", 128, "MD5", "MD5")
+        };
+        new MultiMetadataGenerator(generators);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoGenerators() throws NoSuchAlgorithmException {
+        new MultiMetadataGenerator();
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
+import java.util.Random;
 
 import static com.github.batkinson.jrsync.TestUtils.randomAccess;
 import static com.github.batkinson.jrsync.TestUtils.testFile;
@@ -112,4 +113,27 @@ public class RollingChecksumTest {
         }
     }
 
+
+    @Test
+    public void blockChecksumMatchesUpdates() {
+        byte[] content = new byte[10000];
+        new Random(0).nextBytes(content);
+        for (int length : new int[]{0, 1, 7, 4096, 10000}) {
+            RollingChecksum sum = new RollingChecksum(Math.max(length, 1));
+            sum.update(content, 3 * (content.length - length) / 4, length);
+            assertEquals(sum.getValue(), RollingChecksum.checksum(content, 3 * (content.length - length) / 4, length));
+        }
+    }
+
+    @Test
+    public void masksKeepHighHalf() {
+        assertEquals(0xFFFFFFFFL, RollingChecksum.mask(4));
+        assertEquals(0xFFFF00FFL, RollingChecksum.mask(3));
+        assertEquals(0xFFFF0000L, RollingChecksum.mask(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maskRejectsOtherLengths() {
+        RollingChecksum.mask(1);
+    }
 }
@@ -0,0 +1,327 @@
+package com.github.batkinson.jrsync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures block search throughput. Not run as part of the
+ * test suite, run it directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.SearchBenchmark
+ * </pre>
+ */
+public class SearchBenchmark {
+
+    static final int BLOCK_SIZE = 4096;
+    static final int BASIS_SIZE = 256 * 1024 * 1024;
+    static final String MD5 = "MD5";
+    static final int ROUNDS = 3;
+
+    static class CountingHandler implements SearchHandler {
+
+        long matched, unmatched;
+
+        @Override
+        public void searched(int percent) {
+        }
+
+        @Override
+        public void matched(long startOffset, BlockDesc match) {
+            matched++;
+        }
+
+        @Override
+        public void unmatched(long startOffset, long endOffset) {
+            unmatched += endOffset - startOffset;
+        }
+    }
+
+    static DataInput input(byte[] content) {
+        return new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(content)));
+    }
+
+    static List<BlockDesc> describe(byte[] content, int blockSize) throws Exception {
+        List<BlockDesc> result = new ArrayList<>();
+        MessageDigest digest = MessageDigest.getInstance(MD5);
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        for (int i = 0; (i + 1) * (long) blockSize <= content.length; i++) {
+            checksum.reset();
+            checksum.update(content, i * blockSize, blockSize);
+            digest.update(content, i * blockSize, blockSize);
+            result.add(new BlockDesc(i, checksum.getValue(), digest.digest()));
+        }
+        return result;
+    }
+
+    /**
+     * The zsync search loop as it was before {@link SearchWindow}, reading and
+     * rolling a byte at a time through {@link SearchBuffer}.
+     */
+    static void legacyZsync(List<BlockDesc> blocks, DataInput basis, SearchHandler handler) throws Exception {
+        MatchTable table = new MatchTable(blocks);
+        SearchBuffer sb = new SearchBuffer(BLOCK_SIZE);
+        MessageDigest digest = MessageDigest.getInstance(MD5);
+        byte[] blockBuf = new byte[BLOCK_SIZE];
+        try {
+            basis.readFully(blockBuf);
+            sb.add(blockBuf);
+            while (true) {
+                boolean blockMatched = false;
+                long sum = sb.checksum();
+                int slot = table.mightContain(sum) ? table.find(sum) : -1;
+                if (slot >= 0) {
+                    byte[] contentHash = digest.digest(sb.getBlock(blockBuf));
+                    for (int pos = table.start(slot); pos < table.end(slot); ) {
+                        if (Arrays.equals(contentHash, table.block(table.entry(pos)).cryptoHash)) {
+                            handler.matched(sb.position(), table.block(table.entry(pos)));
+                            table.remove(slot, pos);
+                            blockMatched = true;
+                        } else {
+                            pos++;
+                        }
+                    }
+                }
+                if (blockMatched) {
+                    basis.readFully(blockBuf);
+                    sb.add(blockBuf);
+                } else {
+                    sb.add(basis.readByte());
+                }
+            }
+        } catch (EOFException eof) {
+            // Done
+        }
+    }
+
+    static List<BlockDesc> describeChunks(byte[] content, int minSize, int avgSize, int maxSize) throws Exception {
+        List<BlockDesc> result = new ArrayList<>();
+        BlockHasher hasher = BlockHasher.getInstance(MD5);
+        Chunker chunker = new Chunker(minSize, avgSize, maxSize);
+        for (int i = 0, start = 0, length; start < content.length; i++, start += length) {
+            length = chunker.scan(content, start, content.length - start);
+            if (length < 0) {
+                length = content.length - start;
+            }
+            result.add(new ChunkDesc(i, start, length, hasher.hash(content, start, length)));
+        }
+        return result;
+    }
+
+    interface Search {
+        void run(CountingHandler handler) throws Exception;
+    }
+
+    static void measure(String name, long bytes, Search search) throws Exception {
+        double best = 0;
+        CountingHandler handler = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            handler = new CountingHandler();
+            long start = System.nanoTime();
+            search.run(handler);
+            best = Math.max(best, bytes / 1e6 / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("%-40s %8.1f MB/s (%d matched, %d bytes needed)%n", name, best, handler.matched, handler.unmatched);
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM can't
+     * tell.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Measures a search where every offset is a weak checksum hit that fails
+     * strong hash verification, reporting bytes allocated per candidate.
+     */
+    static void collisions(String name, final boolean rsync) throws Exception {
+        final int blockSize = 64;
+        final byte[] zeros = new byte[16 * 1024 * 1024];
+        List<BlockDesc> zeroBlock = describe(new byte[blockSize], blockSize);
+        final List<BlockDesc> poisoned = new ArrayList<>();
+        for (BlockDesc desc : zeroBlock) {
+            poisoned.add(new BlockDesc(desc.blockIndex, desc.weakChecksum, new byte[desc.cryptoHash.length]));
+        }
+        Search search = new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                BlockSearch search = new BlockSearch(poisoned, blockSize);
+                if (rsync) {
+                    search.rsyncSearch(input(zeros), zeros.length, MD5, handler);
+                } else {
+                    search.zsyncSearch(input(zeros), zeros.length, blockSize, MD5, handler);
+                }
+            }
+        };
+        search.run(new CountingHandler()); // Warm up
+        long before = allocatedBytes();
+        measure(name, zeros.length, search);
+        long allocated = allocatedBytes() - before;
+        long candidates = (long) ROUNDS * (zeros.length - blockSize + 1);
+        System.out.printf("%-40s %8.1f bytes/candidate (%d MB allocated)%n", "", (double) allocated / candidates, allocated >> 20);
+    }
+
+    /**
+     * Compares block and chunk searches of a basis for a target made by
+     * inserting a few bytes into it every megabyte, as with an edited file.
+     */
+    static void edits(byte[] basis, final File basisFile) throws Exception {
+        final int edits = basis.length >> 20;
+        byte[] target = new byte[basis.length + edits * 3];
+        for (int i = 0, from = 0, to = 0; i < edits; i++, from += 1 << 20, to += (1 << 20) + 3) {
+            System.arraycopy(basis, from, target, to, 1 << 20);
+            target[to + (1 << 20)] = (byte) i;
+        }
+        final List<BlockDesc> blocks = describe(target, BLOCK_SIZE);
+        final List<BlockDesc> chunks = describeChunks(target, BLOCK_SIZE / 4, BLOCK_SIZE, BLOCK_SIZE * 8);
+        measure("zsync file mapped, edited", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                    new BlockSearch(blocks, BLOCK_SIZE).zsyncSearch(in.getChannel(), (long) edits * ((1 << 20) + 3), MD5, handler);
+                }
+            }
+        });
+        measure("chunks file mapped, edited", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                    new ChunkSearch(chunks, BLOCK_SIZE / 4, BLOCK_SIZE, BLOCK_SIZE * 8).search(in.getChannel(), MD5, handler);
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        collisions("rsync, all weak collisions", true);
+        collisions("zsync, all weak collisions", false);
+
+        Random random = new Random(42);
+        final byte[] basis = new byte[BASIS_SIZE], other = new byte[BASIS_SIZE / 16];
+        random.nextBytes(basis);
+        random.nextBytes(other);
+
+        final List<BlockDesc> unrelated = describe(other, BLOCK_SIZE);
+        final List<BlockDesc> identical = describe(basis, BLOCK_SIZE);
+
+        measure("legacy zsync, no matches", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                legacyZsync(unrelated, input(basis), handler);
+            }
+        });
+        measure("zsync, no matches", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                new BlockSearch(unrelated, BLOCK_SIZE).zsyncSearch(input(basis), basis.length, other.length, MD5, handler);
+            }
+        });
+        measure("rsync, no matches", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                new BlockSearch(unrelated, BLOCK_SIZE).rsyncSearch(input(basis), basis.length, MD5, handler);
+            }
+        });
+        final File basisFile = File.createTempFile("search-benchmark", ".bin");
+        basisFile.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(basisFile)) {
+            out.write(basis);
+        }
+        edits(basis, basisFile);
+        measure("zsync file stream, no matches", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (FileInputStream in = new FileInputStream(basisFile)) {
+                    new BlockSearch(unrelated, BLOCK_SIZE).zsyncSearch(new DataInputStream(new BufferedInputStream(in)), basis.length, other.length, MD5, handler);
+                }
+            }
+        });
+        measure("zsync file mapped, no matches", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                    new BlockSearch(unrelated, BLOCK_SIZE).zsyncSearch(in.getChannel(), other.length, MD5, handler);
+                }
+            }
+        });
+        measure("zsync file stream, identical", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (FileInputStream in = new FileInputStream(basisFile)) {
+                    new BlockSearch(identical, BLOCK_SIZE).zsyncSearch(new DataInputStream(new BufferedInputStream(in)), basis.length, basis.length, MD5, handler);
+                }
+            }
+        });
+        measure("zsync file mapped, identical", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                    new BlockSearch(identical, BLOCK_SIZE).zsyncSearch(in.getChannel(), basis.length, MD5, handler);
+                }
+            }
+        });
+        for (final int threads : new int[]{1, 2, 4, 8}) {
+            measure("zsync file mapped parallel x" + threads + ", no matches", basis.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    ExecutorService executor = Executors.newFixedThreadPool(threads);
+                    try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                        new BlockSearch(unrelated, BLOCK_SIZE).zsyncSearch(in.getChannel(), other.length, MD5, handler, executor, threads * 4);
+                    } finally {
+                        executor.shutdown();
+                    }
+                }
+            });
+        }
+        measure("rsync file stream, identical", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                try (FileInputStream in = new FileInputStream(basisFile)) {
+                    new BlockSearch(identical, BLOCK_SIZE).rsyncSearch(new DataInputStream(new BufferedInputStream(in)), basis.length, MD5, handler);
+                }
+            }
+        });
+        for (final int threads : new int[]{1, 2, 4, 8}) {
+            measure("rsync file mapped parallel x" + threads + ", no matches", basis.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    ExecutorService executor = Executors.newFixedThreadPool(threads);
+                    try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                        new BlockSearch(unrelated, BLOCK_SIZE).rsyncSearch(in.getChannel(), MD5, handler, executor, threads * 4);
+                    } finally {
+                        executor.shutdown();
+                    }
+                }
+            });
+            measure("rsync file mapped parallel x" + threads + ", identical", basis.length, new Search() {
+                public void run(CountingHandler handler) throws Exception {
+                    ExecutorService executor = Executors.newFixedThreadPool(threads);
+                    try (RandomAccessFile in = new RandomAccessFile(basisFile, "r")) {
+                        new BlockSearch(identical, BLOCK_SIZE).rsyncSearch(in.getChannel(), MD5, handler, executor, threads * 4);
+                    } finally {
+                        executor.shutdown();
+                    }
+                }
+            });
+        }
+        measure("legacy zsync, identical", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                legacyZsync(identical, input(basis), handler);
+            }
+        });
+        measure("zsync, identical", basis.length, new Search() {
+            public void run(CountingHandler handler) throws Exception {
+                new BlockSearch(identical, BLOCK_SIZE).zsyncSearch(input(basis), basis.length, basis.length, MD5, handler);
+            }
+        });
+    }
+}
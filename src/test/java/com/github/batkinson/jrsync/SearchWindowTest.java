@@ -0,0 +1,126 @@
+package com.github.batkinson.jrsync;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.SearchWindow.source;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchWindowTest {
+
+    // Large enough to force the window to refill several times
+    private static final byte[] content = new byte[SearchWindow.CHUNK_SIZE * 3 + 123];
+
+    static {
+        new Random(0).nextBytes(content);
+    }
+
+    private static SearchWindow window(int blockSize) {
+        return new SearchWindow(source(new DataInputStream(new ByteArrayInputStream(content))), content.length, blockSize);
+    }
+
+    private static long checksum(int offset, int blockSize) {
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        checksum.update(content, offset, blockSize);
+        return checksum.getValue();
+    }
+
+    @Test
+    public void shortSourceDoesNotLoad() throws IOException {
+        SearchWindow w = new SearchWindow(source(new DataInputStream(new ByteArrayInputStream(content))), 9, 10);
+        assertFalse(w.load());
+    }
+
+    @Test
+    public void rollsLikeRollingChecksum() throws IOException {
+        for (int blockSize : new int[]{1, 7, 4096}) {
+            SearchWindow w = window(blockSize);
+            RollingChecksum rolled = new RollingChecksum(blockSize);
+            rolled.update(content, 0, blockSize);
+            assertTrue(w.load());
+            for (int offset = 0; offset + blockSize <= content.length; offset++) {
+                assertEquals(offset, w.position());
+                assertEquals(rolled.getValue(), w.checksum());
+                assertEquals(content[offset], w.buffer()[w.offset()]);
+                if (offset + blockSize < content.length) {
+                    assertTrue(w.next());
+                    rolled.update(content[offset + blockSize]);
+                }
+            }
+            assertFalse(w.next());
+        }
+    }
+
+    @Test
+    public void skipsWholeBlocks() throws IOException {
+        int blockSize = 1000;
+        SearchWindow w = window(blockSize);
+        assertTrue(w.load());
+        assertTrue(w.next());
+        int offset = 1;
+        while (w.skip()) {
+            offset += blockSize;
+            assertEquals(offset, w.position());
+            assertEquals(checksum(offset, blockSize), w.checksum());
+        }
+        assertTrue(content.length - (offset + blockSize) < blockSize);
+    }
+
+    @Test
+    public void peeksAtFollowingBlock() throws IOException {
+        for (int blockSize : new int[]{1, 7, 4096}) {
+            SearchWindow w = window(blockSize);
+            assertTrue(w.load());
+            int offset = 0;
+            do {
+                if (offset + 2 * blockSize <= content.length) {
+                    assertTrue(w.peek());
+                    assertEquals(checksum(offset + blockSize, blockSize), w.followingChecksum());
+                    assertEquals(content[offset + blockSize], w.buffer()[w.offset() + blockSize]);
+                    // Peeking may move the buffered content, but not the window
+                    assertEquals(offset, w.position());
+                    assertEquals(checksum(offset, blockSize), w.checksum());
+                } else {
+                    assertFalse(w.peek());
+                }
+                offset += blockSize;
+            } while (w.skip());
+        }
+    }
+
+    @Test
+    public void seeksToCandidates() throws IOException {
+        int blockSize = 100;
+        List<BlockDesc> blocks = new ArrayList<>();
+        int[] offsets = {5, 64000, 65600, SearchWindow.CHUNK_SIZE * 3};
+        for (int offset : offsets) {
+            blocks.add(new BlockDesc(blocks.size(), checksum(offset, blockSize), new byte[0]));
+        }
+        MatchTable table = new MatchTable(blocks);
+        SearchWindow w = window(blockSize);
+        assertTrue(w.load());
+        List<Long> found = new ArrayList<>();
+        int status;
+        while ((status = w.seek(table)) != SearchWindow.END) {
+            if (status == SearchWindow.CANDIDATE) {
+                if (table.find(w.checksum()) >= 0) {
+                    found.add(w.position());
+                }
+                if (!w.next()) {
+                    break;
+                }
+            }
+        }
+        for (int offset : offsets) {
+            assertTrue(found.contains((long) offset));
+        }
+    }
+}
@@ -154,18 +154,36 @@ public class TestUtils {
         List<BlockDesc> blockDescs = new ArrayList<>();
         long length = file.length();
         byte[] block = new byte[blockSize];
-        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        BlockHasher hasher = BlockHasher.getInstance(digestAlgorithm);
         RollingChecksum checksum = new RollingChecksum(blockSize);
         for (int i = 0, blockStart = 0; blockStart + blockSize <= length; i++, blockStart += blockSize) {
             file.seek(blockStart);
             file.readFully(block);
             checksum.update(block);
-            blockDescs.add(new BlockDesc(i, checksum.getValue(), digest.digest(block)));
+            blockDescs.add(new BlockDesc(i, checksum.getValue(), hasher.hash(block, 0, blockSize)));
             checksum.reset();
         }
         return blockDescs;
     }
 
+    public static List<BlockDesc> computeChunks(RandomAccessFile file, int minSize, int avgSize, int maxSize, String digestAlgorithm)
+            throws IOException, NoSuchAlgorithmException {
+        List<BlockDesc> chunkDescs = new ArrayList<>();
+        byte[] content = new byte[(int) file.length()];
+        file.seek(0);
+        file.readFully(content);
+        BlockHasher hasher = BlockHasher.getInstance(digestAlgorithm);
+        Chunker chunker = new Chunker(minSize, avgSize, maxSize);
+        for (int i = 0, start = 0, length; start < content.length; i++, start += length) {
+            length = chunker.scan(content, start, content.length - start);
+            if (length < 0) {
+                length = content.length - start;
+            }
+            chunkDescs.add(new ChunkDesc(i, start, length, hasher.hash(content, start, length)));
+        }
+        return chunkDescs;
+    }
+
     /**
      * Prints a description of the file, useful for constructing metadata.
      */
@@ -0,0 +1,157 @@
+package com.github.batkinson.jrsync.zsync;
+
+import com.github.batkinson.jrsync.Metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the time to sync a file over a high-latency link with one range
+ * request, with requests made while searching, and with increasing numbers of
+ * concurrent ones. The server is a
+ * local stand-in that delays each response by a round trip and limits each
+ * connection to a window of content per round trip, like a single TCP
+ * stream would be. Not run as part of the test suite, run it directly:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.github.batkinson.jrsync.zsync.FetchBenchmark
+ * </pre>
+ */
+public class FetchBenchmark {
+
+    private static final int CONTENT_SIZE = 16 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int CHANGED_RUN = 16;
+    private static final int CHANGED_PERCENT = 25;
+    private static final int ROUND_TRIP_MS = 50;
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int ROUNDS = 3;
+
+    /**
+     * Delays responses and limits the rate they can be read at.
+     */
+    static class LatentRequestHandler implements RequestHandler {
+
+        private final RequestHandler handler;
+
+        LatentRequestHandler(RequestHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public Response service(Map<String, String> headers) {
+            pause();
+            Response response = handler.service(headers);
+            return new Response(response.status, response.headers, new WindowedInputStream(response.body));
+        }
+    }
+
+    /**
+     * Pauses for a round trip each time a window of content has been read.
+     */
+    static class WindowedInputStream extends FilterInputStream {
+
+        private int windowRemaining = WINDOW_SIZE;
+
+        WindowedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            return read(buf, 0, 1) < 0 ? -1 : buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (windowRemaining == 0) {
+                pause();
+                windowRemaining = WINDOW_SIZE;
+            }
+            int read = super.read(b, off, Math.min(len, windowRemaining));
+            if (read > 0)
+                windowRemaining -= read;
+            return read;
+        }
+    }
+
+    static void pause() {
+        try {
+            Thread.sleep(ROUND_TRIP_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] content = new byte[CONTENT_SIZE], basisContent = new byte[CONTENT_SIZE];
+        Random random = new Random(42);
+        random.nextBytes(content);
+        System.arraycopy(content, 0, basisContent, 0, CONTENT_SIZE);
+        // Change runs of blocks, few enough to fit in a single request
+        for (int run = 0; run < CONTENT_SIZE; run += CHANGED_RUN * BLOCK_SIZE) {
+            if (random.nextInt(100) < CHANGED_PERCENT) {
+                for (int offset = run; offset < run + CHANGED_RUN * BLOCK_SIZE; offset += BLOCK_SIZE)
+                    basisContent[offset] ^= 1;
+            }
+        }
+
+        File basis = File.createTempFile("bench", ".basis"), target = File.createTempFile("bench", ".target"),
+                metadataFile = File.createTempFile("bench", "." + Metadata.FILE_EXT);
+        basis.deleteOnExit();
+        target.deleteOnExit();
+        metadataFile.deleteOnExit();
+        Files.write(basis.toPath(), basisContent);
+        Metadata.generate("bench", BLOCK_SIZE, "SHA1", "MD5", new ByteArrayInputStream(content), metadataFile);
+        Metadata metadata = Metadata.read(new RandomAccessFile(metadataFile, "r"));
+
+        TestRangeRequestFactory factory = new TestRangeRequestFactory(
+                new LatentRequestHandler(new ContentRequestHandler(content)));
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            ZSync.sync(metadata, basis, target, factory);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("single request:  %6d ms%n", best / 1000000);
+
+        ExecutorService streamingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                ZSync.streamingSync(metadata, basis, target, factory, null, streamingExecutor);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("streaming:       %6d ms%n", best / 1000000);
+        } finally {
+            streamingExecutor.shutdown();
+        }
+
+        for (int connections = 1; connections <= 16; connections *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(connections);
+            try {
+                best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    ZSync.sync(metadata, basis, target, factory, null, executor, connections);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%2d connections: %6d ms%n", connections, best / 1000000);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
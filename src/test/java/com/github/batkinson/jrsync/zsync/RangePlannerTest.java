@@ -0,0 +1,44 @@
+package com.github.batkinson.jrsync.zsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.batkinson.jrsync.zsync.Range.toRangeString;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RangePlannerTest {
+
+    private final List<Range> ranges = asList(new Range(0, 99), new Range(150, 199), new Range(400, 499),
+            new Range(1000, 1099));
+
+    @Test
+    public void mergesSmallGaps() {
+        assertEquals("0-499,1000-1099", toRangeString(RangePlanner.forLink(100, 1000000).plan(ranges)));
+    }
+
+    @Test
+    public void partOverhead() {
+        assertEquals("0-99,150-199,400-499,1000-1099", toRangeString(new RangePlanner(0, 0).plan(ranges)));
+        assertEquals("0-499,1000-1099", toRangeString(new RangePlanner(200, 0).plan(ranges)));
+        assertEquals("0-1099", toRangeString(new RangePlanner(500, 0).plan(ranges)));
+    }
+
+    @Test
+    public void requestCost() {
+        RangePlanner planner = new RangePlanner(0, 0), slow = RangePlanner.forLink(100, 10000000);
+        assertEquals("99,150".length() + 1, planner.cost(ranges.get(0), ranges.get(1)));
+        assertTrue(slow.cost(ranges.get(0), ranges.get(1)) > RangePlanner.PART_OVERHEAD + 7);
+        assertEquals("0-1099", toRangeString(slow.plan(ranges)));
+    }
+
+    @Test
+    public void emptyAndSingle() {
+        RangePlanner planner = RangePlanner.forLink(100, 1000000);
+        assertEquals("", toRangeString(planner.plan(new ArrayList<Range>())));
+        assertEquals("5-10", toRangeString(planner.plan(asList(new Range(5, 10)))));
+    }
+}
@@ -8,7 +8,9 @@ import java.util.List;
 import static com.github.batkinson.jrsync.zsync.Range.base10Digits;
 import static com.github.batkinson.jrsync.zsync.Range.estimateStringLength;
 import static com.github.batkinson.jrsync.zsync.Range.toRangeString;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class RangeTest {
 
@@ -29,4 +31,28 @@ public class RangeTest {
             assertEquals(toRangeString(rangeList).length(), estimateStringLength(rangeList));
         }
     }
+
+    @Test
+    public void splitRanges() {
+        List<Range> rangeList = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rangeList.add(new Range(i * 20, i * 20 + 9));
+        }
+        List<List<Range>> split = Range.split(rangeList, 100);
+        List<Range> joined = new ArrayList<>();
+        for (List<Range> part : split) {
+            assertTrue(toRangeString(part).length() <= 100);
+            joined.addAll(part);
+        }
+        assertEquals(toRangeString(rangeList), toRangeString(joined));
+        assertEquals(1, Range.split(rangeList, Long.MAX_VALUE).size());
+        assertEquals(0, Range.split(new ArrayList<Range>(), 100).size());
+    }
+
+    @Test
+    public void splitLongRange() {
+        List<Range> rangeList = asList(new Range(0, 9), new Range(1000000, 2000000), new Range(3000000, 3000009));
+        assertEquals(3, Range.split(rangeList, 10).size());
+        assertEquals(2, Range.split(rangeList, 20).size());
+    }
 }
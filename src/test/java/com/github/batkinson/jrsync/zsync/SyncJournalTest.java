@@ -0,0 +1,129 @@
+package com.github.batkinson.jrsync.zsync;
+
+import com.github.batkinson.jrsync.Metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.github.batkinson.jrsync.zsync.Range.toRangeString;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncJournalTest {
+
+    private File outputDir, basis, journalFile;
+    private Metadata metadata;
+
+    @Before
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        outputDir = new File(System.getProperty("outputDir"), "journal-files");
+        outputDir.mkdirs();
+        byte[] content = new byte[1000];
+        new Random(1).nextBytes(content);
+        File metadataFile = File.createTempFile("journal-meta", "", outputDir);
+        Metadata.generate("", 100, "SHA1", "MD5", new ByteArrayInputStream(content), metadataFile);
+        metadata = Metadata.read(new RandomAccessFile(metadataFile, "r"));
+        basis = File.createTempFile("journal-basis", "", outputDir);
+        Files.write(basis.toPath(), content);
+        journalFile = File.createTempFile("journal", "." + ZSync.JOURNAL_EXT, outputDir);
+    }
+
+    private SyncJournal create() throws IOException {
+        Map<Long, Match> matches = new HashMap<>();
+        matches.put(0L, new Match(0, 100));
+        matches.put(100L, new Match(100, 100)); // Continues the first
+        matches.put(300L, new Match(500, 100));
+        return SyncJournal.create(journalFile, metadata, basis, matches, asList(new Range(200, 299), new Range(400, 999)));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        SyncJournal journal = create();
+        journal.completed(asList(new Range(0, 199)));
+        journal.completed(asList(new Range(400, 499), new Range(200, 299)));
+        journal.close();
+
+        journal = SyncJournal.open(journalFile, metadata, basis);
+        assertEquals(2, journal.getMatches().size());
+        assertEquals(200, journal.getMatches().get(0L).length);
+        assertEquals(500, journal.getMatches().get(300L).basisOffset);
+        assertEquals("200-299,400-999", toRangeString(journal.getRequired()));
+        assertEquals("0-299,400-499", toRangeString(journal.getCompleted()));
+        journal.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws IOException {
+        SyncJournal journal = create();
+        journal.completed(asList(new Range(0, 199)));
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(file.length() + 7);
+        } finally {
+            file.close();
+        }
+
+        journal = SyncJournal.open(journalFile, metadata, basis);
+        assertEquals("0-199", toRangeString(journal.getCompleted()));
+        journal.completed(asList(new Range(200, 299)));
+        journal.close();
+
+        journal = SyncJournal.open(journalFile, metadata, basis);
+        assertEquals("0-299", toRangeString(journal.getCompleted()));
+        journal.close();
+    }
+
+    @Test
+    public void recordsPastReadBuffer() throws IOException {
+        SyncJournal journal = create();
+        for (int i = 0; i < 1000; i += 2) {
+            journal.completed(asList(new Range(i, i)));
+        }
+        journal.close();
+        long length = journalFile.length();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(length + 9);
+        } finally {
+            file.close();
+        }
+
+        journal = SyncJournal.open(journalFile, metadata, basis);
+        assertEquals(500, journal.getCompleted().size());
+        assertEquals("998-998", journal.getCompleted().get(499).toString());
+        journal.close();
+        assertEquals(length, journalFile.length());
+    }
+
+    @Test
+    public void staleJournal() throws IOException {
+        create().close();
+        basis.setLastModified(basis.lastModified() + 2000);
+        assertNull(SyncJournal.open(journalFile, metadata, basis));
+    }
+
+    @Test
+    public void missingOrIncompleteJournal() throws IOException {
+        assertNull(SyncJournal.open(new File(outputDir, "missing." + ZSync.JOURNAL_EXT), metadata, basis));
+        create().close();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(20);
+        } finally {
+            file.close();
+        }
+        assertNull(SyncJournal.open(journalFile, metadata, basis));
+    }
+}
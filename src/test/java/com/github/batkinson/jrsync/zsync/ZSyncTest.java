@@ -1,5 +1,6 @@
 package com.github.batkinson.jrsync.zsync;
 
+import com.github.batkinson.jrsync.BlockHasher;
 import com.github.batkinson.jrsync.Metadata;
 
 import org.junit.Before;
@@ -8,19 +9,31 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static com.github.batkinson.jrsync.TestUtils.inputStream;
 import static com.github.batkinson.jrsync.TestUtils.randomAccess;
 import static com.github.batkinson.jrsync.TestUtils.testFile;
+import static com.github.batkinson.jrsync.zsync.Range.toRangeString;
 import static com.github.batkinson.jrsync.zsync.ZSync.SC_PARTIAL_CONTENT;
 import static com.github.batkinson.jrsync.zsync.ZSync.sync;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ZSyncTest {
 
@@ -100,6 +113,25 @@ public class ZSyncTest {
         sync(file1Multiple, file1, tempFile("exact-mb"), factory);
     }
 
+    @Test
+    public void exactMultipleBlocksFastHash() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("xxh64-meta");
+        Metadata.generate("", 10, "SHA1", BlockHasher.XXH64, inputStream(file1), metadataFile);
+        Metadata metadata = Metadata.read(randomAccess(metadataFile));
+        assertEquals(BlockHasher.XXH64, metadata.getBlockHashAlg());
+        sync(metadata, file1, tempFile("exact-xxh64"), factory);
+    }
+
+    @Test
+    public void exactMultipleBlocksTruncatedHashes() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("truncated-meta");
+        Metadata.generateTruncated("", 10, "SHA1", "MD5", file1, metadataFile);
+        Metadata metadata = Metadata.read(randomAccess(metadataFile));
+        assertEquals(2, metadata.getChecksumLength());
+        assertEquals(2, metadata.getSeqMatches());
+        sync(metadata, file1, tempFile("exact-truncated"), factory);
+    }
+
     @Test
     public void progressTracker() throws IOException, NoSuchAlgorithmException, InterruptedException {
         TestTracker tracker = new TestTracker();
@@ -143,6 +175,430 @@ public class ZSyncTest {
         sync(file1Multiple, file6, tempFile("poison-byte"), factory);
     }
 
+    @Test
+    public void poisonByteTruncatedHashes() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("poison-truncated-meta");
+        Metadata.generateTruncated("", 10, "SHA1", "MD5", file1, metadataFile);
+        setupResponse(SC_PARTIAL_CONTENT, "987654321\n", "Content-Range: bytes 40-49/1000");
+        sync(Metadata.read(randomAccess(metadataFile)), file6, tempFile("poison-byte-truncated"), factory);
+    }
+
+    @Test
+    public void exactChunks() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("chunked-meta");
+        Metadata.generateChunked("", 16, "SHA1", "MD5", file1, metadataFile);
+        Metadata metadata = Metadata.read(randomAccess(metadataFile));
+        assertTrue(metadata.isChunked());
+        sync(metadata, file1, tempFile("exact-chunked"), factory);
+    }
+
+    @Test
+    public void shiftedChunks() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("shifted-chunked-meta");
+        Metadata.generateChunked("", 16, "SHA1", "MD5", file1, metadataFile);
+        ContentRequestHandler handler = new ContentRequestHandler(Files.readAllBytes(file1.toPath()));
+        factory.handler = handler;
+        sync(Metadata.read(randomAccess(metadataFile)), file6, tempFile("shifted-chunked"), factory);
+        assertEquals(1, handler.requestedRanges.size());
+    }
+
+    /**
+     * Random content of 10 blocks of 100 bytes, with its metadata, so every
+     * block is distinct.
+     */
+    private byte[] randomContent;
+    private Metadata randomMetadata;
+
+    private void setupRandom() throws IOException, NoSuchAlgorithmException {
+        randomContent = new byte[1000];
+        new Random(1).nextBytes(randomContent);
+        File metadataFile = tempFile("random-meta");
+        Metadata.generate("", 100, "SHA1", "MD5", new ByteArrayInputStream(randomContent), metadataFile);
+        randomMetadata = Metadata.read(new RandomAccessFile(metadataFile, "r"));
+    }
+
+    /**
+     * Writes the random content with a byte changed in each of the specified
+     * blocks, so each is fetched as a separate range.
+     */
+    private File changedBasis(int... blocks) throws IOException {
+        byte[] content = randomContent.clone();
+        for (int block : blocks) {
+            content[block * 100 + 3] ^= 1;
+        }
+        File basis = tempFile("changed-basis");
+        Files.write(basis.toPath(), content);
+        return basis;
+    }
+
+    @Test
+    public void refetchesCorruptedBlock() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        handler.spoiled = 1;
+        factory.handler = handler;
+        File target = tempFile("corrupted");
+        sync(randomMetadata, changedBasis(1, 5, 8), target, factory);
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-199,500-599,800-899", "100-199"), handler.requestedRanges);
+    }
+
+    @Test
+    public void refetchesTruncatedResponse() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        handler.spoiled = 1;
+        handler.truncate = true;
+        factory.handler = handler;
+        File target = tempFile("truncated");
+        sync(randomMetadata, changedBasis(1, 5, 8), target, factory);
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-199,500-599,800-899", "500-599,800-899"), handler.requestedRanges);
+    }
+
+    @Test
+    public void refetchesCorruptedChunk() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("corrupted-chunked-meta");
+        Metadata.generateChunked("", 16, "SHA1", "MD5", file1, metadataFile);
+        ContentRequestHandler handler = new ContentRequestHandler(Files.readAllBytes(file1.toPath()));
+        handler.spoiled = 1;
+        factory.handler = handler;
+        File target = tempFile("corrupted-chunked");
+        sync(Metadata.read(randomAccess(metadataFile)), file6, target, factory);
+        assertArrayEquals(Files.readAllBytes(file1.toPath()), Files.readAllBytes(target.toPath()));
+        assertEquals(2, handler.requestedRanges.size());
+    }
+
+    @Test
+    public void persistentCorruptionFails() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        handler.spoiled = Integer.MAX_VALUE;
+        factory.handler = handler;
+        try {
+            sync(randomMetadata, changedBasis(4), tempFile("persistent"), factory);
+            fail("corrupt content can't be synced");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1 + ZSync.MAX_REFETCHES, handler.requestedRanges.size());
+    }
+
+    @Test
+    public void missingRanges() {
+        List<Range> requested = asList(new Range(0, 9), new Range(20, 49), new Range(60, 69));
+        List<Range> received = asList(new Range(0, 9), new Range(25, 29), new Range(40, 64));
+        assertEquals("20-24,30-39,65-69", toRangeString(ZSync.missing(requested, received)));
+        assertEquals("", toRangeString(ZSync.missing(requested, requested)));
+        assertEquals("0-9,20-49,60-69", toRangeString(ZSync.missing(requested, new ArrayList<Range>())));
+    }
+
+    @Test
+    public void fragmentedSync() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        byte[] content = new byte[100000], basisContent;
+        new Random(1).nextBytes(content);
+        basisContent = content.clone();
+        for (int block = 0; block < 1000; block += 2) {
+            basisContent[block * 100] ^= 1;
+        }
+        File metadataFile = tempFile("fragmented-meta"), basis = tempFile("fragmented-basis"), target = tempFile("fragmented");
+        Metadata.generate("", 100, "SHA1", "MD5", new ByteArrayInputStream(content), metadataFile);
+        Files.write(basis.toPath(), basisContent);
+        ContentRequestHandler handler = new ContentRequestHandler(content);
+        factory.handler = handler;
+        sync(Metadata.read(new RandomAccessFile(metadataFile, "r")), basis, target, factory, null, new RangePlanner(0, 0));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertTrue(handler.requestedRanges.size() > 1);
+        int requested = 0;
+        for (String ranges : handler.requestedRanges) {
+            assertTrue(ranges.length() <= ZSync.RANGE_STRING_MAX_LENGTH);
+            requested += ranges.split(",").length;
+        }
+        assertEquals(500, requested); // Only the changed blocks
+    }
+
+    @Test
+    public void mergesRangesAcrossSmallMatches() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        factory.handler = handler;
+        File target = tempFile("merged");
+        sync(randomMetadata, changedBasis(1, 3, 8), target, factory, null, RangePlanner.forLink(100, 1000000));
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-399,800-899"), handler.requestedRanges);
+
+        handler.requestedRanges.clear();
+        sync(randomMetadata, changedBasis(1, 3, 8), target, factory, null, new RangePlanner(0, 0));
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-199,300-399,800-899"), handler.requestedRanges);
+
+        handler.requestedRanges.clear();
+        sync(randomMetadata, changedBasis(1, 2, 4, 8), target, factory); // Without a planner only adjoining ranges merge
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-299,400-499,800-899"), handler.requestedRanges);
+    }
+
+    @Test
+    public void concurrentSync() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        factory.handler = handler;
+        File target = tempFile("concurrent");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            sync(randomMetadata, changedBasis(1, 2, 5, 8), target, factory, null, executor, 3);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        List<String> requested = new ArrayList<>(handler.requestedRanges);
+        Collections.sort(requested);
+        assertEquals(asList("100-299", "500-599", "800-899"), requested);
+    }
+
+    @Test
+    public void concurrentSyncRefetches() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        handler.spoiled = 2;
+        handler.truncate = true;
+        factory.handler = handler;
+        File target = tempFile("concurrent-refetch");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            sync(randomMetadata, changedBasis(0, 3, 4, 9), target, factory, null, executor, 2, 100);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(5, handler.requestedRanges.size());
+    }
+
+    @Test
+    public void concurrentSyncWithoutRemoteContent() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        factory.handler = handler;
+        File basis = changedBasis(), target = tempFile("concurrent-local");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            sync(randomMetadata, basis, target, factory, null, executor, 2);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertTrue(handler.requestedRanges.isEmpty());
+    }
+
+    @Test
+    public void streamingSync() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        byte[] content = new byte[10050], basisContent;
+        new Random(1).nextBytes(content);
+        basisContent = content.clone();
+        for (int block : new int[]{10, 50, 90}) {
+            basisContent[block * 100] ^= 1;
+        }
+        File metadataFile = tempFile("streaming-meta"), basis = tempFile("streaming-basis"), target = tempFile("streaming");
+        Metadata.generate("", 100, "SHA1", "MD5", new ByteArrayInputStream(content), metadataFile);
+        Files.write(basis.toPath(), basisContent);
+        ContentRequestHandler handler = new ContentRequestHandler(content);
+        factory.handler = handler;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ZSync.streamingSync(Metadata.read(new RandomAccessFile(metadataFile, "r")), basis, target, factory, null,
+                    executor, Long.MAX_VALUE, 1);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        // Trailing content first, then each changed block as the search passes it
+        assertEquals(asList("10000-10049", "1000-1099", "5000-5099", "9000-9099"), handler.requestedRanges);
+    }
+
+    /**
+     * Syncs content from a basis, fetching at most the limit early, and returns
+     * the number of bytes requested.
+     */
+    private long streamingSync(byte[] content, byte[] basisContent, long limit, ContentRequestHandler handler)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        File metadataFile = tempFile("streaming-meta"), basis = tempFile("streaming-basis"), target = tempFile("streaming");
+        Metadata.generate("", 100, "SHA1", "MD5", new ByteArrayInputStream(content), metadataFile);
+        Files.write(basis.toPath(), basisContent);
+        factory.handler = handler;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ZSync.streamingSync(Metadata.read(new RandomAccessFile(metadataFile, "r")), basis, target, factory, null,
+                    executor, limit, 1);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        long bytes = 0;
+        for (String ranges : handler.requestedRanges) {
+            for (String range : ranges.split(",")) {
+                String[] bounds = range.split("-");
+                bytes += Long.parseLong(bounds[1]) - Long.parseLong(bounds[0]) + 1;
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void streamingSyncWithInsertedPrefix() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        byte[] content = new byte[10050], basisContent = new byte[13050];
+        Random random = new Random(1);
+        random.nextBytes(content);
+        random.nextBytes(basisContent);
+        System.arraycopy(content, 0, basisContent, 3000, content.length);
+        for (int block : new int[]{10, 50}) {
+            basisContent[3000 + block * 100] ^= 1;
+        }
+        ContentRequestHandler handler = new ContentRequestHandler(content);
+        // Offsets in the basis are all past the target's, only changed content is fetched
+        assertEquals(250, streamingSync(content, basisContent, Long.MAX_VALUE, handler));
+        assertEquals(asList("10000-10049", "1000-1099", "5000-5099"), handler.requestedRanges);
+    }
+
+    @Test
+    public void streamingSyncLimitsSpeculation() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        byte[] content = new byte[10050], basisContent = new byte[10050];
+        new Random(1).nextBytes(content);
+        // The halves are swapped, so the second is found first
+        System.arraycopy(content, 5000, basisContent, 0, 5050);
+        System.arraycopy(content, 0, basisContent, 5050, 5000);
+        ContentRequestHandler handler = new ContentRequestHandler(content);
+        assertEquals(1050, streamingSync(content, basisContent, 1000, handler));
+        assertEquals(asList("10000-10049", "0-999"), handler.requestedRanges);
+    }
+
+    @Test
+    public void streamingSyncFetchesRemainderAfterSearch() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        factory.handler = handler;
+        File target = tempFile("streaming-remainder");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ZSync.streamingSync(randomMetadata, changedBasis(2, 6), target, factory, null, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("200-299,600-699"), handler.requestedRanges);
+    }
+
+    @Test
+    public void streamingSyncChunked() throws IOException, NoSuchAlgorithmException, URISyntaxException, InterruptedException {
+        File metadataFile = tempFile("streaming-chunked-meta");
+        Metadata.generateChunked("", 16, "SHA1", "MD5", file1, metadataFile);
+        factory.handler = new ContentRequestHandler(Files.readAllBytes(file1.toPath()));
+        File target = tempFile("streaming-chunked");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ZSync.streamingSync(Metadata.read(randomAccess(metadataFile)), file6, target, factory, null, executor, 64, 1);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(Files.readAllBytes(file1.toPath()), Files.readAllBytes(target.toPath()));
+    }
+
+    /**
+     * Syncs the random content from a basis with blocks 1, 5 and 8 changed, a
+     * request for each, losing the connection after the first.
+     */
+    private File interruptedSync(File basis, ContentRequestHandler handler)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        handler.failAfter = 1;
+        factory.handler = handler;
+        File target = tempFile("resumable");
+        try {
+            ZSync.resumableSync(randomMetadata, basis, target, factory, null, 100);
+            fail("sync should fail when the connection is lost");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        assertTrue(ZSync.journalFile(target).exists());
+        handler.failAfter = Integer.MAX_VALUE;
+        handler.requestedRanges.clear();
+        return target;
+    }
+
+    @Test
+    public void resumesInterruptedSync() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        File basis = changedBasis(1, 5, 8), target = interruptedSync(basis, handler);
+        ZSync.resumableSync(randomMetadata, basis, target, factory, null, 100);
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("500-599", "800-899"), handler.requestedRanges);
+        assertFalse(ZSync.journalFile(target).exists());
+    }
+
+    @Test
+    public void resumeRewritesChangedContent() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        File basis = changedBasis(1, 5, 8), target = interruptedSync(basis, handler);
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            out.seek(3); // Local content
+            out.write(0xFF ^ randomContent[3]);
+            out.seek(103); // Remote content
+            out.write(0xFF ^ randomContent[103]);
+        } finally {
+            out.close();
+        }
+        ZSync.resumableSync(randomMetadata, basis, target, factory, null, 100);
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("100-199", "500-599", "800-899"), handler.requestedRanges);
+    }
+
+    @Test
+    public void changedBasisRestartsSync() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        setupRandom();
+        ContentRequestHandler handler = new ContentRequestHandler(randomContent);
+        File basis = changedBasis(1, 5, 8), target = interruptedSync(basis, handler);
+        long modified = basis.lastModified();
+        Files.write(basis.toPath(), Files.readAllBytes(changedBasis(2).toPath()));
+        basis.setLastModified(modified + 2000);
+        ZSync.resumableSync(randomMetadata, basis, target, factory, null, 100);
+        assertArrayEquals(randomContent, Files.readAllBytes(target.toPath()));
+        assertEquals(asList("200-299"), handler.requestedRanges);
+    }
+
+    @Test
+    public void uncopiedMatches() {
+        Map<Long, Match> matches = new HashMap<>();
+        matches.put(0L, new Match(1000, 300));
+        matches.put(500L, new Match(2000, 100));
+        Map<Long, Match> uncopied = ZSync.uncopied(matches, asList(new Range(100, 199), new Range(500, 599)));
+        assertEquals(2, uncopied.size());
+        assertEquals(1000, uncopied.get(0L).basisOffset);
+        assertEquals(100, uncopied.get(0L).length);
+        assertEquals(1200, uncopied.get(200L).basisOffset);
+        assertEquals(100, uncopied.get(200L).length);
+    }
+
+    @Test
+    public void balancedBatches() throws NoSuchAlgorithmException, IOException {
+        setupRandom();
+        BlockVerifier verifier = new BlockVerifier(randomMetadata);
+        List<Range> ranges = asList(new Range(0, 599), new Range(800, 999));
+        assertEquals("[0-399, 400-599,800-999]", toString(ZSync.batches(ranges, verifier, 2, 0)));
+        assertEquals("[0-299, 300-599, 800-999]", toString(ZSync.batches(ranges, verifier, 3, 0)));
+        assertEquals("[0-199, 200-399, 400-599, 800-999]", toString(ZSync.batches(ranges, verifier, 2, 250)));
+        assertEquals("[0-599,800-999]", toString(ZSync.batches(ranges, verifier, 1, 0)));
+        // Only split at block boundaries
+        assertEquals("[50-199, 200-249]", toString(ZSync.batches(asList(new Range(50, 249)), verifier, 2, 0)));
+    }
+
+    private static String toString(List<List<Range>> batches) {
+        List<String> result = new ArrayList<>();
+        for (List<Range> batch : batches)
+            result.add(toRangeString(batch));
+        return result.toString();
+    }
+
     private File tempFile(String test) throws IOException {
         return File.createTempFile(test, "", outputDir);
     }
@@ -1,10 +1,14 @@
 package com.github.batkinson.jrsync.zsync;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -94,4 +98,79 @@ class DefaultRequestHandler implements RequestHandler {
     public Response service(Map<String, String> requestHeaders) {
         return Response.DEFAULT;
     }
-}
\ No newline at end of file
+}
+/**
+ * Serves the ranges requested from the specified content, as a single range
+ * response or a multipart one, like a real server would.
+ */
+class ContentRequestHandler implements RequestHandler {
+
+    private final byte[] content;
+    final List<String> requestedRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * The number of responses to spoil, as a flaky connection might, either
+     * by corrupting the first byte of content or by ending them halfway.
+     */
+    int spoiled;
+    boolean truncate;
+
+    /**
+     * The number of requests to serve before failing, as a lost connection
+     * would.
+     */
+    int failAfter = Integer.MAX_VALUE;
+
+    ContentRequestHandler(byte[] content) {
+        this.content = content;
+    }
+
+    @Override
+    public Response service(Map<String, String> requestHeaders) {
+        String ranges = requestHeaders.get(ZSync.RANGE_HEADER).replaceFirst("^bytes=", "");
+        int requests;
+        synchronized (requestedRanges) {
+            requestedRanges.add(ranges);
+            requests = requestedRanges.size();
+        }
+        if (requests > failAfter) {
+            return Response.DEFAULT;
+        }
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String[] specs = ranges.split(",");
+        int firstContent = -1;
+        for (String spec : specs) {
+            String[] bounds = spec.split("-");
+            int first = Integer.parseInt(bounds[0]), last = Integer.parseInt(bounds[1]);
+            String contentRange = "bytes " + first + "-" + last + "/" + content.length;
+            if (specs.length == 1) {
+                headers.put(ZSync.CONTENT_RANGE_HEADER, contentRange);
+            } else {
+                write(body, "\r\n--EOR\r\nContent-Range: " + contentRange + "\r\n\r\n");
+            }
+            if (firstContent < 0) {
+                firstContent = body.size();
+            }
+            body.write(content, first, last - first + 1);
+        }
+        if (specs.length > 1) {
+            write(body, "\r\n--EOR--");
+            headers.put("Content-Type", ZSync.MULTIPART_BYTERANGES_MIME_TYPE + "; boundary=EOR");
+        }
+        byte[] bytes = body.toByteArray();
+        if (requests <= spoiled) {
+            if (truncate) {
+                bytes = Arrays.copyOf(bytes, bytes.length / 2);
+            } else {
+                bytes[firstContent] ^= 1;
+            }
+        }
+        return new Response(ZSync.SC_PARTIAL_CONTENT, headers, new ByteArrayInputStream(bytes));
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes();
+        out.write(bytes, 0, bytes.length);
+    }
+}